@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encode one BED line at a time straight into a reusable byte[], without
+ * going through a StringBuilder, a String, and a charset encoder. Fields are
+ * tab-separated in the order they are added and the line is handed to a
+ * BgzfBedWriter with writeTo().
+ *
+ * Doubles are formatted exactly as Double.toString() (and therefore
+ * StringBuilder.append(double)) would format them, so output is unchanged.
+ * Whole numbers (e.g., 12.0) are encoded directly; anything else falls back
+ * to Double.toString().
+ *
+ * @author markebbert
+ *
+ */
+public class BedRecordEncoder {
+
+	/* Double.toString() switches to scientific notation at 10^7 */
+	private static final double MAX_PLAIN_DOUBLE = 1e7;
+
+	private byte[] buffer = new byte[256];
+	private int length = 0;
+	private boolean firstField = true;
+
+	/* Contigs repeat for long stretches, so keep the last one's bytes */
+	private String lastContig;
+	private byte[] lastContigBytes;
+
+	/* Scratch space for digits, written right to left */
+	private final byte[] digits = new byte[20];
+
+	/**
+	 * Start a new line.
+	 *
+	 * @return this
+	 */
+	public BedRecordEncoder reset() {
+		length = 0;
+		firstField = true;
+		return this;
+	}
+
+	/**
+	 * @param contig
+	 * @return this
+	 */
+	public BedRecordEncoder contig(String contig) {
+		if(contig != lastContig) {
+			lastContig = contig;
+			lastContigBytes = contig.getBytes(StandardCharsets.UTF_8);
+		}
+		separate();
+		ensureCapacity(lastContigBytes.length);
+		System.arraycopy(lastContigBytes, 0, buffer, length, lastContigBytes.length);
+		length += lastContigBytes.length;
+		return this;
+	}
+
+	/**
+	 * @param value
+	 * @return this
+	 */
+	public BedRecordEncoder field(long value) {
+		separate();
+		appendLong(value);
+		return this;
+	}
+
+	/**
+	 * @param value
+	 * @return this
+	 */
+	public BedRecordEncoder field(double value) {
+		separate();
+		if(value == Math.rint(value) && Math.abs(value) < MAX_PLAIN_DOUBLE
+				&& !(value == 0 && 1 / value < 0)) {
+			appendLong((long) value);
+			ensureCapacity(2);
+			buffer[length++] = '.';
+			buffer[length++] = '0';
+		}
+		else {
+			byte[] bytes = Double.toString(value).getBytes(StandardCharsets.US_ASCII);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+		return this;
+	}
+
+	/**
+	 * @param value A name or other text, without tabs or newlines
+	 * @return this
+	 */
+	public BedRecordEncoder field(String value) {
+		separate();
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+		return this;
+	}
+
+	/**
+	 * End the line.
+	 *
+	 * @return this
+	 */
+	public BedRecordEncoder endLine() {
+		ensureCapacity(1);
+		buffer[length++] = '\n';
+		return this;
+	}
+
+	/**
+	 * Write the encoded line(s).
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTo(BgzfBedWriter writer) throws IOException {
+		writer.writeLine(buffer, length);
+	}
+
+	/**
+	 * @return the encoded bytes (valid up to getLength())
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the number of encoded bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	private void separate() {
+		if(firstField) {
+			firstField = false;
+			return;
+		}
+		ensureCapacity(1);
+		buffer[length++] = '\t';
+	}
+
+	private void appendLong(long value) {
+		if(value == Long.MIN_VALUE) {
+			byte[] bytes = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+			return;
+		}
+		boolean negative = value < 0;
+		long v = negative ? -value : value;
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while(v > 0);
+		if(negative) {
+			digits[--i] = '-';
+		}
+		int n = digits.length - i;
+		ensureCapacity(n);
+		System.arraycopy(digits, i, buffer, length, n);
+		length += n;
+	}
+
+	private void ensureCapacity(int extra) {
+		if(length + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A microbenchmark comparing the old way of formatting output lines
+ * (DarkRegionBuffer.lowDepthRegionToString() written through an
+ * OutputStreamWriter) with BedRecordEncoder. Compression is left out so
+ * only the formatting and encoding are measured. Also checks that both
+ * produce the same bytes.
+ *
+ * Usage: java -cp <classpath> ebbertLab.drf.BedRecordEncoderBenchmark [nLines]
+ *
+ * @author markebbert
+ *
+ */
+public class BedRecordEncoderBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		int nLines = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		/* Realistic-looking low-depth loci */
+		Random random = new Random(42);
+		String[] contigs = new String[] {"chr1", "chr2", "chrX"};
+		int[] nMapQ = new int[nLines], depth = new int[nLines], nDel = new int[nLines];
+		int[] perc = new int[nLines];
+		for(int i = 0; i < nLines; i++) {
+			depth[i] = random.nextInt(10);
+			nDel[i] = random.nextInt(2);
+			nMapQ[i] = depth[i] + nDel[i] == 0 ? 0 : random.nextInt(depth[i] + nDel[i] + 1);
+			perc[i] = depth[i] + nDel[i] == 0 ? -1
+					: (int) Math.round((double) nMapQ[i] / (depth[i] + nDel[i]) * 100);
+		}
+
+		verify(contigs, nMapQ, depth, nDel, perc);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		for(int round = 0; round < ROUNDS; round++) {
+			CountingOutputStream sink = new CountingOutputStream();
+			long bytes = allocatedBytes(threads), t = System.nanoTime();
+			Writer writer = new OutputStreamWriter(sink, "utf-8");
+			for(int i = 0; i < nLines; i++) {
+				writer.write(DarkRegionBuffer.lowDepthRegionToString(contigs[contig(i, nLines)], i + 1, nMapQ[i],
+						depth[i], nDel[i], depth[i] + nDel[i], perc[i]));
+			}
+			writer.flush();
+			report("String + Writer", nLines, System.nanoTime() - t,
+					allocatedBytes(threads) - bytes, sink.count);
+
+			sink = new CountingOutputStream();
+			bytes = allocatedBytes(threads);
+			t = System.nanoTime();
+			BedRecordEncoder encoder = new BedRecordEncoder();
+			for(int i = 0; i < nLines; i++) {
+				DarkRegionBuffer.encodeLowDepthRegion(encoder, contigs[contig(i, nLines)], i + 1, nMapQ[i],
+						depth[i], nDel[i], depth[i] + nDel[i], perc[i]);
+				sink.write(encoder.getBuffer(), 0, encoder.getLength());
+			}
+			report("BedRecordEncoder", nLines, System.nanoTime() - t,
+					allocatedBytes(threads) - bytes, sink.count);
+		}
+	}
+
+	/**
+	 * Make sure both approaches produce identical lines, including the
+	 * edge cases (-1 percent, zero depth, large positions).
+	 */
+	private static void verify(String[] contigs, int[] nMapQ, int[] depth, int[] nDel,
+			int[] perc) {
+		BedRecordEncoder encoder = new BedRecordEncoder();
+		int[] positions = new int[] {1, 2, 999999, Integer.MAX_VALUE};
+		for(int i = 0; i < Math.min(100000, nMapQ.length); i++) {
+			int pos = i < positions.length ? positions[i] : i + 1;
+			String expected = DarkRegionBuffer.lowDepthRegionToString(contigs[i % 3], pos, nMapQ[i],
+					depth[i], nDel[i], depth[i] + nDel[i], perc[i]);
+			DarkRegionBuffer.encodeLowDepthRegion(encoder, contigs[i % 3], pos, nMapQ[i],
+					depth[i], nDel[i], depth[i] + nDel[i], perc[i]);
+			byte[] actual = Arrays.copyOf(encoder.getBuffer(), encoder.getLength());
+			if(!Arrays.equals(expected.getBytes(), actual)) {
+				throw new IllegalStateException("Encoded line differs. Expected '" + expected
+						+ "' but got '" + new String(actual) + "'");
+			}
+		}
+	}
+
+	/* Loci are sorted, so each contig is one long stretch */
+	private static int contig(int i, int nLines) {
+		return (int) ((long) i * 3 / nLines);
+	}
+
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static void report(String name, int nLines, long nanos, long allocated, long nBytes) {
+		System.out.printf("%-18s %8.1f ns/line %8.1f bytes allocated/line (%d bytes out)%n",
+				name, (double) nanos / nLines, (double) allocated / nLines, nBytes);
+	}
+
+	/**
+	 * Throw the bytes away, but count them so the work can't be skipped.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
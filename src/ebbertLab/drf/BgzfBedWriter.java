@@ -0,0 +1,593 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+/**
+ * Write a BED file as BGZF (blocked gzip) and build a tabix (.tbi) index
+ * for it as it is written. Blocks are deflated on a pool of background
+ * threads shared by every writer, and written to disk in order as they
+ * complete, so compression does not hold up the walk. The output is still
+ * a valid gzip file (i.e., zcat works), and tools like tabix can query a
+ * region without decompressing the whole file.
+ *
+ * Only ASCII-safe BED lines are expected. Lines are indexed on their
+ * first three columns; lines that cannot be parsed are written but not
+ * indexed.
+ *
+ * @author markebbert
+ *
+ */
+public class BgzfBedWriter extends Writer {
+
+	private static Logger logger = Logger.getLogger(BgzfBedWriter.class);
+
+	public static final String INDEX_EXTENSION = ".tbi";
+
+	/* Leave room for the header and footer even if a block doesn't compress */
+	private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+	private static final int MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+			- BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+			- BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+	/* How many blocks a single writer may have waiting on the pool */
+	private static final int MAX_PENDING_BLOCKS = 32;
+
+	private static int compressionThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private static ExecutorService compressionPool;
+
+	private final File file;
+	private final OutputStream out;
+
+	/* The block currently being filled */
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength = 0;
+	private PendingBlock currentBlock = new PendingBlock();
+
+	/* The line currently being filled */
+	private char[] line = new char[256];
+	private byte[] lineBytes = new byte[256];
+	private int lineLength = 0;
+
+	/* Blocks handed to the pool, in file order */
+	private final ArrayDeque<PendingBlock> pending = new ArrayDeque<PendingBlock>();
+
+	/* Number of compressed bytes written so far */
+	private long address = 0;
+
+	private TabixIndexCreator indexCreator;
+	private final MutableFeature feature = new MutableFeature();
+	private String lastContig;
+	private boolean closed = false;
+
+	/**
+	 * Write to a stream (e.g., to hold a small result in memory). No index
+	 * is written.
+	 *
+	 * @param out Closed when the writer is closed
+	 */
+	public BgzfBedWriter(OutputStream out) {
+		this.file = null;
+		this.out = out;
+	}
+
+	/**
+	 * Write 'file' and index it on close.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public BgzfBedWriter(File file) throws IOException {
+		this(file, true);
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @param createIndex Whether to write <file>.tbi on close
+	 * @throws IOException
+	 */
+	public BgzfBedWriter(File file, boolean createIndex) throws IOException {
+		this.file = file;
+		this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		if(createIndex) {
+			this.indexCreator = new TabixIndexCreator(TabixFormat.BED);
+		}
+	}
+
+	/**
+	 * Set the number of threads used to compress blocks. Must be called
+	 * before the first writer starts writing.
+	 *
+	 * @param nThreads
+	 */
+	public static synchronized void setCompressionThreads(int nThreads) {
+		if(null != compressionPool) {
+			throw new IllegalStateException("The compression pool has already been started.");
+		}
+		compressionThreads = nThreads;
+	}
+
+	private static synchronized ExecutorService getCompressionPool() {
+		if(null == compressionPool) {
+			compressionPool = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+				private int n = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					/* Daemon threads so an idle pool never keeps the JVM alive */
+					Thread t = new Thread(r, "bgzf-compression-" + n++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return compressionPool;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		char c;
+		for(int i = off; i < off + len; i++) {
+			c = cbuf[i];
+			if(lineLength == line.length) {
+				line = Arrays.copyOf(line, lineLength * 2);
+			}
+			line[lineLength++] = c;
+			if(c == '\n') {
+				endLine();
+			}
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		char c;
+		for(int i = off; i < off + len; i++) {
+			c = str.charAt(i);
+			if(lineLength == line.length) {
+				line = Arrays.copyOf(line, lineLength * 2);
+			}
+			line[lineLength++] = c;
+			if(c == '\n') {
+				endLine();
+			}
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		write(new char[] {(char) c}, 0, 1);
+	}
+
+	/**
+	 * Write any blocks the pool has already finished. Partially filled
+	 * blocks are not written until they fill or the writer is closed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeCompletedBlocks(false);
+		out.flush();
+	}
+
+	/**
+	 * Compress and write everything that's left, the BGZF end-of-file
+	 * marker, and the index.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if(lineLength > 0) {
+				endLine();
+			}
+			if(blockLength > 0) {
+				submitBlock();
+			}
+			writeCompletedBlocks(true);
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		} finally {
+			out.close();
+		}
+
+		if(null != indexCreator) {
+			TabixIndex index = (TabixIndex) indexCreator.finalizeIndex(
+					BlockCompressedFilePointerUtil.makeFilePointer(address, 0));
+			index.writeBasedOnFeaturePath(file.toPath());
+		}
+	}
+
+	/**
+	 * Build (or rebuild) the tabix index for an existing BGZF BED file,
+	 * e.g., after concatenating several into one.
+	 *
+	 * @param bgzfBed
+	 * @throws IOException
+	 */
+	public static void writeIndex(File bgzfBed) throws IOException {
+		TabixIndexCreator creator = new TabixIndexCreator(TabixFormat.BED);
+		MutableFeature feature = new MutableFeature();
+		BlockCompressedInputStream in = new BlockCompressedInputStream(bgzfBed);
+		try {
+			String s;
+			long filePointer = in.getFilePointer();
+			while(null != (s = in.readLine())) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				if(parseLine(bytes, bytes.length, feature, null)) {
+					creator.addFeature(feature, filePointer);
+				}
+				filePointer = in.getFilePointer();
+			}
+			creator.finalizeIndex(filePointer).writeBasedOnFeaturePath(bgzfBed.toPath());
+		} catch (IllegalArgumentException e) {
+			logger.warn("Not indexing " + bgzfBed + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param bgzfBed
+	 * @return the index file written for bgzfBed
+	 */
+	public static File getIndexFile(File bgzfBed) {
+		return new File(bgzfBed.getPath() + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Write one complete, newline-terminated line that has already been
+	 * encoded (e.g., by a BedRecordEncoder). This skips the character
+	 * encoding done by the Writer methods. Don't mix it with a partially
+	 * written line from the Writer methods.
+	 *
+	 * @param bytes
+	 * @param length
+	 * @throws IOException
+	 */
+	public void writeLine(byte[] bytes, int length) throws IOException {
+
+		/* Keep lines within a single block whenever they fit */
+		if(length > BLOCK_SIZE - blockLength && blockLength > 0) {
+			submitBlock();
+		}
+
+		if(null != indexCreator && parseLine(bytes, length, feature, lastContig)) {
+			lastContig = feature.contig;
+			currentBlock.addFeature(feature, blockLength);
+		}
+
+		int off = 0, n;
+		while(off < length) {
+			if(blockLength == BLOCK_SIZE) {
+				submitBlock();
+			}
+			n = Math.min(length - off, BLOCK_SIZE - blockLength);
+			System.arraycopy(bytes, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+		}
+	}
+
+	/**
+	 * Encode the line written through the Writer methods and write it.
+	 *
+	 * @throws IOException
+	 */
+	private void endLine() throws IOException {
+		if(lineBytes.length < lineLength) {
+			lineBytes = new byte[line.length];
+		}
+		for(int i = 0; i < lineLength; i++) {
+			if(line[i] > 0x7f) {
+				byte[] bytes = new String(line, 0, lineLength).getBytes(StandardCharsets.UTF_8);
+				lineLength = 0;
+				writeLine(bytes, bytes.length);
+				return;
+			}
+			lineBytes[i] = (byte) line[i];
+		}
+		int length = lineLength;
+		lineLength = 0;
+		writeLine(lineBytes, length);
+	}
+
+	/**
+	 * Hand the current block to the pool and start a new one.
+	 *
+	 * @throws IOException
+	 */
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		currentBlock.compressed = getCompressionPool().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(data, length);
+			}
+		});
+		pending.add(currentBlock);
+
+		block = new byte[BLOCK_SIZE];
+		blockLength = 0;
+		currentBlock = new PendingBlock();
+
+		/* Don't let a fast writer queue up an unbounded number of blocks */
+		writeCompletedBlocks(false);
+	}
+
+	/**
+	 * Write compressed blocks, in order, and index their lines.
+	 *
+	 * @param waitForAll if false, only write blocks that are already
+	 * compressed (or that exceed the pending limit)
+	 * @throws IOException
+	 */
+	private void writeCompletedBlocks(boolean waitForAll) throws IOException {
+		PendingBlock pb;
+		byte[] compressed;
+		while(!pending.isEmpty()) {
+			pb = pending.peek();
+			if(!waitForAll && !pb.compressed.isDone() && pending.size() <= MAX_PENDING_BLOCKS) {
+				break;
+			}
+			try {
+				compressed = pb.compressed.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while compressing " + file);
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to compress a block of " + file, e.getCause());
+			}
+			pending.remove();
+
+			if(null != indexCreator) {
+				indexBlock(pb);
+			}
+			out.write(compressed);
+			address += compressed.length;
+		}
+	}
+
+	/**
+	 * Add a written block's lines to the index. If the lines turn out not
+	 * to be sorted, give up on the index rather than failing the run.
+	 *
+	 * @param pb
+	 */
+	private void indexBlock(PendingBlock pb) {
+		try {
+			for(int i = 0; i < pb.nFeatures; i++) {
+				feature.contig = pb.contigs[i];
+				feature.start = pb.starts[i];
+				feature.end = pb.ends[i];
+				indexCreator.addFeature(feature,
+						BlockCompressedFilePointerUtil.makeFilePointer(address, pb.offsets[i]));
+			}
+		} catch (IllegalArgumentException e) {
+			logger.warn("Not indexing " + file + ": " + e.getMessage());
+			indexCreator = null;
+		}
+	}
+
+	/**
+	 * Deflate one block and wrap it in a BGZF header and footer.
+	 *
+	 * @param data
+	 * @param length
+	 * @return
+	 */
+	private static byte[] compressBlock(byte[] data, int length) {
+		byte[] deflated = new byte[MAX_DEFLATED_SIZE];
+		Deflater deflater = new Deflater(BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL, true);
+		int deflatedLength;
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			deflatedLength = deflater.deflate(deflated, 0, deflated.length);
+
+			/* Incompressible data: store it instead (always fits) */
+			if(!deflater.finished()) {
+				deflater.reset();
+				deflater.setLevel(Deflater.NO_COMPRESSION);
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				deflatedLength = deflater.deflate(deflated, 0, deflated.length);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedLength
+				+ BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte[] compressed = new byte[blockSize];
+		int i = 0;
+		compressed[i++] = BlockCompressedStreamConstants.GZIP_ID1;
+		compressed[i++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+		compressed[i++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+		compressed[i++] = BlockCompressedStreamConstants.GZIP_FLG;
+		i += 4; // MTIME
+		compressed[i++] = BlockCompressedStreamConstants.GZIP_XFL;
+		compressed[i++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+		i = writeShort(compressed, i, BlockCompressedStreamConstants.GZIP_XLEN);
+		compressed[i++] = BlockCompressedStreamConstants.BGZF_ID1;
+		compressed[i++] = BlockCompressedStreamConstants.BGZF_ID2;
+		i = writeShort(compressed, i, BlockCompressedStreamConstants.BGZF_LEN);
+		i = writeShort(compressed, i, blockSize - 1);
+		System.arraycopy(deflated, 0, compressed, i, deflatedLength);
+		i += deflatedLength;
+		i = writeInt(compressed, i, (int) crc.getValue());
+		writeInt(compressed, i, length);
+		return compressed;
+	}
+
+	private static int writeShort(byte[] b, int i, int value) {
+		b[i++] = (byte) value;
+		b[i++] = (byte) (value >>> 8);
+		return i;
+	}
+
+	private static int writeInt(byte[] b, int i, int value) {
+		i = writeShort(b, i, value);
+		return writeShort(b, i, value >>> 16);
+	}
+
+	/**
+	 * Parse the chrom, start, and end columns of a BED line into 'feature'
+	 * (1-based, inclusive). Zero-length regions are indexed as one base.
+	 *
+	 * @param bytes
+	 * @param length
+	 * @param feature
+	 * @param lastContig reused instead of allocating a new String if the
+	 * line is on the same contig
+	 * @return false if the line isn't a BED record
+	 */
+	private static boolean parseLine(byte[] bytes, int length, MutableFeature feature,
+			String lastContig) {
+		int tab1 = indexOf(bytes, '\t', 0, length);
+		if(tab1 <= 0) {
+			return false;
+		}
+		int tab2 = indexOf(bytes, '\t', tab1 + 1, length);
+		if(tab2 < 0) {
+			return false;
+		}
+		int endOfEnd = indexOf(bytes, '\t', tab2 + 1, length);
+		if(endOfEnd < 0) {
+			endOfEnd = length;
+			while(endOfEnd > tab2 + 1 && (bytes[endOfEnd - 1] == '\n' || bytes[endOfEnd - 1] == '\r')) {
+				endOfEnd--;
+			}
+		}
+		long start = parseInt(bytes, tab1 + 1, tab2);
+		long end = parseInt(bytes, tab2 + 1, endOfEnd);
+		if(start < 0 || end < 0) {
+			return false;
+		}
+
+		feature.contig = sameContig(lastContig, bytes, tab1) ? lastContig : new String(bytes, 0, tab1, StandardCharsets.UTF_8);
+		feature.start = (int) start + 1;
+		feature.end = (int) Math.max(end, start + 1);
+		return true;
+	}
+
+	private static boolean sameContig(String contig, byte[] bytes, int length) {
+		if(null == contig || contig.length() != length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(contig.charAt(i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] bytes, char c, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(bytes[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the non-negative integer in bytes[from, to), or -1
+	 */
+	private static long parseInt(byte[] bytes, int from, int to) {
+		if(from >= to || to - from > 10) {
+			return -1;
+		}
+		long value = 0;
+		for(int i = from; i < to; i++) {
+			if(bytes[i] < '0' || bytes[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return value > Integer.MAX_VALUE - 1 ? -1 : value;
+	}
+
+	/**
+	 * A block waiting to be compressed and written, with the lines in it
+	 * that still need to be indexed.
+	 */
+	private static class PendingBlock {
+		Future<byte[]> compressed;
+		String[] contigs = new String[64];
+		int[] starts = new int[64], ends = new int[64], offsets = new int[64];
+		int nFeatures = 0;
+
+		void addFeature(MutableFeature f, int offsetInBlock) {
+			if(nFeatures == contigs.length) {
+				contigs = Arrays.copyOf(contigs, nFeatures * 2);
+				starts = Arrays.copyOf(starts, nFeatures * 2);
+				ends = Arrays.copyOf(ends, nFeatures * 2);
+				offsets = Arrays.copyOf(offsets, nFeatures * 2);
+			}
+			contigs[nFeatures] = f.contig;
+			starts[nFeatures] = f.start;
+			ends[nFeatures] = f.end;
+			offsets[nFeatures++] = offsetInBlock;
+		}
+	}
+
+	/**
+	 * A reusable Feature. TabixIndexCreator only keeps the coordinates, so
+	 * one instance is enough.
+	 */
+	private static class MutableFeature implements Feature {
+		String contig;
+		int start, end;
+
+		@Override
+		public String getContig() {
+			return contig;
+		}
+
+		@Override
+		public int getStart() {
+			return start;
+		}
+
+		@Override
+		public int getEnd() {
+			return end;
+		}
+	}
+}
@@ -0,0 +1,556 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.PeekableIterator;
+
+/**
+ * Find dark regions for many samples in one pass. Every alignment file in
+ * the manifest is walked in lockstep, one block of loci at a time, with a
+ * SweepLineCoverageWalker per sample. Reference-side work (opening the
+ * reference, finding incomplete loci) is done once per block for the whole
+ * cohort rather than once per sample.
+ *
+ * Writes, to the output directory:
+ *   <sample>.low_coverage.dark.bed.gz and <sample>.low_mapq.dark.bed.gz
+ *   for each sample (same columns as a single-sample run);
+ *   incomplete.bed.gz, which is the same for every sample; and
+ *   cohort.dark_counts.bed.gz, with the number of samples that are dark
+ *   at each locus: (1) chromosome; (2) start; (3) end; (4) n samples with
+ *   low coverage; (5) n samples with low MAPQ; (6) n samples dark by
+ *   either. Loci with the same counts are written as one line, and loci
+ *   where no sample is dark (or that are incomplete) are left out.
+ *
+ * Unlike the per-sample BEDs, the counts are per locus and do not depend
+ * on --min-region-size.
+ *
+ * @author markebbert
+ *
+ */
+public class CohortDarkRegionFinder {
+
+	private static Logger logger = Logger.getLogger(CohortDarkRegionFinder.class);
+
+	public static final String INCOMPLETE_BED = "incomplete.bed.gz";
+	public static final String COUNTS_BED = "cohort.dark_counts.bed.gz";
+	private static final String LOW_DEPTH_SUFFIX = ".low_coverage.dark.bed.gz";
+	private static final String LOW_MAPQ_SUFFIX = ".low_mapq.dark.bed.gz";
+
+	/*
+	 * Loci are walked in blocks of this size. Each sample holds its counts
+	 * for one block, so memory grows with (block size * n samples). The
+	 * walkers start small for the same reason; they grow if a read needs it.
+	 */
+	private static final int BLOCK_SIZE = 1 << 12;
+	private static final int WALKER_WINDOW_SIZE = 1 << 12;
+
+	private final List<String> sampleNames = new ArrayList<String>();
+	private final List<SamReader> samReaders = new ArrayList<SamReader>();
+	private final List<SweepLineCoverageWalker> walkers = new ArrayList<SweepLineCoverageWalker>();
+	private final List<ReadPreFilter> readFilters = new ArrayList<ReadPreFilter>();
+	private final List<DarkRegionFinder> finders = new ArrayList<DarkRegionFinder>();
+	private final List<Interval> ranges;
+
+	private final ReferenceSequenceFile hgRefReader;
+	private final SAMSequenceDictionary hgRefDictionary;
+	private ReferenceBaseCache refCache;
+	private ReferenceNRunIndex nRunIndex;
+
+	/* Per-sample counts for the current block, indexed by [sample][pos - blockStart] */
+	private final int[][] depths, deleted, lowMapQ;
+
+	/* Whether each locus in the current block is incomplete */
+	private final boolean[] incomplete = new boolean[BLOCK_SIZE];
+
+	/* Number of samples dark at each locus in the current block */
+	private final int[] nLowDepth = new int[BLOCK_SIZE], nLowMapQ = new int[BLOCK_SIZE],
+			nDark = new int[BLOCK_SIZE];
+
+	private final BgzfBedWriter countsWriter;
+	private final BedRecordEncoder countsEncoder = new BedRecordEncoder();
+
+	/* The current run of loci with the same counts (end < start if none) */
+	private String runContig;
+	private int runStart, runEnd = -1, runLowDepth, runLowMapQ, runDark;
+
+	/**
+	 *
+	 * @param manifest One alignment file per line, optionally preceded by
+	 * a sample name and a tab. Blank lines and lines starting with '#' are
+	 * ignored.
+	 * @param outDir
+	 * @param hgRef
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @param exclusiveRegions
+	 * @param vs
+	 * @param intervalStringList
+	 * @param includeSupplementary
+	 * @throws IOException
+	 */
+	public CohortDarkRegionFinder(File manifest, File outDir, File hgRef,
+			final int mapQThreshold, final int minMapQMass, final int minRegionSize,
+			int minDepth, final boolean exclusiveRegions, final ValidationStringency vs,
+			List<String> intervalStringList, final boolean includeSupplementary) throws IOException {
+
+		DarkRegionFinder.setSharedOptions(exclusiveRegions, includeSupplementary);
+
+		this.hgRefReader = MappedFastaReference.openReference(hgRef);
+		this.hgRefDictionary = hgRefReader.getSequenceDictionary();
+		if(null == hgRefDictionary) {
+			String err = "The reference provided does not have a dictionary (.dict) file. Generate"
+					+ " the dictionary before proceeding.";
+			logger.error(err);
+			throw new IOException(err);
+		}
+		this.refCache = new ReferenceBaseCache(hgRefReader, ReferenceBaseCache.DEFAULT_WINDOW_SIZE);
+
+		if(!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Could not create output directory " + outDir);
+		}
+
+		openSamples(manifest, outDir, hgRef, vs, mapQThreshold, minMapQMass, minRegionSize, minDepth);
+
+		/* Every file shares the first file's sequence dictionary */
+		SAMFileHeader header = samReaders.get(0).getFileHeader();
+		this.ranges = null == intervalStringList
+				? DarkRegionFinder.generateReferenceIntervalList(header, hgRefDictionary).getIntervals()
+				: DarkRegionFinder.getTraversalRanges(
+						DarkRegionFinder.generateIntervalList(intervalStringList, header), header);
+
+		this.depths = new int[sampleNames.size()][BLOCK_SIZE];
+		this.deleted = new int[sampleNames.size()][BLOCK_SIZE];
+		this.lowMapQ = new int[sampleNames.size()][BLOCK_SIZE];
+
+		this.countsWriter = new BgzfBedWriter(new File(outDir, COUNTS_BED));
+	}
+
+	/**
+	 * Read the manifest and open a reader, walker, and DarkRegionFinder for
+	 * each sample. Only the first sample's finder writes incomplete regions.
+	 *
+	 * @param manifest
+	 * @param outDir
+	 * @param hgRef
+	 * @param vs
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @throws IOException
+	 */
+	private void openSamples(File manifest, File outDir, File hgRef,
+			ValidationStringency vs, int mapQThreshold, int minMapQMass,
+			int minRegionSize, int minDepth) throws IOException {
+
+		SAMSequenceDictionary dictionary = null;
+		HashSet<String> seen = new HashSet<String>();
+		BufferedReader br = new BufferedReader(new FileReader(manifest));
+		try {
+			String line, name;
+			String[] toks;
+			File samFile;
+			SamReader reader;
+			SweepLineCoverageWalker walker;
+			ReadPreFilter readFilter;
+			DarkRegionFinder finder;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				toks = line.split("\t");
+				samFile = new File(toks[toks.length - 1]);
+
+				/*
+				 * Every file must be indexed (each is queried range by range)
+				 * and share the first file's sequence dictionary (so ranges
+				 * mean the same thing in each).
+				 */
+				reader = DarkRegionFinder.openSam(samFile, hgRef);
+				samReaders.add(reader);
+				if(!reader.hasIndex()) {
+					throw new IOException("Cohort mode requires indexed SAM/BAM/CRAM files. Index "
+							+ samFile + " before proceeding.");
+				}
+				if(null == dictionary) {
+					dictionary = reader.getFileHeader().getSequenceDictionary();
+				}
+				else if(!dictionary.isSameDictionary(reader.getFileHeader().getSequenceDictionary())) {
+					throw new IOException(samFile + " has a different sequence dictionary than"
+							+ " the first file in the manifest. Every file in a cohort must be"
+							+ " aligned to the same reference.");
+				}
+
+				name = toks.length > 1 ? toks[0] : getSampleName(reader.getFileHeader(), samFile);
+				if(!seen.add(name)) {
+					throw new IOException("Sample name " + name + " appears more than once in the"
+							+ " manifest. Give each file a unique name (<name><tab><file>).");
+				}
+				sampleNames.add(name);
+
+				readFilter = DarkRegionFinder.newReadPreFilter(vs);
+				readFilters.add(readFilter);
+				walker = new SweepLineCoverageWalker(reader, null,
+						Collections.<SamRecordFilter>singletonList(readFilter), mapQThreshold, DarkRegionFinder.MAX_READS_PER_LOCUS,
+						WALKER_WINDOW_SIZE);
+				walkers.add(walker);
+
+				finder = new DarkRegionFinder(new File(outDir, name + LOW_DEPTH_SUFFIX),
+						new File(outDir, name + LOW_MAPQ_SUFFIX),
+						finders.isEmpty() ? new File(outDir, INCOMPLETE_BED) : null,
+						hgRefDictionary);
+				finder.setThresholds(mapQThreshold, minMapQMass, minRegionSize, minDepth);
+				finders.add(finder);
+			}
+		} finally {
+			br.close();
+		}
+
+		if(sampleNames.isEmpty()) {
+			throw new IOException("The manifest " + manifest + " does not list any files.");
+		}
+		logger.info("Walking " + sampleNames.size() + " samples");
+	}
+
+	/**
+	 * Name a sample after its read groups if they agree on one sample,
+	 * otherwise after the file.
+	 *
+	 * @param header
+	 * @param samFile
+	 * @return
+	 */
+	static String getSampleName(SAMFileHeader header, File samFile) {
+		TreeSet<String> samples = new TreeSet<String>();
+		for(SAMReadGroupRecord group : header.getReadGroups()) {
+			if(null != group.getSample()) {
+				samples.add(group.getSample());
+			}
+		}
+		if(samples.size() == 1) {
+			return samples.first();
+		}
+		String name = samFile.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Set how many reference bases to hold in memory at a time. If ≤ 0,
+	 * entire contigs are loaded.
+	 *
+	 * @param windowSize
+	 */
+	public void setReferenceWindowSize(int windowSize) {
+		this.refCache = new ReferenceBaseCache(hgRefReader, windowSize);
+	}
+
+	/**
+	 * Use a precomputed index of incomplete ('N') runs rather than checking
+	 * each reference base. No coverage is computed inside the runs.
+	 *
+	 * @param nRunIndex
+	 */
+	public void setNRunIndex(ReferenceNRunIndex nRunIndex) {
+		this.nRunIndex = nRunIndex;
+		for(SweepLineCoverageWalker walker : walkers) {
+			walker.setNRunIndex(nRunIndex);
+		}
+	}
+
+	/**
+	 * Count every read at every locus, rather than stopping at
+	 * DarkRegionFinder.MAX_READS_PER_LOCUS.
+	 *
+	 * @param exactDepth
+	 */
+	public void setExactDepth(boolean exactDepth) {
+		for(SweepLineCoverageWalker walker : walkers) {
+			walker.setMaxReadsPerLocus(exactDepth ? Integer.MAX_VALUE
+					: DarkRegionFinder.MAX_READS_PER_LOCUS);
+		}
+	}
+
+	/**
+	 * Write one line per contiguous run in the per-sample and incomplete
+	 * BEDs rather than one line per base.
+	 *
+	 * @param mergedOutput
+	 */
+	public void setMergedOutput(boolean mergedOutput) {
+		for(DarkRegionFinder finder : finders) {
+			finder.setMergedOutput(mergedOutput);
+		}
+	}
+
+	/**
+	 * Walk every range for every sample, then write any remaining regions
+	 * and close the outputs.
+	 *
+	 * @throws Exception
+	 */
+	public void startWalking() throws Exception {
+
+		int nSamples = sampleNames.size();
+		List<PeekableIterator<SAMRecord>> its = new ArrayList<PeekableIterator<SAMRecord>>();
+		BlockHandler handler = new BlockHandler();
+		String contig;
+		int end, blockEnd;
+		PeekableIterator<SAMRecord> it;
+		for(Interval range : ranges) {
+			contig = range.getContig();
+			if(null == hgRefDictionary.getSequence(contig)) {
+				logger.warn(contig + " was not found in the provided reference. Skipping.");
+				continue;
+			}
+			end = range.getEnd();
+
+			try {
+				for(int s = 0; s < nSamples; s++) {
+					walkers.get(s).startRange(contig, range.getStart(), end);
+					its.add(new PeekableIterator<SAMRecord>(
+							samReaders.get(s).queryOverlapping(contig, range.getStart(), end)));
+				}
+
+				for(int blockStart = range.getStart(); blockStart <= end; blockStart += BLOCK_SIZE) {
+					blockEnd = Math.min(end, blockStart + BLOCK_SIZE - 1);
+					handler.blockStart = blockStart;
+
+					/* Fill in every sample's counts for the block */
+					for(int s = 0; s < nSamples; s++) {
+						handler.sample = s;
+						it = its.get(s);
+						while(it.hasNext() && it.peek().getAlignmentStart() <= blockEnd) {
+							walkers.get(s).addRecordIfPassing(handler, contig, it.next());
+						}
+						walkers.get(s).emitThrough(handler, contig, blockEnd);
+					}
+
+					processBlock(contig, blockStart, blockEnd);
+				}
+			} finally {
+				for(PeekableIterator<SAMRecord> open : its) {
+					open.close();
+				}
+				its.clear();
+			}
+		}
+
+		for(DarkRegionFinder finder : finders) {
+			finder.finishWalking();
+		}
+		writeCountsRun();
+		countsWriter.close();
+		for(int s = 0; s < sampleNames.size(); s++) {
+			readFilters.get(s).logCounts(sampleNames.get(s));
+		}
+		for(SamReader reader : samReaders) {
+			reader.close();
+		}
+		refCache.release();
+		hgRefReader.close();
+	}
+
+	/**
+	 * Find the incomplete loci in the block (once for the whole cohort),
+	 * then pass each sample's runs of loci to its DarkRegionFinder and
+	 * count how many samples are dark at each locus.
+	 *
+	 * @param contig
+	 * @param blockStart
+	 * @param blockEnd
+	 * @throws IOException
+	 */
+	private void processBlock(String contig, int blockStart, int blockEnd) throws IOException {
+
+		int length = blockEnd - blockStart + 1;
+		markIncomplete(contig, blockStart, blockEnd);
+		Arrays.fill(nLowDepth, 0, length, 0);
+		Arrays.fill(nLowMapQ, 0, length, 0);
+		Arrays.fill(nDark, 0, length, 0);
+
+		int i, j, d, del, mq;
+		boolean lowDepth, lowMapQRun;
+		DarkRegionFinder finder;
+		for(int s = 0; s < sampleNames.size(); s++) {
+			finder = finders.get(s);
+			i = 0;
+			while(i < length) {
+
+				/* A run of incomplete loci */
+				if(incomplete[i]) {
+					for(j = i + 1; j < length && incomplete[j]; j++);
+					finder.processIncompleteRun(contig, blockStart + i, blockStart + j - 1);
+					i = j;
+					continue;
+				}
+
+				/* A run of complete loci with the same counts */
+				d = depths[s][i];
+				del = deleted[s][i];
+				mq = lowMapQ[s][i];
+				for(j = i + 1; j < length && !incomplete[j] && depths[s][j] == d
+						&& deleted[s][j] == del && lowMapQ[s][j] == mq; j++);
+				finder.processCompleteRun(contig, blockStart + i, blockStart + j - 1, d, del, mq);
+
+				lowDepth = finder.isLowDepth(d);
+				lowMapQRun = !(DarkRegionFinder.isExclusiveRegions() && lowDepth)
+						&& finder.isLowMapQ(DarkRegionFinder.percMapQBelowThreshold(d + del, mq));
+				if(lowDepth || lowMapQRun) {
+					for(; i < j; i++) {
+						if(lowDepth) {
+							nLowDepth[i]++;
+						}
+						if(lowMapQRun) {
+							nLowMapQ[i]++;
+						}
+						nDark[i]++;
+					}
+				}
+				i = j;
+			}
+		}
+
+		for(i = 0; i < length; i++) {
+			addCounts(contig, blockStart + i, incomplete[i] ? 0 : nLowDepth[i],
+					incomplete[i] ? 0 : nLowMapQ[i], incomplete[i] ? 0 : nDark[i]);
+		}
+	}
+
+	/**
+	 * Mark which loci in the block are incomplete, using the index if there
+	 * is one.
+	 *
+	 * @param contig
+	 * @param blockStart
+	 * @param blockEnd
+	 */
+	private void markIncomplete(String contig, int blockStart, int blockEnd) {
+		int length = blockEnd - blockStart + 1;
+		if(null == nRunIndex) {
+			byte base;
+			for(int i = 0; i < length; i++) {
+				base = refCache.getBase(contig, blockStart + i);
+				incomplete[i] = base == 'N' || base == 'n';
+			}
+			return;
+		}
+
+		Arrays.fill(incomplete, 0, length, false);
+		int idx = nRunIndex.findRun(contig, blockStart);
+		if(idx < 0) {
+			idx = -idx - 1;
+		}
+		int start, end;
+		for(; idx < nRunIndex.getRunCount(contig); idx++) {
+			start = nRunIndex.getRunStart(contig, idx);
+			if(start > blockEnd) {
+				break;
+			}
+			end = Math.min(blockEnd, nRunIndex.getRunEnd(contig, idx));
+			Arrays.fill(incomplete, Math.max(start, blockStart) - blockStart, end - blockStart + 1, true);
+		}
+	}
+
+	/**
+	 * Extend the current counts run by one locus, or write it and start a
+	 * new one.
+	 *
+	 * @param contig
+	 * @param pos 1-based
+	 * @param lowDepthCount
+	 * @param lowMapQCount
+	 * @param darkCount
+	 * @throws IOException
+	 */
+	private void addCounts(String contig, int pos, int lowDepthCount, int lowMapQCount,
+			int darkCount) throws IOException {
+		if(runEnd >= runStart && runEnd + 1 == pos && runContig.equals(contig)
+				&& runLowDepth == lowDepthCount && runLowMapQ == lowMapQCount && runDark == darkCount) {
+			runEnd = pos;
+			return;
+		}
+		writeCountsRun();
+		runContig = contig;
+		runStart = runEnd = pos;
+		runLowDepth = lowDepthCount;
+		runLowMapQ = lowMapQCount;
+		runDark = darkCount;
+	}
+
+	/**
+	 * Write the current counts run if any sample is dark in it.
+	 *
+	 * @throws IOException
+	 */
+	private void writeCountsRun() throws IOException {
+		if(runEnd < runStart || runDark == 0) {
+			return;
+		}
+
+		/* Bed files are 0-based */
+		countsEncoder.reset().contig(runContig)
+				.field(runStart - 1)
+				.field(runEnd)
+				.field(runLowDepth)
+				.field(runLowMapQ)
+				.field(runDark)
+				.endLine();
+		countsEncoder.writeTo(countsWriter);
+	}
+
+	/**
+	 * Store each sample's counts for the current block. Counts inside
+	 * incomplete runs are never read, so they're dropped.
+	 */
+	private class BlockHandler implements SweepLineCoverageWalker.LocusCountHandler {
+
+		int sample, blockStart;
+
+		@Override
+		public void handleLocus(String contig, int position, int depthExcludingIndels,
+				int nDeletedInRecord, int nMapQBelowThreshold) {
+			depths[sample][position - blockStart] = depthExcludingIndels;
+			deleted[sample][position - blockStart] = nDeletedInRecord;
+			lowMapQ[sample][position - blockStart] = nMapQBelowThreshold;
+		}
+
+		@Override
+		public void handleIncompleteRun(String contig, int start, int end) {
+			return;
+		}
+
+		@Override
+		public void handleUncoveredRun(String contig, int start, int end) {
+			Arrays.fill(depths[sample], start - blockStart, end - blockStart + 1, 0);
+			Arrays.fill(deleted[sample], start - blockStart, end - blockStart + 1, 0);
+			Arrays.fill(lowMapQ[sample], start - blockStart, end - blockStart + 1, 0);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Read a coverage track written by CoverageTrackWriter, either from the
+ * beginning or for a single region using the track's index.
+ *
+ * @author markebbert
+ *
+ */
+public class CoverageTrackReader {
+
+	/**
+	 * Receives the runs in a track, in the order they were written.
+	 */
+	public interface RunHandler {
+
+		/**
+		 * A run of complete loci that all have the same counts.
+		 *
+		 * @param contig
+		 * @param start 1-based
+		 * @param end 1-based, inclusive
+		 * @param depthExcludingIndels
+		 * @param nDeletedInRecord
+		 * @param mapQBins The number of reads in each MAPQ bin. Only valid
+		 * during the call.
+		 * @throws IOException
+		 */
+		void handleCovered(String contig, int start, int end, int depthExcludingIndels,
+				int nDeletedInRecord, int[] mapQBins) throws IOException;
+
+		/**
+		 * A run of incomplete (i.e., 'N') loci.
+		 *
+		 * @param contig
+		 * @param start 1-based
+		 * @param end 1-based, inclusive
+		 * @throws IOException
+		 */
+		void handleIncomplete(String contig, int start, int end) throws IOException;
+	}
+
+	private final File track;
+	private final Index index;
+	private final BlockCompressedInputStream in;
+	private final int[] bins = new int[CoverageTrackWriter.N_MAPQ_BINS];
+
+	/**
+	 *
+	 * @param track
+	 * @throws IOException
+	 */
+	public CoverageTrackReader(File track) throws IOException {
+		this.track = track;
+		this.index = Index.read(CoverageTrackWriter.getIndexFile(track));
+		this.in = new BlockCompressedInputStream(track);
+	}
+
+	/**
+	 * @return the sequences the track was written for
+	 */
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return index.dictionary;
+	}
+
+	/**
+	 * Pass every run in the track to the handler.
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void walk(RunHandler handler) throws IOException {
+		if(index.size() == 0) {
+			return;
+		}
+		in.seek(index.offsets[0]);
+		read(handler, null, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Pass the runs overlapping [start, end] to the handler, clipped to
+	 * the region.
+	 *
+	 * @param handler
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	public void query(RunHandler handler, String contig, int start, int end) throws IOException {
+		int contigIndex = index.dictionary.getSequenceIndex(contig);
+
+		/* Start at the last segment beginning at or before 'start' */
+		int entry = -1;
+		for(int i = 0; i < index.size(); i++) {
+			if(index.contigIndexes[i] != contigIndex) {
+				continue;
+			}
+			if(index.starts[i] <= start || (entry < 0 && index.starts[i] <= end)) {
+				entry = i;
+			}
+		}
+		if(entry < 0) {
+			return;
+		}
+		in.seek(index.offsets[entry]);
+		read(handler, contig, start, end);
+	}
+
+	/**
+	 * Read runs from the current offset, passing on those that overlap
+	 * [start, end] (on 'contig' if not null). Stops at the end of the
+	 * region or the track.
+	 *
+	 * @param handler
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @throws IOException
+	 */
+	private void read(RunHandler handler, String contig, int start, int end) throws IOException {
+		String runContig = null;
+		int type, pos = 0, runEnd, depth, deleted;
+		while((type = in.read()) >= 0) {
+			if(type == CoverageTrackWriter.SEGMENT) {
+				runContig = index.dictionary.getSequence(readVarInt()).getSequenceName();
+				pos = readVarInt();
+				if(null != contig && (!contig.equals(runContig) || pos > end)) {
+					return;
+				}
+				continue;
+			}
+
+			runEnd = pos + readVarInt() - 1;
+			if(type == CoverageTrackWriter.COVERED) {
+				depth = readVarInt();
+				deleted = readVarInt();
+				for(int bin = 0; bin < bins.length; bin++) {
+					bins[bin] = readVarInt();
+				}
+				if(runEnd >= start) {
+					handler.handleCovered(runContig, Math.max(pos, start), Math.min(runEnd, end),
+							depth, deleted, bins);
+				}
+			}
+			else if(type == CoverageTrackWriter.INCOMPLETE) {
+				if(runEnd >= start) {
+					handler.handleIncomplete(runContig, Math.max(pos, start), Math.min(runEnd, end));
+				}
+			}
+			else {
+				throw new IOException(track + " is corrupt (unknown record type " + type + ").");
+			}
+
+			if(runEnd >= end) {
+				return;
+			}
+			pos = runEnd + 1;
+		}
+	}
+
+	private int readVarInt() throws IOException {
+		int value = 0, shift = 0, b;
+		do {
+			if((b = in.read()) < 0) {
+				throw new EOFException(track + " ends in the middle of a record.");
+			}
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * The track's header and segment index (see CoverageTrackWriter).
+	 */
+	static class Index {
+
+		SAMSequenceDictionary dictionary;
+		int[] contigIndexes, starts;
+		long[] offsets;
+
+		int size() {
+			return starts.length;
+		}
+
+		static Index read(File indexFile) throws IOException {
+			Index index = new Index();
+			DataInputStream dis = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				CoverageTrackWriter.checkMagic(dis, indexFile);
+
+				int nBins = dis.readInt();
+				boolean sameBins = nBins == CoverageTrackWriter.N_MAPQ_BINS;
+				int edge;
+				for(int bin = 0; bin < nBins; bin++) {
+					edge = dis.readInt();
+					sameBins &= bin < CoverageTrackWriter.N_MAPQ_BINS
+							&& edge == CoverageTrackWriter.MAPQ_BIN_UPPER_EDGES[bin];
+				}
+				if(!sameBins) {
+					throw new IOException(indexFile + " was written with different MAPQ bins"
+							+ " than this version of DRF uses.");
+				}
+
+				int nSeqs = dis.readInt();
+				List<SAMSequenceRecord> seqs = new ArrayList<SAMSequenceRecord>(nSeqs);
+				for(int i = 0; i < nSeqs; i++) {
+					seqs.add(new SAMSequenceRecord(dis.readUTF(), dis.readInt()));
+				}
+				index.dictionary = new SAMSequenceDictionary(seqs);
+
+				int n = dis.readInt();
+				index.contigIndexes = new int[n];
+				index.starts = new int[n];
+				index.offsets = new long[n];
+				for(int i = 0; i < n; i++) {
+					index.contigIndexes[i] = dis.readInt();
+					index.starts[i] = dis.readInt();
+					index.offsets[i] = dis.readLong();
+				}
+			} finally {
+				dis.close();
+			}
+			return index;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * Regenerate the low-coverage, low-MAPQ, and incomplete BED files from a
+ * coverage track (see CoverageTrackWriter) rather than the SAM/BAM. The
+ * output is the same as walking the SAM/BAM with the new thresholds, as
+ * long as the MAPQ threshold is one of the track's bin edges. Neither the
+ * SAM/BAM nor the reference is needed.
+ *
+ * @author markebbert
+ *
+ */
+public class CoverageTrackRethresholder {
+
+	private final File track;
+	private final DarkRegionFinder drf;
+	private final CoverageTrackReader reader;
+	private final List<Interval> ranges;
+	private final int thresholdBin;
+
+	/**
+	 *
+	 * @param track
+	 * @param outDepthBed
+	 * @param outMapQBed
+	 * @param outIncBed
+	 * @param mapQThreshold Must be one of CoverageTrackWriter's MAPQ bin edges
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @param exclusiveRegions
+	 * @param intervalStringList
+	 * @throws IOException
+	 */
+	public CoverageTrackRethresholder(File track, final File outDepthBed,
+			File outMapQBed, File outIncBed,
+			final int mapQThreshold, final int minMapQMass, final int minRegionSize,
+			int minDepth, final boolean exclusiveRegions,
+			List<String> intervalStringList) throws IOException {
+
+		this.thresholdBin = CoverageTrackWriter.getThresholdBin(mapQThreshold);
+		if(thresholdBin < 0) {
+			throw new IOException("A coverage track can only be re-thresholded at a MAPQ"
+					+ " threshold of " + CoverageTrackWriter.getMapQBinEdges() + ".");
+		}
+
+		/* Included supplementary reads or not, the track's counts are already final */
+		DarkRegionFinder.setSharedOptions(exclusiveRegions, false);
+
+		this.track = track;
+		this.reader = new CoverageTrackReader(track);
+		this.drf = new DarkRegionFinder(outDepthBed, outMapQBed, outIncBed,
+				reader.getSequenceDictionary());
+		drf.setThresholds(mapQThreshold, minMapQMass, minRegionSize, minDepth);
+
+		SAMFileHeader header = new SAMFileHeader(reader.getSequenceDictionary());
+		this.ranges = null == intervalStringList ? null : DarkRegionFinder.getTraversalRanges(
+				DarkRegionFinder.generateIntervalList(intervalStringList, header), header);
+	}
+
+	/**
+	 * Write one line per contiguous run rather than one line per base.
+	 *
+	 * @param mergedOutput
+	 */
+	public void setMergedOutput(boolean mergedOutput) {
+		drf.setMergedOutput(mergedOutput);
+	}
+
+	/**
+	 * Pass every run in the track (or in the intervals) to the
+	 * DarkRegionFinder, then write any remaining regions and close the
+	 * outputs.
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		CoverageTrackReader.RunHandler handler = new CoverageTrackReader.RunHandler() {
+			@Override
+			public void handleCovered(String contig, int start, int end,
+					int depthExcludingIndels, int nDeletedInRecord, int[] mapQBins) throws IOException {
+				drf.processCompleteRun(contig, start, end, depthExcludingIndels,
+						nDeletedInRecord, CoverageTrackWriter.sumBins(mapQBins, thresholdBin));
+			}
+
+			@Override
+			public void handleIncomplete(String contig, int start, int end) throws IOException {
+				drf.processIncompleteRun(contig, start, end);
+			}
+		};
+
+		try {
+			if(null == ranges) {
+				reader.walk(handler);
+			}
+			else {
+				for(Interval range : ranges) {
+					if(null == reader.getSequenceDictionary().getSequence(range.getContig())) {
+						throw new IOException(range.getContig() + " is not in " + track);
+					}
+					reader.query(handler, range.getContig(), range.getStart(), range.getEnd());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		drf.finishWalking();
+	}
+}
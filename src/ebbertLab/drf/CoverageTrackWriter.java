@@ -0,0 +1,418 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Write the per-base counts DRF computes (depth, reads with a deletion,
+ * and a histogram of read MAPQs) to a compact binary track, so the BED
+ * files can be regenerated for other thresholds without re-reading the
+ * SAM/BAM (see CoverageTrackReader and the 'rethreshold' command).
+ *
+ * The track is BGZF-compressed. Loci with the same counts are written as
+ * one run, so uncovered and incomplete stretches take a few bytes each.
+ * Every record starts with a type byte:
+ *   SEGMENT: contig index, 1-based start (varints). The next run starts here.
+ *   COVERED: length, depth, nDeleted, then one count per MAPQ bin (varints).
+ *   INCOMPLETE: length (varint).
+ * Runs follow each other within a segment. A new segment is started on
+ * every new contig, after any gap, and at least every INDEX_INTERVAL
+ * bases; each segment start is recorded in the sidecar index
+ * (<track>.idx) with its virtual file offset, for random access by region.
+ * The index also holds the header (MAPQ bins and sequence dictionary), so
+ * the track files of several shards can be concatenated (see merge()).
+ *
+ * @author markebbert
+ *
+ */
+public class CoverageTrackWriter {
+
+	private static Logger logger = Logger.getLogger(CoverageTrackWriter.class);
+
+	public static final String INDEX_EXTENSION = ".idx";
+	static final String MAGIC = "DRFTRK1";
+
+	static final byte SEGMENT = 0, COVERED = 1, INCOMPLETE = 2;
+
+	/*
+	 * Reads are counted in MAPQ bins with these (inclusive) upper edges, so
+	 * the track can be re-thresholded at any of these MAPQs (9, the default
+	 * --mapq-threshold, included).
+	 */
+	static final int[] MAPQ_BIN_UPPER_EDGES = {0, 1, 2, 3, 4, 9, 19, 29, 39, 59, 255};
+	static final int N_MAPQ_BINS = MAPQ_BIN_UPPER_EDGES.length;
+
+	/* Index a segment start at least this often */
+	static final int INDEX_INTERVAL = 1 << 16;
+
+	private final File track;
+	private final SAMSequenceDictionary dictionary;
+	private final BlockCompressedOutputStream out;
+	private final IndexBuilder index = new IndexBuilder();
+
+	/* The pending run (end < start if none), and where the segment began */
+	private String runContig;
+	private int runContigIndex = -1, runStart, runEnd = -1, segmentStart;
+	private boolean runIncomplete;
+	private int runDepth, runDeleted;
+	private final int[] runBins = new int[N_MAPQ_BINS];
+
+	/**
+	 *
+	 * @param track
+	 * @param dictionary The sequences the track may hold (i.e., the SAM/BAM
+	 * header's)
+	 * @throws IOException
+	 */
+	public CoverageTrackWriter(File track, SAMSequenceDictionary dictionary) throws IOException {
+		this.track = track;
+		this.dictionary = dictionary;
+		this.out = new BlockCompressedOutputStream(track);
+	}
+
+	/**
+	 * @param mapQ
+	 * @return the bin a read with this MAPQ is counted in
+	 */
+	static int getMapQBin(int mapQ) {
+		for(int bin = 0; bin < N_MAPQ_BINS - 1; bin++) {
+			if(mapQ <= MAPQ_BIN_UPPER_EDGES[bin]) {
+				return bin;
+			}
+		}
+		return N_MAPQ_BINS - 1;
+	}
+
+	/**
+	 * @param mapQThreshold
+	 * @return the last bin holding reads with MAPQ ≤ mapQThreshold, or -1
+	 * if the threshold isn't a bin edge
+	 */
+	static int getThresholdBin(int mapQThreshold) {
+		for(int bin = 0; bin < N_MAPQ_BINS; bin++) {
+			if(MAPQ_BIN_UPPER_EDGES[bin] == mapQThreshold) {
+				return bin;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the MAPQ bin edges, comma-separated (e.g., for error
+	 * messages)
+	 */
+	static String getMapQBinEdges() {
+		StringBuilder edges = new StringBuilder();
+		for(int edge : MAPQ_BIN_UPPER_EDGES) {
+			edges.append(edges.length() > 0 ? ", " : "").append(edge);
+		}
+		return edges.toString();
+	}
+
+	/**
+	 * @param mapQBins
+	 * @param thresholdBin see getThresholdBin()
+	 * @return the number of reads with MAPQ ≤ the threshold
+	 */
+	static int sumBins(int[] mapQBins, int thresholdBin) {
+		int n = 0;
+		for(int bin = 0; bin <= thresholdBin; bin++) {
+			n += mapQBins[bin];
+		}
+		return n;
+	}
+
+	/**
+	 * Add a run of complete loci that all have these counts.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param mapQBins The number of reads (aligned or deleted) in each MAPQ bin
+	 * @throws IOException
+	 */
+	public void addCovered(String contig, int start, int end, int depthExcludingIndels,
+			int nDeletedInRecord, int[] mapQBins) throws IOException {
+		if(!runIncomplete && extendsRun(contig, start) && runDepth == depthExcludingIndels
+				&& runDeleted == nDeletedInRecord && Arrays.equals(runBins, mapQBins)) {
+			runEnd = end;
+			return;
+		}
+		startRun(contig, start, end, false);
+		runDepth = depthExcludingIndels;
+		runDeleted = nDeletedInRecord;
+		System.arraycopy(mapQBins, 0, runBins, 0, N_MAPQ_BINS);
+	}
+
+	/**
+	 * Add a run of complete loci with no reads.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	public void addUncovered(String contig, int start, int end) throws IOException {
+		if(!runIncomplete && extendsRun(contig, start) && runDepth == 0 && runDeleted == 0
+				&& isEmpty(runBins)) {
+			runEnd = end;
+			return;
+		}
+		startRun(contig, start, end, false);
+		runDepth = runDeleted = 0;
+		Arrays.fill(runBins, 0);
+	}
+
+	/**
+	 * Add a run of incomplete (i.e., 'N') loci.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	public void addIncomplete(String contig, int start, int end) throws IOException {
+		if(runIncomplete && extendsRun(contig, start)) {
+			runEnd = end;
+			return;
+		}
+		startRun(contig, start, end, true);
+	}
+
+	/**
+	 * Write the pending run, the end of the track, and the index.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		writeRun();
+		out.close();
+		index.write(getIndexFile(track), dictionary);
+	}
+
+	/**
+	 * @param track
+	 * @return the sidecar index for the track
+	 */
+	public static File getIndexFile(File track) {
+		return new File(track.getPath() + INDEX_EXTENSION);
+	}
+
+	private boolean extendsRun(String contig, int start) {
+		return runEnd >= runStart && runEnd + 1 == start && contig.equals(runContig);
+	}
+
+	private static boolean isEmpty(int[] bins) {
+		for(int count : bins) {
+			if(count != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the pending run and start a new one, starting a new segment
+	 * first if needed.
+	 *
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @param incomplete
+	 * @throws IOException
+	 */
+	private void startRun(String contig, int start, int end, boolean incomplete) throws IOException {
+		boolean contiguous = extendsRun(contig, start);
+		writeRun();
+
+		if(!contiguous || start - segmentStart >= INDEX_INTERVAL) {
+			if(!contig.equals(runContig)) {
+				runContigIndex = dictionary.getSequenceIndex(contig);
+				if(runContigIndex < 0) {
+					throw new IOException(contig + " is not in the track's sequence dictionary.");
+				}
+			}
+			index.add(runContigIndex, start, out.getFilePointer());
+			out.write(SEGMENT);
+			writeVarInt(out, runContigIndex);
+			writeVarInt(out, start);
+			segmentStart = start;
+		}
+
+		runContig = contig;
+		runStart = start;
+		runEnd = end;
+		runIncomplete = incomplete;
+	}
+
+	private void writeRun() throws IOException {
+		if(runEnd < runStart) {
+			return;
+		}
+		if(runIncomplete) {
+			out.write(INCOMPLETE);
+			writeVarInt(out, runEnd - runStart + 1);
+			return;
+		}
+		out.write(COVERED);
+		writeVarInt(out, runEnd - runStart + 1);
+		writeVarInt(out, runDepth);
+		writeVarInt(out, runDeleted);
+		for(int count : runBins) {
+			writeVarInt(out, count);
+		}
+	}
+
+	/**
+	 * Write a non-negative int in 7-bit groups, low bits first.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	static void writeVarInt(OutputStream out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Concatenate the tracks written for each shard (in coordinate order)
+	 * into one track, and merge their indexes. Shard files are removed.
+	 *
+	 * @param shards
+	 * @param merged
+	 * @throws IOException
+	 */
+	static void merge(List<File> shards, File merged) throws IOException {
+
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		byte[] buffer = new byte[1 << 16];
+		IndexBuilder index = new IndexBuilder();
+		SAMSequenceDictionary dictionary = null;
+		CoverageTrackReader.Index shardIndex;
+		long base = 0, remaining;
+		int n;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(merged));
+		try {
+			for(File shard : shards) {
+
+				/* Shift the shard's offsets by the bytes written before it */
+				shardIndex = CoverageTrackReader.Index.read(getIndexFile(shard));
+				dictionary = shardIndex.dictionary;
+				for(int i = 0; i < shardIndex.size(); i++) {
+					index.add(shardIndex.contigIndexes[i], shardIndex.starts[i],
+							BlockCompressedFilePointerUtil.makeFilePointer(
+									BlockCompressedFilePointerUtil.getBlockAddress(shardIndex.offsets[i]) + base,
+									BlockCompressedFilePointerUtil.getBlockOffset(shardIndex.offsets[i])));
+				}
+
+				remaining = shard.length() - eof.length;
+				base += remaining;
+				InputStream in = new FileInputStream(shard);
+				try {
+					while(remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+						out.write(buffer, 0, n);
+						remaining -= n;
+					}
+				} finally {
+					in.close();
+				}
+				if(!shard.delete()) {
+					logger.warn("Could not remove temporary shard track " + shard);
+				}
+				if(!getIndexFile(shard).delete()) {
+					logger.warn("Could not remove temporary shard track index " + getIndexFile(shard));
+				}
+			}
+			out.write(eof);
+		} finally {
+			out.close();
+		}
+
+		index.write(getIndexFile(merged), dictionary);
+	}
+
+	/**
+	 * Collect the index entries (segment starts) as they're written.
+	 */
+	private static class IndexBuilder {
+
+		private int size = 0;
+		private int[] contigIndexes = new int[1024], starts = new int[1024];
+		private long[] offsets = new long[1024];
+
+		void add(int contigIndex, int start, long offset) {
+			if(size == starts.length) {
+				contigIndexes = Arrays.copyOf(contigIndexes, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			contigIndexes[size] = contigIndex;
+			starts[size] = start;
+			offsets[size++] = offset;
+		}
+
+		void write(File indexFile, SAMSequenceDictionary dictionary) throws IOException {
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(indexFile)));
+			try {
+				dos.writeUTF(MAGIC);
+				dos.writeInt(N_MAPQ_BINS);
+				for(int edge : MAPQ_BIN_UPPER_EDGES) {
+					dos.writeInt(edge);
+				}
+				dos.writeInt(dictionary.size());
+				for(SAMSequenceRecord seq : dictionary.getSequences()) {
+					dos.writeUTF(seq.getSequenceName());
+					dos.writeInt(seq.getSequenceLength());
+				}
+				dos.writeInt(size);
+				for(int i = 0; i < size; i++) {
+					dos.writeInt(contigIndexes[i]);
+					dos.writeInt(starts[i]);
+					dos.writeLong(offsets[i]);
+				}
+			} finally {
+				dos.close();
+			}
+		}
+	}
+
+	/**
+	 * Check that a file starts with the track index magic string.
+	 *
+	 * @param dis
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	static void checkMagic(DataInputStream dis, File indexFile) throws IOException {
+		if(!MAGIC.equals(dis.readUTF())) {
+			throw new IOException(indexFile + " is not a DRF coverage track index.");
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.File;
+import java.io.IOException;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+
+/**
+ * Summarize the loci walked in fixed-size bins rather than writing every
+ * dark base: one line per bin with the number of complete, incomplete,
+ * low-depth, low-MAPQ, and dark (low depth or low MAPQ) bases, the
+ * fraction of complete bases that are dark, and the mean depth.
+ *
+ * Bins are on a fixed grid on each contig (0-based [k * binSize, (k + 1) *
+ * binSize), clipped to the contig's length), so runs over different
+ * intervals line up. Only bases that were walked are counted, and only
+ * bins with at least one walked base are written. Each locus is classified
+ * on its own, without --min-region-size, so nothing is buffered beyond the
+ * current bin's counts.
+ *
+ * The output is a BGZF, tabix-indexed BED file with a '#' header line.
+ *
+ * @author markebbert
+ *
+ */
+public class DarkRegionBinWriter {
+
+	static final String HEADER = "#chrom\tstart\tend\tcomplete\tincomplete\tlow_depth"
+			+ "\tlow_mapq\tdark\tdark_fraction\tmean_depth\n";
+
+	private final BgzfBedWriter writer;
+	private final BedRecordEncoder encoder = new BedRecordEncoder();
+	private final SAMSequenceDictionary dictionary;
+	private final int binSize;
+
+	/* The current bin (0-based, end exclusive), or null contig if none */
+	private String contig;
+	private int binStart, binEnd;
+	private long nComplete, nIncomplete, nLowDepth, nLowMapQ, nDark;
+	private double sumDepth;
+
+	/**
+	 *
+	 * @param out
+	 * @param binSize
+	 * @param dictionary The reference's, to clip the last bin on each contig
+	 * @throws IOException
+	 */
+	public DarkRegionBinWriter(File out, int binSize, SAMSequenceDictionary dictionary)
+			throws IOException {
+		this.writer = new BgzfBedWriter(out, !out.getPath().startsWith("/dev/null"));
+		this.binSize = binSize;
+		this.dictionary = dictionary;
+		writer.write(HEADER);
+	}
+
+	/**
+	 * Count a run of complete loci that all have the same counts.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param lowDepth
+	 * @param lowMapQ
+	 * @throws IOException
+	 */
+	void addCompleteRun(String contig, int start, int end, double depthExcludingIndels,
+			boolean lowDepth, boolean lowMapQ) throws IOException {
+		int n;
+		while(start <= end) {
+			moveTo(contig, start);
+			n = Math.min(end, binEnd) - start + 1;
+			nComplete += n;
+			sumDepth += depthExcludingIndels * n;
+			if(lowDepth) {
+				nLowDepth += n;
+			}
+			if(lowMapQ) {
+				nLowMapQ += n;
+			}
+			if(lowDepth || lowMapQ) {
+				nDark += n;
+			}
+			start += n;
+		}
+	}
+
+	/**
+	 * Count a run of incomplete loci.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	void addIncompleteRun(String contig, int start, int end) throws IOException {
+		int n;
+		while(start <= end) {
+			moveTo(contig, start);
+			n = Math.min(end, binEnd) - start + 1;
+			nIncomplete += n;
+			start += n;
+		}
+	}
+
+	/**
+	 * Write the current bin and start the one holding 'pos', unless 'pos' is
+	 * in the current bin. Loci must come in order.
+	 *
+	 * @param contig
+	 * @param pos 1-based
+	 * @throws IOException
+	 */
+	private void moveTo(String contig, int pos) throws IOException {
+		if(contig.equals(this.contig) && pos <= binEnd) {
+			return;
+		}
+		writeBin();
+		this.contig = contig;
+		binStart = (pos - 1) / binSize * binSize;
+		binEnd = (int) Math.min((long) binStart + binSize,
+				dictionary.getSequence(contig).getSequenceLength());
+	}
+
+	/**
+	 * Write the current bin, if any, and reset the counts.
+	 *
+	 * @throws IOException
+	 */
+	private void writeBin() throws IOException {
+		if(null == contig) {
+			return;
+		}
+		encoder.reset().contig(contig).field(binStart).field(binEnd)
+				.field(nComplete).field(nIncomplete).field(nLowDepth)
+				.field(nLowMapQ).field(nDark);
+		if(nComplete > 0) {
+			encoder.field(Math.round((double) nDark / nComplete * 10000) / 10000.0)
+					.field(Math.round(sumDepth / nComplete * 100) / 100.0);
+		}
+		else {
+			/* Nothing complete to average over */
+			encoder.field(-1).field(-1);
+		}
+		encoder.endLine();
+		encoder.writeTo(writer);
+
+		contig = null;
+		nComplete = nIncomplete = nLowDepth = nLowMapQ = nDark = 0;
+		sumDepth = 0;
+	}
+
+	/**
+	 * Write the last bin and close the file.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		writeBin();
+		writer.close();
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Holds the loci of a dark region (low depth or low MAPQ) until we know
+ * whether the region is large enough to write. In per-base mode, each locus
+ * becomes one BED line. The loci are held as primitive columns and only
+ * formatted if the region is written, so regions that never reach
+ * MIN_REGION_SIZE cost no per-base allocation. The columns are reused
+ * from one region to the next. In merged mode, contiguous loci are
+ * collapsed into a single BED line per run carrying aggregate statistics
+ * for the run.
+ *
+ * @author markebbert
+ *
+ */
+public class DarkRegionBuffer {
+
+	/**
+	 * The two dark-region BED formats. They differ only in the end
+	 * coordinate written in per-base mode.
+	 */
+	public enum RegionType { LOW_DEPTH, LOW_MAPQ }
+
+	private final RegionType type;
+	private final boolean merged;
+
+	/*
+	 * Per-base mode: one row per locus, or per run of loci with identical
+	 * counts (e.g., an uncovered gap), written as one line per locus. The
+	 * counts are whole numbers, so they're stored as ints. Contigs are only
+	 * references to the caller's Strings.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+	private int nRows = 0;
+	private String[] contigs = new String[INITIAL_CAPACITY];
+	private int[] positions = new int[INITIAL_CAPACITY];
+	private int[] runEnds = new int[INITIAL_CAPACITY];
+	private int[] nMapQBelow = new int[INITIAL_CAPACITY];
+	private int[] depths = new int[INITIAL_CAPACITY];
+	private int[] nDeleted = new int[INITIAL_CAPACITY];
+	private int[] totalDepths = new int[INITIAL_CAPACITY];
+	private int[] percMapQBelow = new int[INITIAL_CAPACITY];
+
+	private final BedRecordEncoder encoder = new BedRecordEncoder();
+
+	/* Merged mode: one entry per contiguous run */
+	private final ArrayList<MergedRun> runs = new ArrayList<MergedRun>();
+
+	/**
+	 *
+	 * @param type
+	 * @param merged Whether to write one line per contiguous run rather
+	 * than one line per locus
+	 */
+	public DarkRegionBuffer(RegionType type, boolean merged) {
+		this.type = type;
+		this.merged = merged;
+	}
+
+	/**
+	 * Add a run of contiguous loci that all have the same counts.
+	 *
+	 * @param contigName
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param nMapQBelowThreshold
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param totalDepthIncludingIndels
+	 * @param percentMapQBelowThreshold
+	 */
+	public void addRun(String contigName, int start, int end,
+			int nMapQBelowThreshold, double depthExcludingIndels, double nDeletedInRecord,
+			double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+
+		if(!merged) {
+			if(nRows == positions.length) {
+				grow();
+			}
+			contigs[nRows] = contigName;
+			positions[nRows] = start;
+			runEnds[nRows] = end;
+			nMapQBelow[nRows] = nMapQBelowThreshold;
+			depths[nRows] = (int) depthExcludingIndels;
+			nDeleted[nRows] = (int) nDeletedInRecord;
+			totalDepths[nRows] = (int) totalDepthIncludingIndels;
+			percMapQBelow[nRows++] = (int) percentMapQBelowThreshold;
+			return;
+		}
+
+		/* Extend the last run if contiguous, otherwise start a new one */
+		MergedRun run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+		if(null == run || !run.contig.equals(contigName) || run.end + 1 != start) {
+			run = new MergedRun(contigName, start);
+			runs.add(run);
+		}
+		run.add(start, end, depthExcludingIndels, nDeletedInRecord,
+				totalDepthIncludingIndels, percentMapQBelowThreshold);
+	}
+
+	/**
+	 * @return the number of rows (loci, or runs of loci) currently buffered
+	 */
+	public int size() {
+		return merged ? runs.size() : nRows;
+	}
+
+	/**
+	 * Write the buffered lines. The buffer is not cleared.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void write(BgzfBedWriter writer) throws IOException {
+		if(!merged) {
+			for(int i = 0; i < nRows; i++) {
+				for(int pos = positions[i]; pos <= runEnds[i]; pos++) {
+					if(type == RegionType.LOW_DEPTH) {
+						encodeLowDepthRegion(encoder, contigs[i], pos, nMapQBelow[i],
+								depths[i], nDeleted[i], totalDepths[i], percMapQBelow[i]);
+					}
+					else {
+						encodeLowMapQRegion(encoder, contigs[i], pos, nMapQBelow[i],
+								depths[i], nDeleted[i], totalDepths[i], percMapQBelow[i]);
+					}
+					encoder.writeTo(writer);
+				}
+			}
+			return;
+		}
+		for(MergedRun run : runs) {
+			run.encode(encoder);
+			encoder.writeTo(writer);
+		}
+	}
+
+	/**
+	 * Remove all buffered loci.
+	 */
+	public void clear() {
+		nRows = 0;
+		runs.clear();
+	}
+
+	/**
+	 * Save the buffered loci (e.g., a region left open at the end of a
+	 * shard; see ShardBoundary), to be read back with load().
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(size());
+		if(!merged) {
+			for(int i = 0; i < nRows; i++) {
+				out.writeUTF(contigs[i]);
+				out.writeInt(positions[i]);
+				out.writeInt(runEnds[i]);
+				out.writeInt(nMapQBelow[i]);
+				out.writeInt(depths[i]);
+				out.writeInt(nDeleted[i]);
+				out.writeInt(totalDepths[i]);
+				out.writeInt(percMapQBelow[i]);
+			}
+			return;
+		}
+		for(MergedRun run : runs) {
+			out.writeUTF(run.contig);
+			out.writeInt(run.start);
+			out.writeInt(run.end);
+			out.writeLong(run.nLoci);
+			out.writeLong(run.nCoveredLoci);
+			out.writeDouble(run.sumDepth);
+			out.writeDouble(run.sumPercMapQ);
+			out.writeDouble(run.sumDeleted);
+			out.writeDouble(run.minDepth);
+			out.writeDouble(run.maxDepth);
+		}
+	}
+
+	/**
+	 * Read back loci written by save().
+	 *
+	 * @param in
+	 * @param type
+	 * @param merged Must be the same as the saved buffer's
+	 * @return
+	 * @throws IOException
+	 */
+	static DarkRegionBuffer load(DataInputStream in, RegionType type, boolean merged) throws IOException {
+		DarkRegionBuffer buffer = new DarkRegionBuffer(type, merged);
+		int size = in.readInt();
+		for(int i = 0; i < size; i++) {
+			if(!merged) {
+				if(buffer.nRows == buffer.positions.length) {
+					buffer.grow();
+				}
+				buffer.contigs[i] = in.readUTF();
+				buffer.positions[i] = in.readInt();
+				buffer.runEnds[i] = in.readInt();
+				buffer.nMapQBelow[i] = in.readInt();
+				buffer.depths[i] = in.readInt();
+				buffer.nDeleted[i] = in.readInt();
+				buffer.totalDepths[i] = in.readInt();
+				buffer.percMapQBelow[i] = in.readInt();
+				buffer.nRows++;
+				continue;
+			}
+			MergedRun run = new MergedRun(in.readUTF(), in.readInt());
+			run.end = in.readInt();
+			run.nLoci = in.readLong();
+			run.nCoveredLoci = in.readLong();
+			run.sumDepth = in.readDouble();
+			run.sumPercMapQ = in.readDouble();
+			run.sumDeleted = in.readDouble();
+			run.minDepth = in.readDouble();
+			run.maxDepth = in.readDouble();
+			buffer.runs.add(run);
+		}
+		return buffer;
+	}
+
+	private void grow() {
+		int capacity = positions.length * 2;
+		contigs = Arrays.copyOf(contigs, capacity);
+		positions = Arrays.copyOf(positions, capacity);
+		runEnds = Arrays.copyOf(runEnds, capacity);
+		nMapQBelow = Arrays.copyOf(nMapQBelow, capacity);
+		depths = Arrays.copyOf(depths, capacity);
+		nDeleted = Arrays.copyOf(nDeleted, capacity);
+		totalDepths = Arrays.copyOf(totalDepths, capacity);
+		percMapQBelow = Arrays.copyOf(percMapQBelow, capacity);
+	}
+
+    /**
+     * Create a string for this low-depth region for output in a .bed file. Will
+     * convert to 0-based positions since .bed files are 0-based.
+     *
+     * @param contigName
+     * @param position
+     * @param nMapQBelowThreshold
+     * @param depthExcludingIndels
+     * @param percentMapQBelowThreshold
+     * @return
+     */
+	static String lowDepthRegionToString(String contigName, int position,
+			int nMapQBelowThreshold, double depthExcludingIndels, double nDeletedInRecord,
+			double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+
+		/* Bed files are 0-based. locus.getPosition() returns 1-based. #Annoying */
+		int posZeroBased = position - 1;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(contigName).append("\t")
+                .append(posZeroBased).append("\t")
+                .append(posZeroBased).append("\t")
+                .append(nMapQBelowThreshold).append("\t")
+                .append(percentMapQBelowThreshold).append("\t")
+                .append((int) depthExcludingIndels).append("\t")
+                .append(nDeletedInRecord).append("\t")
+                .append(totalDepthIncludingIndels).append("\n");
+        return sb.toString();
+	}
+
+	/**
+	 * Encode a low-depth line. Same format as lowDepthRegionToString().
+	 *
+	 * @param encoder
+	 * @param contigName
+	 * @param position
+	 * @param nMapQBelowThreshold
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param totalDepthIncludingIndels
+	 * @param percentMapQBelowThreshold
+	 */
+	static void encodeLowDepthRegion(BedRecordEncoder encoder, String contigName, int position,
+			int nMapQBelowThreshold, int depthExcludingIndels, double nDeletedInRecord,
+			double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+		encoder.reset().contig(contigName)
+				.field(position - 1)
+				.field(position - 1)
+				.field(nMapQBelowThreshold)
+				.field(percentMapQBelowThreshold)
+				.field(depthExcludingIndels)
+				.field(nDeletedInRecord)
+				.field(totalDepthIncludingIndels)
+				.endLine();
+	}
+
+	/**
+	 * Encode a low-MAPQ line. Same format as lowDepthRegionToString(), but
+	 * ending at 'position' rather than 'position - 1'.
+	 *
+	 * @param encoder
+	 * @param contigName
+	 * @param position
+	 * @param nMapQBelowThreshold
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param totalDepthIncludingIndels
+	 * @param percentMapQBelowThreshold
+	 */
+	static void encodeLowMapQRegion(BedRecordEncoder encoder, String contigName, int position,
+			int nMapQBelowThreshold, int depthExcludingIndels, double nDeletedInRecord,
+			double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+		encoder.reset().contig(contigName)
+				.field(position - 1)
+				.field(position)
+				.field(nMapQBelowThreshold)
+				.field(percentMapQBelowThreshold)
+				.field(depthExcludingIndels)
+				.field(nDeletedInRecord)
+				.field(totalDepthIncludingIndels)
+				.endLine();
+	}
+
+	/**
+	 * Aggregate statistics for one contiguous run of dark loci.
+	 */
+	private static class MergedRun {
+		final String contig;
+		final int start;
+		int end;
+		long nLoci, nCoveredLoci;
+		double sumDepth, sumPercMapQ, sumDeleted;
+		double minDepth = Double.MAX_VALUE, maxDepth = -1;
+
+		MergedRun(String contig, int start) {
+			this.contig = contig;
+			this.start = start;
+			this.end = start - 1;
+		}
+
+		void add(int start, int end, double depthExcludingIndels, double nDeletedInRecord,
+				double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+			int n = end - start + 1;
+			this.end = end;
+			nLoci += n;
+			sumDepth += depthExcludingIndels * n;
+			sumDeleted += nDeletedInRecord * n;
+			minDepth = Math.min(minDepth, depthExcludingIndels);
+			maxDepth = Math.max(maxDepth, depthExcludingIndels);
+
+			/* The MAPQ percentage is undefined (-1) where there are no reads */
+			if(totalDepthIncludingIndels > 0) {
+				nCoveredLoci += n;
+				sumPercMapQ += percentMapQBelowThreshold * n;
+			}
+		}
+
+		/**
+		 * Columns: chrom, start (0-based), end (exclusive), mean depth, min
+		 * depth, max depth (all excluding indels), mean percent of reads
+		 * with MAPQ below threshold (-1 if no reads), summed nDeletedInRecord.
+		 */
+		void encode(BedRecordEncoder encoder) {
+			encoder.reset().contig(contig)
+					.field(start - 1)
+					.field(end)
+					.field(round(sumDepth / nLoci))
+					.field((int) minDepth)
+					.field((int) maxDepth)
+					.field(nCoveredLoci > 0 ? round(sumPercMapQ / nCoveredLoci) : -1.0)
+					.field((long) sumDeleted)
+					.endLine();
+		}
+
+		private static double round(double value) {
+			return Math.round(value * 100) / 100.0;
+		}
+	}
+}
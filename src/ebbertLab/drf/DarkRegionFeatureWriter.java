@@ -0,0 +1,399 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * Count the dark bases in each feature (e.g., gene or exon) during the
+ * walk, rather than intersecting the per-base outputs afterwards. For each
+ * feature, it writes the number of complete, incomplete, low-depth,
+ * low-MAPQ ('camouflaged'), and dark (low depth or low MAPQ) bases walked,
+ * and the percentage of complete bases that are dark (as an
+ * IntervalMassTuple).
+ *
+ * Features are read from a BED file, or from a GTF/GFF file (by extension;
+ * either may be gzipped), keeping the features of one type. They're held
+ * per contig, sorted by start. Because loci are walked in order, each
+ * contig's features are swept alongside the walk: a feature becomes active
+ * when the walk reaches its start and is dropped once the walk passes its
+ * end, so each run of loci is only checked against the features it could
+ * overlap. Features may overlap each other; each is counted in full.
+ *
+ * As with DarkRegionBinWriter, each locus is classified on its own,
+ * without --min-region-size. Only features with at least one walked base
+ * are written, once the walk is done, in reference order. The output is a
+ * BGZF, tabix-indexed BED file with a '#' header line.
+ *
+ * @author markebbert
+ *
+ */
+public class DarkRegionFeatureWriter {
+
+	private static Logger logger = Logger.getLogger(DarkRegionFeatureWriter.class);
+
+	static final String HEADER = "#chrom\tstart\tend\tname\tcomplete\tincomplete\tlow_depth"
+			+ "\tlow_mapq\tdark\tdark_percent\n";
+
+	/**
+	 * One contig's features, sorted by start, and their counts.
+	 */
+	private static class ContigFeatures {
+		final int[] starts, ends;
+		final String[] names;
+		final long[] complete, incomplete, lowDepth, lowMapQ, dark;
+
+		ContigFeatures(List<Interval> features) {
+			int n = features.size();
+			starts = new int[n];
+			ends = new int[n];
+			names = new String[n];
+			for(int i = 0; i < n; i++) {
+				starts[i] = features.get(i).getStart();
+				ends[i] = features.get(i).getEnd();
+				names[i] = features.get(i).getName();
+			}
+			complete = new long[n];
+			incomplete = new long[n];
+			lowDepth = new long[n];
+			lowMapQ = new long[n];
+			dark = new long[n];
+		}
+	}
+
+	private final File out;
+	private final SAMSequenceDictionary dictionary;
+	private final Map<String, ContigFeatures> features = new HashMap<String, ContigFeatures>();
+
+	/* The contig being walked, its next inactive feature, and the active ones */
+	private String contig;
+	private ContigFeatures current;
+	private int next;
+	private int[] active = new int[16];
+	private int nActive;
+
+	/**
+	 *
+	 * @param featureFile BED, or GTF/GFF (.gtf, .gff, .gff3, optionally .gz)
+	 * @param featureType For a GTF/GFF, the type of feature (column 3) to
+	 * keep (e.g., 'gene' or 'exon'); ignored for a BED
+	 * @param out
+	 * @param dictionary The reference's; features on other sequences are
+	 * skipped
+	 * @throws IOException
+	 */
+	public DarkRegionFeatureWriter(File featureFile, String featureType, File out,
+			SAMSequenceDictionary dictionary) throws IOException {
+		this.out = out;
+		this.dictionary = dictionary;
+		load(featureFile, featureType);
+	}
+
+	/**
+	 * @param file
+	 * @return whether the file is a GTF/GFF rather than a BED, by its
+	 * extension
+	 */
+	static boolean isGtf(File file) {
+		String name = file.getName().toLowerCase();
+		if(name.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		return name.endsWith(".gtf") || name.endsWith(".gff") || name.endsWith(".gff3");
+	}
+
+	/**
+	 * Read the features and index them by contig.
+	 *
+	 * @param file
+	 * @param featureType
+	 * @throws IOException
+	 */
+	private void load(File file, String featureType) throws IOException {
+		boolean gtf = isGtf(file);
+		Map<String, List<Interval>> byContig = new HashMap<String, List<Interval>>();
+		int nFeatures = 0, nSkipped = 0, lineNumber = 0;
+		String line;
+		String[] toks;
+		Interval feature;
+		BufferedReader br = IOUtil.openFileForBufferedReading(file);
+		try {
+			while(null != (line = br.readLine())) {
+				lineNumber++;
+				if(line.isEmpty() || line.startsWith("#") || line.startsWith("track")
+						|| line.startsWith("browser")) {
+					continue;
+				}
+				toks = line.split("\t");
+				try {
+					if(gtf) {
+						if(toks.length < 9 || !featureType.equals(toks[2])) {
+							continue;
+						}
+						feature = new Interval(toks[0], Integer.parseInt(toks[3]),
+								Integer.parseInt(toks[4]), "-".equals(toks[6]),
+								getGtfName(toks[8], featureType));
+					}
+					else {
+						int start = Integer.parseInt(toks[1]) + 1, end = Integer.parseInt(toks[2]);
+						feature = new Interval(toks[0], start, end, false,
+								toks.length > 3 ? toks[3] : toks[0] + ":" + start + "-" + end);
+					}
+				} catch (RuntimeException e) {
+					throw new IOException("Could not parse line " + lineNumber + " of " + file + ": "
+							+ line);
+				}
+
+				if(null == dictionary.getSequence(feature.getContig())) {
+					nSkipped++;
+					continue;
+				}
+				List<Interval> contigFeatures = byContig.get(feature.getContig());
+				if(null == contigFeatures) {
+					contigFeatures = new ArrayList<Interval>();
+					byContig.put(feature.getContig(), contigFeatures);
+				}
+				contigFeatures.add(feature);
+				nFeatures++;
+			}
+		} finally {
+			br.close();
+		}
+
+		Comparator<Interval> byStart = new Comparator<Interval>() {
+			@Override
+			public int compare(Interval a, Interval b) {
+				return a.getStart() != b.getStart() ? Integer.compare(a.getStart(), b.getStart())
+						: Integer.compare(a.getEnd(), b.getEnd());
+			}
+		};
+		for(Map.Entry<String, List<Interval>> entry : byContig.entrySet()) {
+			entry.getValue().sort(byStart);
+			features.put(entry.getKey(), new ContigFeatures(entry.getValue()));
+		}
+
+		logger.info("Loaded " + nFeatures + (gtf ? " '" + featureType + "'" : "")
+				+ " features from " + file);
+		if(nSkipped > 0) {
+			logger.warn("Skipped " + nSkipped + " features on sequences not in the reference.");
+		}
+		if(0 == nFeatures) {
+			throw new IOException("No features to count in " + file + (gtf
+					? " (is '" + featureType + "' the right --feature-type?)" : "") + ".");
+		}
+	}
+
+	/**
+	 * Name a GTF/GFF feature by its gene (gene_name, gene_id, Name, or ID),
+	 * adding its own ID (e.g., exon_id or transcript_id) for other types.
+	 *
+	 * @param attributes Column 9, in GTF (key "value";) or GFF3 (key=value;)
+	 * form
+	 * @param featureType
+	 * @return
+	 */
+	static String getGtfName(String attributes, String featureType) {
+		Map<String, String> values = new HashMap<String, String>();
+		int sep, space;
+		String key, value;
+		for(String attribute : attributes.split(";")) {
+			attribute = attribute.trim();
+			/* Split at the first '=' (GFF3) or space (GTF) */
+			sep = attribute.indexOf('=');
+			space = attribute.indexOf(' ');
+			if(sep < 0 || (space >= 0 && space < sep)) {
+				sep = space;
+			}
+			if(sep <= 0) {
+				continue;
+			}
+			key = attribute.substring(0, sep);
+			value = attribute.substring(sep + 1).trim();
+			if(value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+				value = value.substring(1, value.length() - 1);
+			}
+			if(!values.containsKey(key)) {
+				values.put(key, value);
+			}
+		}
+
+		String name = null;
+		for(String k : Arrays.asList("gene_name", "gene_id", "Name", "ID")) {
+			if(null != values.get(k)) {
+				name = values.get(k);
+				break;
+			}
+		}
+		String id = values.get(featureType + "_id");
+		if(null == name) {
+			return null == id ? "." : id;
+		}
+		return "gene".equals(featureType) || null == id ? name : name + ":" + id;
+	}
+
+	/**
+	 * Count a run of complete loci that all have the same classification.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param lowDepth
+	 * @param lowMapQ
+	 */
+	void addCompleteRun(String contig, int start, int end, boolean lowDepth, boolean lowMapQ) {
+		int i, n;
+		moveTo(contig, end);
+		for(int a = 0; a < nActive; a++) {
+			i = active[a];
+			n = Math.min(end, current.ends[i]) - Math.max(start, current.starts[i]) + 1;
+			if(n <= 0) {
+				continue;
+			}
+			current.complete[i] += n;
+			if(lowDepth) {
+				current.lowDepth[i] += n;
+			}
+			if(lowMapQ) {
+				current.lowMapQ[i] += n;
+			}
+			if(lowDepth || lowMapQ) {
+				current.dark[i] += n;
+			}
+		}
+		dropPassed(end);
+	}
+
+	/**
+	 * Count a run of incomplete loci.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 */
+	void addIncompleteRun(String contig, int start, int end) {
+		int i, n;
+		moveTo(contig, end);
+		for(int a = 0; a < nActive; a++) {
+			i = active[a];
+			n = Math.min(end, current.ends[i]) - Math.max(start, current.starts[i]) + 1;
+			if(n > 0) {
+				current.incomplete[i] += n;
+			}
+		}
+		dropPassed(end);
+	}
+
+	/**
+	 * Switch to the contig's features if it's a new contig, and activate
+	 * every feature starting at or before 'end'.
+	 *
+	 * @param contig
+	 * @param end 1-based, inclusive
+	 */
+	private void moveTo(String contig, int end) {
+		if(!contig.equals(this.contig)) {
+			this.contig = contig;
+			current = features.get(contig);
+			next = 0;
+			nActive = 0;
+		}
+		if(null == current) {
+			return;
+		}
+		while(next < current.starts.length && current.starts[next] <= end) {
+			if(nActive == active.length) {
+				active = Arrays.copyOf(active, nActive * 2);
+			}
+			active[nActive++] = next++;
+		}
+	}
+
+	/**
+	 * Drop the active features that end at or before 'pos', since loci come
+	 * in order.
+	 *
+	 * @param pos 1-based
+	 */
+	private void dropPassed(int pos) {
+		int kept = 0;
+		for(int a = 0; a < nActive; a++) {
+			if(current.ends[active[a]] > pos) {
+				active[kept++] = active[a];
+			}
+		}
+		nActive = kept;
+	}
+
+	/**
+	 * @param contig
+	 * @param features
+	 * @param i
+	 * @return the feature and the percentage of its complete bases that are
+	 * dark (-1 if none are complete)
+	 */
+	private static IntervalMassTuple getDarkPercent(String contig, ContigFeatures features, int i) {
+		return new IntervalMassTuple(new Interval(contig, features.starts[i], features.ends[i],
+				false, features.names[i]), features.complete[i] > 0
+						? Math.round((double) features.dark[i] / features.complete[i] * 10000) / 100.0
+						: -1);
+	}
+
+	/**
+	 * Write every feature with at least one walked base.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		BgzfBedWriter writer = new BgzfBedWriter(out, !out.getPath().startsWith("/dev/null"));
+		BedRecordEncoder encoder = new BedRecordEncoder();
+		ContigFeatures contigFeatures;
+		IntervalMassTuple tuple;
+		try {
+			writer.write(HEADER);
+			for(SAMSequenceRecord seq : dictionary.getSequences()) {
+				contigFeatures = features.get(seq.getSequenceName());
+				if(null == contigFeatures) {
+					continue;
+				}
+				for(int i = 0; i < contigFeatures.starts.length; i++) {
+					if(0 == contigFeatures.complete[i] + contigFeatures.incomplete[i]) {
+						continue;
+					}
+					tuple = getDarkPercent(seq.getSequenceName(), contigFeatures, i);
+					encoder.reset().contig(tuple.interval.getContig())
+							.field(tuple.interval.getStart() - 1).field(tuple.interval.getEnd())
+							.field(tuple.interval.getName())
+							.field(contigFeatures.complete[i]).field(contigFeatures.incomplete[i])
+							.field(contigFeatures.lowDepth[i]).field(contigFeatures.lowMapQ[i])
+							.field(contigFeatures.dark[i]);
+					if(contigFeatures.complete[i] > 0) {
+						encoder.field(tuple.mass);
+					}
+					else {
+						encoder.field(-1);
+					}
+					encoder.endLine();
+					encoder.writeTo(writer);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -4,33 +4,32 @@
 package ebbertLab.drf;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.TreeSet;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamFiles;
+import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
-import htsjdk.samtools.cram.ref.ReferenceSource;
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.SamLocusIterator;
 import htsjdk.samtools.util.SamLocusIterator.LocusInfo;
 import htsjdk.samtools.util.SamLocusIterator.RecordAndOffset;
 import htsjdk.samtools.filter.SamRecordFilter;
-import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 
 
 /**
@@ -40,20 +39,99 @@ import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 public class DarkRegionFinder {
 	
 	private static Logger logger = Logger.getLogger(DarkRegionFinder.class);
-	private static int MAPQ_THRESHOLD, MIN_DEPTH,
-						MIN_REGION_SIZE, MIN_MAPQ_MASS,
-                        MAX_ARRAY_SIZE = 10000;
+	private static int MAX_ARRAY_SIZE = 10000;
 	private static boolean EXCLUSIVE_REGIONS;
 	private static boolean INCLUDE_SUPPLEMENTARY;
-	private static IntervalList intervalList;
+
+	/*
+	 * Read pre-filtering (see ReadPreFilter). EXCLUDE_FLAGS is null to use
+	 * the flags implied by INCLUDE_SUPPLEMENTARY.
+	 */
+	private static Integer EXCLUDE_FLAGS = null;
+	private static int MIN_READ_MAPQ = 0, MAX_READ_SPAN = 0;
+
+	/*
+	 * How inputs are read (see openSam()). READ_AHEAD_CHUNKS is 0 to read
+	 * synchronously.
+	 */
+	private static int READ_AHEAD_CHUNKS = 0;
+	private static boolean VALIDATE_CRC = true;
+
+	/*
+	 * The thresholds are per instance so several configurations can share
+	 * one traversal (see addThresholdConfig()).
+	 */
+	private int mapQThreshold, minDepth, minRegionSize, minMapQMass;
+
+	/*
+	 * The interval list is per instance (not static) because the shard
+	 * runner creates one DarkRegionFinder per shard, each walking its
+	 * own intervals.
+	 */
+	private IntervalList intervalList;
+	private boolean userIntervals;
 	
-	Writer lowMapQWriter, lowDepthWriter, incWriter;
+	/*
+	 * Limit on the number of reads SamLocusIterator will accumulate at a
+	 * single locus. Depth and MAPQ counts are truncated beyond it unless
+	 * exact depth is requested (see setExactDepth()).
+	 */
+	static final int MAX_READS_PER_LOCUS = 10000;
+	private int maxReadsPerLocus = MAX_READS_PER_LOCUS;
+	
+	private ValidationStringency vs;
+	private ReadPreFilter readFilter;
+	private boolean quiet = false;
+	private boolean pipelined = false;
+
+	BgzfBedWriter lowMapQWriter, lowDepthWriter, incWriter;
+	private final BedRecordEncoder incEncoder = new BedRecordEncoder();
+
+	/* Region state, carried from one locus to the next */
+	private double consecLowDepth = 0, consecLowMapQ = 0, consecInc = 0, nLociAssessed = 0;
+	private DarkRegionBuffer lowDepthRegion, lowMapQRegion;
+
+	/* Incomplete regions are buffered as runs rather than per-base strings */
+	private ArrayList<Interval> incRuns = new ArrayList<Interval>();
+
+	/* Write one line per contiguous run rather than one line per base */
+	private boolean mergedOutput = false;
+	private HashSet<String> ignore = new HashSet<String>();
 
 	private SAMFileHeader header;
 	private SamReader samReader;
 	
-	private IndexedFastaSequenceFile hgRefReader;
+	private ReferenceSequenceFile hgRefReader;
 	private SAMSequenceDictionary hgRefDictionary;
+	private ReferenceBaseCache refCache;
+	private ReferenceNRunIndex nRunIndex;
+
+	/* Optionally, write every locus's counts to a track for re-thresholding */
+	private CoverageTrackWriter trackWriter;
+	private int[] mapQBins;
+
+	/* Optionally, summarize loci in fixed bins rather than writing regions */
+	private DarkRegionBinWriter binWriter;
+
+	/* Optionally, count the dark bases in each feature (e.g., gene) */
+	private DarkRegionFeatureWriter featureWriter;
+
+	/*
+	 * Optionally, other threshold configurations fed from this traversal.
+	 * Each counts reads with MAPQ ≤ its threshold from the MAPQ bins.
+	 */
+	private final List<DarkRegionFinder> gridFinders = new ArrayList<DarkRegionFinder>();
+	private int mapQThresholdBin = -1;
+
+	/*
+	 * When walking one shard of a sharded walk, the regions at its ends
+	 * (see ShardBoundary), and whether each category (low depth, low MAPQ,
+	 * and incomplete) is written yet. The finder that joins the shards
+	 * (see joinShards()) writes each category only until it ends instead.
+	 */
+	private ShardBoundary shardBoundary;
+	private boolean joining = false;
+	private final boolean[] writing = {true, true, true};
 	
 	private Runtime runtime;
 
@@ -77,28 +155,57 @@ public class DarkRegionFinder {
                         final int mapQThreshold, final int minMapQMass, final int minRegionSize,
                         int minDepth, final boolean exclusiveRegions, final ValidationStringency vs
                         , List<String> intervalStringList, final boolean includeSupplementary) throws IOException {
-		
 
-		lowDepthWriter = new OutputStreamWriter(new GZIPOutputStream(
-	              new FileOutputStream(outDepthBed)), "utf-8");
+		/*
+		 * Write block-gzipped (BGZF) output so the files can be indexed
+		 * and queried by region. Blocks are compressed in the background.
+		 */
+		this(DarkRegionFinder.openSam(samFile, hgRef), MappedFastaReference.openReference(hgRef),
+				openBedWriter(outDepthBed), openBedWriter(outMapQBed), openBedWriter(outIncBed),
+				mapQThreshold, minMapQMass, minRegionSize, minDepth, exclusiveRegions, vs,
+				intervalStringList, includeSupplementary);
+	}
+
+	/**
+	 * Find dark regions in a SamReader that is already open, writing to the
+	 * given writers. The reader and reference are left open when the walk
+	 * is done, so they can be reused for another walk (see
+	 * DarkRegionServer).
+	 *
+	 * @param samReader
+	 * @param hgRefReader
+	 * @param lowDepthWriter
+	 * @param lowMapQWriter
+	 * @param incWriter
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @param exclusiveRegions
+	 * @param vs
+	 * @param intervalStringList
+	 * @param includeSupplementary
+	 * @throws IOException
+	 */
+	DarkRegionFinder(SamReader samReader, ReferenceSequenceFile hgRefReader,
+			BgzfBedWriter lowDepthWriter, BgzfBedWriter lowMapQWriter, BgzfBedWriter incWriter,
+			final int mapQThreshold, final int minMapQMass, final int minRegionSize,
+			int minDepth, final boolean exclusiveRegions, final ValidationStringency vs,
+			List<String> intervalStringList, final boolean includeSupplementary) throws IOException {
+
+		this.lowDepthWriter = lowDepthWriter;
 		// lowDepthWriter.write("chrom\tstart\tend\tnMapQBelowThreshold\tdepth\tpercMapQBelowThreshold\n");
 
-		lowMapQWriter = new OutputStreamWriter(new GZIPOutputStream(
-	              new FileOutputStream(outMapQBed)), "utf-8");
+		this.lowMapQWriter = lowMapQWriter;
 		// lowMapQWriter.write("chrom\tstart\tend\tnMapQBelowThreshold\tdepth\tpercMapQBelowThreshold\n");
 
-		incWriter = new OutputStreamWriter(new GZIPOutputStream(
-	              new FileOutputStream(outIncBed)), "utf-8");
+		this.incWriter = incWriter;
 		// incWriter.write("chrom\tstart\tend\n");
 
-		DarkRegionFinder.MAPQ_THRESHOLD = mapQThreshold;
-		DarkRegionFinder.MIN_REGION_SIZE = minRegionSize;
-		DarkRegionFinder.MIN_DEPTH = minDepth;
-		DarkRegionFinder.MIN_MAPQ_MASS = minMapQMass;
-		DarkRegionFinder.EXCLUSIVE_REGIONS = exclusiveRegions;
-		DarkRegionFinder.INCLUDE_SUPPLEMENTARY = includeSupplementary;
+		setThresholds(mapQThreshold, minMapQMass, minRegionSize, minDepth);
+		DarkRegionFinder.setSharedOptions(exclusiveRegions, includeSupplementary);
 		
-		this.hgRefReader = new IndexedFastaSequenceFile(hgRef);
+		this.hgRefReader = hgRefReader;
 		this.hgRefDictionary = hgRefReader.getSequenceDictionary();
 		
 		if(null == hgRefDictionary) {
@@ -108,10 +215,32 @@ public class DarkRegionFinder {
 			throw new IOException(err);
 		}
 
-		this.samReader = DarkRegionFinder.openSam(samFile, vs, hgRef);
+		this.refCache = new ReferenceBaseCache(hgRefReader, ReferenceBaseCache.DEFAULT_WINDOW_SIZE);
+		setMergedOutput(false);
+
+		this.samReader = samReader;
+		this.vs = vs;
 		this.header = samReader.getFileHeader();
 
-		DarkRegionFinder.intervalList = generateIntervalList(intervalStringList, header);
+		this.intervalList = generateIntervalList(intervalStringList, header);
+		this.userIntervals = null != this.intervalList;
+
+		/*
+		 * Without user intervals, walk only the contigs that are in both the
+		 * SAM/BAM and the reference. With an index, the iterators then seek
+		 * straight past unknown contigs (decoys, HLA, alts, etc.) rather than
+		 * visiting every base. Without an index we can't seek, so those
+		 * contigs are still iterated and skipped one locus at a time.
+		 */
+		if(!userIntervals) {
+			if(samReader.hasIndex()) {
+				this.intervalList = generateReferenceIntervalList(header, hgRefDictionary);
+			}
+			else {
+				logger.info("SAM/BAM file is not indexed. Sequences that are not in the"
+						+ " reference will be iterated and skipped rather than skipped outright.");
+			}
+		}
 
 		
 		/* Get sample name(s) from the sam/bam file */
@@ -123,25 +252,291 @@ public class DarkRegionFinder {
         runtime = Runtime.getRuntime();
 	}
 
+	/**
+	 * Track the regions for one sample of a cohort. The cohort owns the
+	 * reference and the traversal, and passes each run of loci in through
+	 * processIncompleteRun() and processCompleteRun(). Set the thresholds
+	 * with setThresholds() before passing any in.
+	 *
+	 * @param outDepthBed
+	 * @param outMapQBed
+	 * @param outIncBed null to not write incomplete regions (they're the
+	 * same for every sample)
+	 * @param hgRefDictionary
+	 * @throws IOException
+	 */
+	DarkRegionFinder(final File outDepthBed, File outMapQBed, File outIncBed,
+			SAMSequenceDictionary hgRefDictionary) throws IOException {
+		lowDepthWriter = openBedWriter(outDepthBed);
+		lowMapQWriter = openBedWriter(outMapQBed);
+		incWriter = null == outIncBed ? null : openBedWriter(outIncBed);
+		this.hgRefDictionary = hgRefDictionary;
+		setMergedOutput(false);
+        runtime = Runtime.getRuntime();
+	}
+
+	/**
+	 * Join the regions that cross the boundaries between shards, with the
+	 * thresholds the shards were walked with (see joinShards()).
+	 *
+	 * @param boundary
+	 */
+	private DarkRegionFinder(ShardBoundary boundary) {
+		setThresholds(boundary.mapQThreshold, boundary.minMapQMass,
+				boundary.minRegionSize, boundary.minDepth);
+		setMergedOutput(boundary.mergedOutput);
+		this.joining = true;
+        runtime = Runtime.getRuntime();
+	}
+
+	/**
+	 * Set the thresholds for this DarkRegionFinder's regions.
+	 *
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 */
+	void setThresholds(final int mapQThreshold, final int minMapQMass,
+			final int minRegionSize, int minDepth) {
+		this.mapQThreshold = mapQThreshold;
+		this.minRegionSize = minRegionSize;
+		this.minDepth = minDepth;
+		this.minMapQMass = minMapQMass;
+	}
+
+	/**
+	 * Set how reads are pre-filtered, for every DarkRegionFinder in this
+	 * process (see ReadPreFilter).
+	 *
+	 * @param excludeFlags null to drop unmapped, secondary, duplicate, and
+	 * supplementary reads (or unmapped and secondary reads if supplementary
+	 * alignments are included)
+	 * @param minReadMapQ
+	 * @param maxReadSpan ≤ 0 for no limit
+	 */
+	static void setReadFilterOptions(final Integer excludeFlags, final int minReadMapQ,
+			final int maxReadSpan) {
+		DarkRegionFinder.EXCLUDE_FLAGS = excludeFlags;
+		DarkRegionFinder.MIN_READ_MAPQ = minReadMapQ;
+		DarkRegionFinder.MAX_READ_SPAN = maxReadSpan;
+	}
+
+	/**
+	 * Set how inputs are read, for every DarkRegionFinder in this process
+	 * (see openSam()).
+	 *
+	 * @param readAheadChunks The most chunks (of
+	 * ReadAheadSeekableStream.CHUNK_SIZE bytes) to read ahead of the
+	 * walker, or 0 to read synchronously
+	 * @param validateCrc Whether to check each BGZF block's CRC32
+	 */
+	static void setInputOptions(final int readAheadChunks, final boolean validateCrc) {
+		DarkRegionFinder.READ_AHEAD_CHUNKS = readAheadChunks;
+		DarkRegionFinder.VALIDATE_CRC = validateCrc;
+	}
+
+	/**
+	 * @return the read pre-filter options, as recorded with a run's
+	 * outputs (see RunManifest)
+	 */
+	static String getReadFilterOptions() {
+		return "exclude_flags=" + EXCLUDE_FLAGS + ",min_read_mapq=" + MIN_READ_MAPQ
+				+ ",max_read_span=" + MAX_READ_SPAN;
+	}
+
+	/**
+	 * Set the options shared by every DarkRegionFinder in this process.
+	 *
+	 * @param exclusiveRegions
+	 * @param includeSupplementary
+	 */
+	static void setSharedOptions(final boolean exclusiveRegions,
+			final boolean includeSupplementary) {
+		DarkRegionFinder.EXCLUSIVE_REGIONS = exclusiveRegions;
+		DarkRegionFinder.INCLUDE_SUPPLEMENTARY = includeSupplementary;
+	}
+
+
+	/**
+	 * Set how many reference bases to hold in memory at a time. If ≤ 0,
+	 * entire contigs are loaded.
+	 * 
+	 * @param windowSize
+	 */
+	public void setReferenceWindowSize(int windowSize) {
+		this.refCache = new ReferenceBaseCache(hgRefReader, windowSize);
+	}
+
+
+	/**
+	 * Write one BED line per contiguous dark or incomplete run, with
+	 * aggregate statistics for the run, rather than one line per base.
+	 * 
+	 * @param mergedOutput
+	 */
+	public void setMergedOutput(boolean mergedOutput) {
+		this.mergedOutput = mergedOutput;
+		this.lowDepthRegion = new DarkRegionBuffer(DarkRegionBuffer.RegionType.LOW_DEPTH, mergedOutput);
+		this.lowMapQRegion = new DarkRegionBuffer(DarkRegionBuffer.RegionType.LOW_MAPQ, mergedOutput);
+		for(DarkRegionFinder finder : gridFinders) {
+			finder.setMergedOutput(mergedOutput);
+		}
+	}
+
+
+	/**
+	 * Don't print the intervals or log the read filter counts for each
+	 * walk (e.g., for the many small walks of DarkRegionServer).
+	 * 
+	 * @param quiet
+	 */
+	void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+
+	/**
+	 * Count every read at every locus, rather than stopping at
+	 * MAX_READS_PER_LOCUS as SamLocusIterator does. Exact counts come from
+	 * the sweep walker, which keeps only per-position counters, so
+	 * startWalkingByLocus() walks by sweep instead.
+	 * 
+	 * @param exactDepth
+	 */
+	public void setExactDepth(boolean exactDepth) {
+		this.maxReadsPerLocus = exactDepth ? Integer.MAX_VALUE : MAX_READS_PER_LOCUS;
+	}
+
+	/**
+	 * Split the walk into stages on separate threads: reading and decoding
+	 * records (ReadDecoder), counting each locus (SweepLineCoverageWalker),
+	 * and classifying loci and encoding regions (LocusCountPipe), with
+	 * BgzfBedWriter compressing the output on its own threads.
+	 * SamLocusIterator builds its pileups on one thread, so
+	 * startWalkingByLocus() walks by sweep instead.
+	 * 
+	 * @param pipelined
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+
+	/**
+	 * Use a precomputed index of incomplete ('N') runs rather than checking
+	 * each reference base. With the sweep walker, incomplete runs are then
+	 * skipped as a whole without computing any coverage inside them.
+	 * 
+	 * @param nRunIndex
+	 */
+	public void setNRunIndex(ReferenceNRunIndex nRunIndex) {
+		this.nRunIndex = nRunIndex;
+	}
+
+
+	/**
+	 * Also write the counts for every locus walked (including a histogram
+	 * of MAPQs) to a binary track, so the BED files can be regenerated for
+	 * other thresholds with the 'rethreshold' command.
+	 * 
+	 * @param track
+	 * @throws IOException
+	 */
+	public void setCoverageTrack(File track) throws IOException {
+		this.trackWriter = new CoverageTrackWriter(track, header.getSequenceDictionary());
+		this.mapQBins = new int[CoverageTrackWriter.N_MAPQ_BINS];
+	}
+
+
+	/**
+	 * Summarize the loci in fixed-size bins (see DarkRegionBinWriter)
+	 * instead of buffering and writing regions. The region outputs are left
+	 * empty, so pass /dev/null for them.
+	 * 
+	 * @param out
+	 * @param binSize
+	 * @throws IOException
+	 */
+	public void setBinSummary(File out, int binSize) throws IOException {
+		this.binWriter = new DarkRegionBinWriter(out, binSize, hgRefDictionary);
+	}
+
+
+	/**
+	 * Also count the dark bases in each feature (see
+	 * DarkRegionFeatureWriter) and write them to 'out' once the walk is
+	 * done.
+	 * 
+	 * @param features A BED or GTF/GFF file
+	 * @param featureType The GTF/GFF feature type to count (e.g., 'gene')
+	 * @param out
+	 * @throws IOException
+	 */
+	public void setFeatureSummary(File features, String featureType, File out) throws IOException {
+		this.featureWriter = new DarkRegionFeatureWriter(features, featureType, out, hgRefDictionary);
+	}
+
+
+	/**
+	 * Also evaluate another combination of thresholds in the same
+	 * traversal, with its own regions and output files. The per-locus
+	 * counts are shared, so each added combination costs only its region
+	 * bookkeeping and output rather than another read of the SAM/BAM.
+	 * 
+	 * @param config Its MAPQ threshold must be one of CoverageTrackWriter's
+	 * MAPQ bin edges (see ThresholdConfig.parseGrid())
+	 * @param outDepthBed
+	 * @param outMapQBed
+	 * @param outIncBed
+	 * @throws IOException
+	 */
+	public void addThresholdConfig(ThresholdConfig config, File outDepthBed,
+			File outMapQBed, File outIncBed) throws IOException {
+		DarkRegionFinder finder = new DarkRegionFinder(outDepthBed, outMapQBed, outIncBed,
+				hgRefDictionary);
+		finder.setThresholds(config.mapQThreshold, config.minMapQMass,
+				config.minRegionSize, config.minDepth);
+		finder.mapQThresholdBin = CoverageTrackWriter.getThresholdBin(config.mapQThreshold);
+		finder.setMergedOutput(mergedOutput);
+		gridFinders.add(finder);
+		if(null == mapQBins) {
+			this.mapQBins = new int[CoverageTrackWriter.N_MAPQ_BINS];
+		}
+	}
+
 
 	/**
 	 * @throws Exception 
 	 */
 	public void startWalkingByLocus() throws Exception{
 
+		/*
+		 * SamLocusIterator keeps every read's record at every locus it
+		 * covers, so uncapped counts come from the sweep walker.
+		 */
+		if(Integer.MAX_VALUE == maxReadsPerLocus) {
+			logger.info("Counting exact depth with the sweep walker.");
+			startWalkingBySweep();
+			return;
+		}
+		if(pipelined) {
+			logger.info("Walking in pipelined stages with the sweep walker.");
+			startWalkingBySweep();
+			return;
+		}
+
 		SamLocusIterator sli;
 		
 		/*
 		 * If the user specified an interval list, only read those intervals.
 		 * Otherwise, start from the beginning.
 		 */
-		if(null != DarkRegionFinder.intervalList && DarkRegionFinder.intervalList.size() > 0) {
+		if(null != this.intervalList && this.intervalList.size() > 0) {
 			final boolean useIndex = true;
-			sli = new SamLocusIterator(samReader, DarkRegionFinder.intervalList, useIndex);
+			sli = new SamLocusIterator(samReader, this.intervalList, useIndex);
 		
-			for(Interval interval : intervalList) {
-				System.out.println("Interval: " + interval.toString());
-			}
+			printUserIntervals();
 		}
 		else {
 			sli = new SamLocusIterator(samReader);
@@ -167,357 +562,1011 @@ public class DarkRegionFinder {
 		 * Limiting the number of reads allowed to be accumulated when analyzing a specific loci.
 		 */
 		
-		sli.setMaxReadsToAccumulatePerLocus(10000);
+		sli.setMaxReadsToAccumulatePerLocus(MAX_READS_PER_LOCUS);
 		
 		/* setSamFilters */
-		if( INCLUDE_SUPPLEMENTARY == true ) {
-        	logger.info("Including supplementary alignments, but NOT secondary");
+		readFilter = newReadPreFilter(vs);
+		sli.setSamFilters(Collections.<SamRecordFilter>singletonList(readFilter));
 
-			/* 
-			 * Including supplementary and primary alignments ONLY.
-			 * 
-			 *  NOTE: Secondary alignments are multiply mapped
-			 *  NOTE: Supplementary alignments are chimeric
-			 *  
-			 *  Adding SecondaryAlignmentFilter() will REMOVE secondary alignments
-			 *  but NOT supplementary.
-			 */
-			List<SamRecordFilter> srf = new ArrayList<SamRecordFilter>();
-			srf.add(new SecondaryAlignmentFilter());
-		
-			sli.setSamFilters(srf);
-		}
+		/*
+		 * Only pull covered loci from SLI. The uncovered loci between them
+		 * are filled in here as whole runs rather than one empty LocusInfo
+		 * at a time.
+		 */
+		sli.setEmitUncoveredLoci(false);
+		List<Interval> ranges = getTraversalRanges(intervalList, header);
+		int rangeIdx = 0, nextPos = ranges.isEmpty() ? 0 : ranges.get(0).getStart();
+		Interval range;
 		
 		/* Walk along genome identifying 'dark' and 'camouflaged' regions */
-
 		LocusInfo locus;
-		double consecLowDepth = 0, consecLowMapQ = 0, consecInc = 0, nLociAssessed = 0;
-		int pos, nMapQBelowThreshold, mapq;
-		ArrayList<String> lowDepthRegion = new ArrayList<String>(),
-				lowMapQRegion = new ArrayList<String>(),
-				incRegion = new ArrayList<String>();
-		HashSet<String> ignore = new HashSet<String>();
-		String contig; byte[] bases; byte base;
-		List<RecordAndOffset> recs = null;
-		double percMapQBelowThreshold, depthExcludingIndels, totalDepthIncludingIndels, nDeletedInRecord;
-		boolean low_depth;
+		int nMapQBelowThreshold;
 		
 		while(sli.hasNext()){
 
-		    /* write out and clear regions if the arrays are getting too big (in order to save memory)
-		     */
-		    if ( consecInc > DarkRegionFinder.MIN_REGION_SIZE && incRegion.size() > DarkRegionFinder.MAX_ARRAY_SIZE) {
-		        writeRegion(incRegion, incWriter);
-		        incRegion.clear();
-            }
-            if ( consecLowDepth > DarkRegionFinder.MIN_REGION_SIZE && lowDepthRegion.size() > DarkRegionFinder.MAX_ARRAY_SIZE) {
-                writeRegion(lowDepthRegion, lowDepthWriter);
-                lowDepthRegion.clear();
-            }
-            if ( consecLowMapQ > DarkRegionFinder.MIN_REGION_SIZE && lowMapQRegion.size() > DarkRegionFinder.MAX_ARRAY_SIZE) {
-                writeRegion(lowMapQRegion, lowMapQWriter);
-                lowMapQRegion.clear();
-            }
-
 			locus = sli.next();
-			
-			contig = locus.getSequenceName();
-			
-			/*
-			 * If this contig is not in the ref, then skip. There's probably
-			 * a way to skip an entire contig. A good to-do.
-			 */
-			if(ignore.contains(contig)) {
-				continue;
-			}
-
-			/* Returns 1-based position */
-			pos = locus.getPosition();  
-
-						/* Ensure sequence is present in provided reference */
-			if(null == this.hgRefDictionary.getSequence(contig)){
-				logger.warn("BAM file contains alignments for " + contig
-						+ " but this sequence was not found in the provided"
-						+ " reference. Skipping.");
-				ignore.add(contig);
-				continue;
-			}
-
-			/* Expects 1-based position (inclusive to inclusive) */
-			bases = hgRefReader.getSubsequenceAt(contig, pos, pos).getBases();
-
-			/* Track progress */ 
-        	if(nLociAssessed > 0 && nLociAssessed % 1000000 == 0){
-        		logger.debug("Total loci assessed: " + nLociAssessed );
-        		logger.debug("Current contig and position: " + contig + ":" + locus.getPosition());
-        		
-        		// Calculate the used memory
-                //long totalMemory = runtime.totalMemory();
-                //long freeMemory = runtime.freeMemory();
-                //long usedMemory = totalMemory - freeMemory;
 
-                //logger.debug("Total memory (bytes): " + totalMemory);
-                //logger.debug("Free memory (bytes):  " + freeMemory);
-                //logger.debug("Used memory (bytes):  " + usedMemory);
-
-        	}		
-
-
-        	/* bases array contains only one element, so extract this base */
-			base = bases[0];
-
-			/* Record incomplete genomic regions (i.e., 'N') */
-			if(base == 'N' || base == 'n'){
-				incRegion.add(incompleteRegionToString(contig, pos));
-				consecInc++;
-
-				/* Write dark regions if large enough */
-				if(consecLowDepth >= DarkRegionFinder.MIN_REGION_SIZE){
-					writeRegion(lowDepthRegion, lowDepthWriter);
+			/* Fill in any ranges (or the rest of them) that SLI passed over */
+			while(rangeIdx < ranges.size()) {
+				range = ranges.get(rangeIdx);
+				if(range.getContig().equals(locus.getSequenceName())
+						&& locus.getPosition() <= range.getEnd()) {
+					break;
 				}
-				if(consecLowMapQ >= DarkRegionFinder.MIN_REGION_SIZE){
-					writeRegion(lowMapQRegion, lowMapQWriter);
+				if(nextPos <= range.getEnd()) {
+					processUncoveredRun(range.getContig(), nextPos, range.getEnd());
+				}
+				if(++rangeIdx < ranges.size()) {
+					nextPos = ranges.get(rangeIdx).getStart();
 				}
-                //logger.debug("Base is N across all:  " + base);
-
-				/* Clear regardless (i.e., even if the region wasn't large enough) */
-				lowMapQRegion.clear();
-				consecLowMapQ = 0;
-				lowDepthRegion.clear();
-				consecLowDepth = 0;
-
-				continue;
 			}
-	
-
-			/* Write incomplete regions if large enough. Clear in either case. */
-			if(consecInc >= DarkRegionFinder.MIN_REGION_SIZE) {
-				writeRegion(incRegion, incWriter);
+			if(locus.getPosition() > nextPos) {
+				processUncoveredRun(locus.getSequenceName(), nextPos, locus.getPosition() - 1);
 			}
-
-			/* Clear regardless because we know we're outside an incomplete
-			 * region
-			 */
-			incRegion.clear();
-			consecInc = 0; 		
-
-
-			low_depth = false;
-
-			/* Get depth, nOverlappingReads, and nDeletedInRecord at this position. */
-			depthExcludingIndels = locus.getRecordAndOffsets().size();
-			totalDepthIncludingIndels = locus.size();
-			nDeletedInRecord = locus.getDeletedInRecord().size();
+			nextPos = locus.getPosition() + 1;
 			
-
-			/* 
+			/*
 			 * Get number of reads with MAPQ ≤ threshold 
 			 */
 			
 			/*
-			 * Get all records at this position, including those
+			 * Count all records at this position, including those
 			 * that have a deletion at this position. Records/reads that have
 			 * a deletion are not included in the regular list of records, so
-			 * have to add them separately (locus.getDeletedInRecord()).
+			 * have to count them separately (locus.getDeletedInRecord()).
 			 */
-			recs = new ArrayList<RecordAndOffset>(locus.getRecordAndOffsets());
-			recs.addAll(locus.getDeletedInRecord()); 
 			nMapQBelowThreshold = 0;
-			for(RecordAndOffset rec : recs){
-				mapq = rec.getRecord().getMappingQuality();
-				if(mapq <= DarkRegionFinder.MAPQ_THRESHOLD){
+			for(RecordAndOffset rec : locus.getRecordAndOffsets()){
+				if(rec.getRecord().getMappingQuality() <= mapQThreshold){
+					nMapQBelowThreshold++;
+				}
+			}
+			for(RecordAndOffset rec : locus.getDeletedInRecord()){
+				if(rec.getRecord().getMappingQuality() <= mapQThreshold){
 					nMapQBelowThreshold++;
 				}
 			}
+			if(null != mapQBins) {
+				countMapQBins(locus);
+			}
 
+			/* Returns 1-based position */
+			processLocus(locus.getSequenceName(), locus.getPosition(),
+					locus.getRecordAndOffsets().size(), locus.getDeletedInRecord().size(),
+					nMapQBelowThreshold, mapQBins);
+		}
 
-			percMapQBelowThreshold = totalDepthIncludingIndels > 0 ? Math.round(nMapQBelowThreshold / totalDepthIncludingIndels * 100) : -1;
+		/* Fill in the rest of the last covered range and any after it */
+		for(; rangeIdx < ranges.size(); rangeIdx++) {
+			range = ranges.get(rangeIdx);
+			if(nextPos <= range.getEnd()) {
+				processUncoveredRun(range.getContig(), nextPos, range.getEnd());
+			}
+			if(rangeIdx + 1 < ranges.size()) {
+				nextPos = ranges.get(rangeIdx + 1).getStart();
+			}
+		}
+		
+		finishWalking();
+		sli.close();
+	}
 
-            /* Check if we're in a low depth Dark Region
-             * A region is 'dark' by low_depth if depth is < MIN_DEPTH
-             */
-            if(depthExcludingIndels <= DarkRegionFinder.MIN_DEPTH ) {
+	/**
+	 * Walk the genome using the SweepLineCoverageWalker rather than
+	 * SamLocusIterator. Produces the same output as startWalkingByLocus().
+	 * 
+	 * @throws Exception
+	 */
+	public void startWalkingBySweep() throws Exception {
 
-                /* Save low-depth 'dark' regions with low coverage */
-                low_depth = true;
-                lowDepthRegion.add(lowDepthRegionToString(contig, pos, nMapQBelowThreshold,
-                        depthExcludingIndels, nDeletedInRecord, totalDepthIncludingIndels, percMapQBelowThreshold));
-                consecLowDepth++;
-            }
-            else if ( consecLowDepth > DarkRegionFinder.MIN_REGION_SIZE ) {
-                /* write dark region then clear */
-                writeRegion(lowDepthRegion, lowDepthWriter);
+		printUserIntervals();
 
-                lowDepthRegion.clear();
-                consecLowDepth = 0;
-            }
-            else {
-                lowDepthRegion.clear();
-                consecLowDepth = 0;
-            }
+		readFilter = newReadPreFilter(vs);
+		final SweepLineCoverageWalker walker = new SweepLineCoverageWalker(samReader,
+				this.intervalList, Collections.<SamRecordFilter>singletonList(readFilter), mapQThreshold,
+				maxReadsPerLocus);
+		walker.setNRunIndex(nRunIndex);
+		walker.setPipelined(pipelined);
+		if(null != mapQBins) {
+			walker.setCountMapQBins();
+		}
 
-            
-            /* check if Exclusive and already in dark:
-             * if Exclusive is true and locus was already in low_depth, cannot be low mapQ so write out low MapQ and clear
-             * else if not exclusive or not low_depth check if it is a low MapQ region
-             */
-            if (DarkRegionFinder.EXCLUSIVE_REGIONS && low_depth ) {
-
-                /* print out lowMapQ Region if long enough */
-                if ( consecLowMapQ > DarkRegionFinder.MIN_REGION_SIZE) {
-                    writeRegion(lowMapQRegion, lowMapQWriter);
-                }
-
-                /* clear lowMapQ Region buffer regardless of length */
-                lowMapQRegion.clear();
-                consecLowMapQ = 0;
-            }
-            else if (percMapQBelowThreshold >= DarkRegionFinder.MIN_MAPQ_MASS) {
+		/* Classify on another thread, if pipelined */
+		final LocusCountPipe pipe = pipelined ? new LocusCountPipe(walker.getMapQBins()) : null;
+		SweepLineCoverageWalker.LocusCountHandler handler = new SweepLineCoverageWalker.LocusCountHandler() {
+			@Override
+			public void handleLocus(String contig, int position, int depthExcludingIndels,
+					int nDeletedInRecord, int nMapQBelowThreshold) throws IOException {
+				processLocus(contig, position, depthExcludingIndels, nDeletedInRecord,
+						nMapQBelowThreshold, null == pipe ? walker.getMapQBins() : pipe.getMapQBins());
+			}
 
-                /* Save lowMapQ 'dark' region which has at mass > MIN_MAPQ_MASS of reads with mapq < MAPQ_THRESHOLD */
-                lowMapQRegion.add(lowMapQRegionToString(contig, pos,
-                        nMapQBelowThreshold, depthExcludingIndels, nDeletedInRecord,
-                        totalDepthIncludingIndels, percMapQBelowThreshold));
-                consecLowMapQ++;
+			@Override
+			public void handleIncompleteRun(String contig, int start, int end) throws IOException {
+				processIncompleteRun(contig, start, end);
+			}
 
-            }
-            else if ( consecLowMapQ > DarkRegionFinder.MIN_REGION_SIZE ) {
-                /* write out and clear lowMapQ region since it is long enough */
-                writeRegion(lowMapQRegion, lowMapQWriter);
-                lowMapQRegion.clear();
-                consecLowMapQ = 0;
-            }
-            else {
-                lowMapQRegion.clear();
-                consecLowMapQ = 0;
-            }
-                
-            nLociAssessed++;
-			
-		}
-		
-		        
-        /* Write regions if large enough */
-        if(consecLowDepth >= DarkRegionFinder.MIN_REGION_SIZE){
-            writeRegion(lowDepthRegion, lowDepthWriter);
-        }
-		if(consecLowMapQ >= DarkRegionFinder.MIN_REGION_SIZE) {
-			writeRegion(lowMapQRegion, lowMapQWriter);
+			@Override
+			public void handleUncoveredRun(String contig, int start, int end) throws IOException {
+				processUncoveredRun(contig, start, end);
+			}
+		};
+
+		if(null == pipe) {
+			walker.walk(handler);
 		}
-		if(consecInc >= DarkRegionFinder.MIN_REGION_SIZE) {
-			writeRegion(incRegion, incWriter);
+		else {
+			pipe.start(handler);
+			try {
+				walker.walk(pipe);
+				pipe.finish();
+			} finally {
+				pipe.close();
+			}
 		}
-        
 
-		lowDepthWriter.close();
-		lowMapQWriter.close();
-		incWriter.close();
-		sli.close();
+		finishWalking();
 	}
-	
+
 	/**
-	 * @param contigName
-	 * @param position
-	 * @return
+	 * Count the reads (aligned or deleted) at the locus in each MAPQ bin.
+	 *
+	 * @param locus
 	 */
-	private String incompleteRegionToString(String contigName, int position) {
+	private void countMapQBins(LocusInfo locus) {
+		Arrays.fill(mapQBins, 0);
+		for(RecordAndOffset rec : locus.getRecordAndOffsets()){
+			mapQBins[CoverageTrackWriter.getMapQBin(rec.getRecord().getMappingQuality())]++;
+		}
+		for(RecordAndOffset rec : locus.getDeletedInRecord()){
+			mapQBins[CoverageTrackWriter.getMapQBin(rec.getRecord().getMappingQuality())]++;
+		}
+	}
 
-		/* Bed files are 0-based. locus.getPosition() returns 1-based. #Annoying */
-        /* Use StringBuilder to save memory */
-        StringBuilder sb = new StringBuilder();
-        sb.append(contigName).append("\t")
-                .append(position - 1).append("\t")
-                .append(position).append("\n");
-        return sb.toString();
+	/**
+	 * The ranges SamLocusIterator walks, in order: the sorted and merged
+	 * intervals (clipped to the sequence length), or every sequence in the
+	 * header.
+	 *
+	 * @param intervalList
+	 * @param header
+	 * @return
+	 */
+	static List<Interval> getTraversalRanges(IntervalList intervalList, SAMFileHeader header) {
+		List<Interval> ranges = new ArrayList<Interval>();
+		if(null != intervalList && intervalList.size() > 0) {
+			SAMSequenceRecord seq;
+			for(Interval interval : intervalList.uniqued().getIntervals()) {
+				seq = header.getSequenceDictionary().getSequence(interval.getContig());
+				ranges.add(new Interval(interval.getContig(), interval.getStart(), null == seq
+						? interval.getEnd() : Math.min(interval.getEnd(), seq.getSequenceLength())));
+			}
+		}
+		else {
+			for(SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+				ranges.add(new Interval(seq.getSequenceName(), 1, seq.getSequenceLength()));
+			}
+		}
+		return ranges;
 	}
 
-    /**
-     * Create a string for this low-depth region for output in a .bed file. Will
-     * convert to 0-based positions since .bed files are 0-based.
-     * 
-     * @param contigName
-     * @param position
-     * @param nMapQBelowThreshold
-     * @param depthExcludingIndels
-     * @param percentMapQBelowThreshold
-     * @return
-     */
-	private String lowDepthRegionToString(String contigName, int position,
-			int nMapQBelowThreshold, double depthExcludingIndels, double nDeletedInRecord,
-			double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+	/**
+	 * Print the intervals the user asked for (but not the whole-contig
+	 * intervals generated when they didn't ask for any).
+	 */
+	private void printUserIntervals() {
+		if(userIntervals && !quiet) {
+			for(Interval interval : intervalList) {
+				System.out.println("Interval: " + interval.toString());
+			}
+		}
+	}
 
-		/* Bed files are 0-based. locus.getPosition() returns 1-based. #Annoying */
-		int posZeroBased = position - 1;
+	/**
+	 * Create the read pre-filter for one traversal. Unless other flags are
+	 * given, it drops what SamLocusIterator drops by default (unmapped,
+	 * secondary, supplementary, and duplicate reads), or only unmapped and
+	 * secondary reads if supplementary alignments are included.
+	 * 
+	 * @param vs How to validate the reads that are kept
+	 * @return
+	 */
+	static ReadPreFilter newReadPreFilter(ValidationStringency vs) {
+		int excludeFlags;
+		if(null != EXCLUDE_FLAGS) {
+			excludeFlags = EXCLUDE_FLAGS;
+		}
+		else if( INCLUDE_SUPPLEMENTARY == true ) {
+        	logger.info("Including supplementary alignments, but NOT secondary");
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(contigName).append("\t")
-                .append(posZeroBased).append("\t")
-                .append(posZeroBased).append("\t")
-                .append(nMapQBelowThreshold).append("\t")
-                .append(percentMapQBelowThreshold).append("\t")
-                .append((int) depthExcludingIndels).append("\t")
-                .append(nDeletedInRecord).append("\t")
-                .append(totalDepthIncludingIndels).append("\n");
-        return sb.toString();
+			/* 
+			 * Including supplementary and primary alignments ONLY.
+			 * 
+			 *  NOTE: Secondary alignments are multiply mapped
+			 *  NOTE: Supplementary alignments are chimeric
+			 */
+			excludeFlags = ReadPreFilter.INCLUDE_SUPPLEMENTARY_EXCLUDE_FLAGS;
+		}
+		else {
+			excludeFlags = ReadPreFilter.DEFAULT_EXCLUDE_FLAGS;
+		}
+		return new ReadPreFilter(excludeFlags, MIN_READ_MAPQ, MAX_READ_SPAN, vs);
 	}
 
-    /**
-     *
-     * @param contigName
-     * @param position
-     * @param nMapQBelowThreshold
-     * @param depthExcludingIndels
-     * @param percentMapQBelowThreshold
-     * @return
-     */
-	private String lowMapQRegionToString(String contigName, int position,
-			int nMapQBelowThreshold, double depthExcludingIndels, double nDeletedInRecord,
-			double totalDepthIncludingIndels, double percentMapQBelowThreshold) {
+	/**
+	 * Classify a single locus as incomplete, low depth, and/or low MAPQ and
+	 * extend or write out the current regions accordingly.
+	 * 
+	 * @param contig
+	 * @param pos 1-based position
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param nMapQBelowThreshold
+	 * @param mapQBins The number of reads in each MAPQ bin, if writing a
+	 * coverage track or evaluating other threshold configurations
+	 * @throws IOException
+	 */
+	private void processLocus(String contig, int pos, int depthExcludingIndels,
+			int nDeletedInRecord, int nMapQBelowThreshold, int[] mapQBins) throws IOException {
 
-		/* Bed files are 0-based. locus.getPosition() returns 1-based. #Annoying */
-        StringBuilder sb = new StringBuilder();
-        sb.append(contigName).append("\t")
-                .append(position - 1).append("\t")
-                .append(position).append("\t")
-                .append(nMapQBelowThreshold).append("\t")
-                .append(percentMapQBelowThreshold).append("\t")
-                .append((int) depthExcludingIndels).append("\t")
-                .append(nDeletedInRecord).append("\t")
-                .append(totalDepthIncludingIndels).append("\n");
-        return sb.toString();
+		if(!isInReference(contig)) {
+			return;
+		}
+
+
+		/* Track progress */ 
+    	if(nLociAssessed > 0 && nLociAssessed % 1000000 == 0){
+    		logger.debug("Total loci assessed: " + nLociAssessed );
+    		logger.debug("Current contig and position: " + contig + ":" + pos);
+    		
+    		// Calculate the used memory
+            //long totalMemory = runtime.totalMemory();
+            //long freeMemory = runtime.freeMemory();
+            //long usedMemory = totalMemory - freeMemory;
+
+            //logger.debug("Total memory (bytes): " + totalMemory);
+            //logger.debug("Free memory (bytes):  " + freeMemory);
+            //logger.debug("Used memory (bytes):  " + usedMemory);
+
+    	}		
+
+
+		/* Record incomplete genomic regions (i.e., 'N') */
+		if(isIncomplete(contig, pos)){
+			recordIncompleteRun(contig, pos, pos);
+			return;
+		}
+
+		recordCompleteRun(contig, pos, pos, depthExcludingIndels, nDeletedInRecord,
+				nMapQBelowThreshold, mapQBins);
+	}
+
+	/**
+	 * Process a run of loci with no coverage at all as a whole, rather than
+	 * one locus at a time. Incomplete stretches within the run are found
+	 * per run (with the index) or by scanning the reference bases.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	private void processUncoveredRun(String contig, int start, int end) throws IOException {
+
+		if(!isInReference(contig)) {
+			return;
+		}
+
+		int pos = start, incStart, incEnd;
+		while(pos <= end) {
+			incStart = nextIncomplete(contig, pos, end);
+			if(incStart > pos) {
+				recordCompleteRun(contig, pos, incStart - 1, 0, 0, 0, null);
+			}
+			if(incStart > end) {
+				break;
+			}
+			incEnd = incompleteRunEnd(contig, incStart, end);
+			recordIncompleteRun(contig, incStart, incEnd);
+			pos = incEnd + 1;
+		}
+	}
+
+	/**
+	 * Pass a run of complete loci that all have the same counts to the
+	 * coverage track and every threshold configuration, including this
+	 * one.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param nMapQBelowThreshold
+	 * @param mapQBins null if the loci have no coverage
+	 * @throws IOException
+	 */
+	private void recordCompleteRun(String contig, int start, int end, int depthExcludingIndels,
+			int nDeletedInRecord, int nMapQBelowThreshold, int[] mapQBins) throws IOException {
+		if(null != trackWriter) {
+			if(null == mapQBins) {
+				trackWriter.addUncovered(contig, start, end);
+			}
+			else {
+				trackWriter.addCovered(contig, start, end, depthExcludingIndels, nDeletedInRecord, mapQBins);
+			}
+		}
+		for(DarkRegionFinder finder : gridFinders) {
+			finder.processCompleteRun(contig, start, end, depthExcludingIndels, nDeletedInRecord,
+					null == mapQBins ? 0 : CoverageTrackWriter.sumBins(mapQBins, finder.mapQThresholdBin));
+		}
+		processLoci(contig, start, end, depthExcludingIndels, nDeletedInRecord, nMapQBelowThreshold);
+	}
+
+	/**
+	 * Pass a run of incomplete loci to the coverage track and every
+	 * threshold configuration, including this one.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	private void recordIncompleteRun(String contig, int start, int end) throws IOException {
+		if(null != trackWriter) {
+			trackWriter.addIncomplete(contig, start, end);
+		}
+		for(DarkRegionFinder finder : gridFinders) {
+			finder.processIncompleteRun(contig, start, end);
+		}
+		addIncompleteRun(contig, start, end);
+	}
+
+	/**
+	 * Write out and clear regions if the arrays are getting too big (in
+	 * order to save memory). Checked before each run of loci, so the
+	 * regions are split at the same loci however the walk is divided
+	 * (see ShardBoundary).
+	 *
+	 * @throws IOException
+	 */
+	private void flushLargeRegions() throws IOException {
+        if ( consecLowDepth > minRegionSize && lowDepthRegion.size() > DarkRegionFinder.MAX_ARRAY_SIZE) {
+            writeRegion(lowDepthRegion, lowDepthWriter);
+            lowDepthRegion.clear();
+        }
+        if ( consecLowMapQ > minRegionSize && lowMapQRegion.size() > DarkRegionFinder.MAX_ARRAY_SIZE) {
+            writeRegion(lowMapQRegion, lowMapQWriter);
+            lowMapQRegion.clear();
+        }
+	}
+
+	/**
+	 * Classify a run of contiguous, complete (i.e., not 'N') loci that all
+	 * have the same counts as low depth and/or low MAPQ, and extend or write
+	 * out the current regions accordingly. Equivalent to processing each
+	 * locus in turn.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param nMapQBelowThreshold
+	 * @throws IOException
+	 */
+	private void processLoci(String contig, int start, int end, double depthExcludingIndels,
+			double nDeletedInRecord, int nMapQBelowThreshold) throws IOException {
+
+		int nLoci = end - start + 1;
+
+		/*
+		 * Count the loci in their bins and features. Bins replace the
+		 * regions, so we're done.
+		 */
+		if(null != binWriter || null != featureWriter) {
+			boolean lowDepth = isLowDepth(depthExcludingIndels);
+			boolean lowMapQ = !(DarkRegionFinder.EXCLUSIVE_REGIONS && lowDepth)
+					&& isLowMapQ(percMapQBelowThreshold(depthExcludingIndels + nDeletedInRecord,
+							nMapQBelowThreshold));
+			if(null != featureWriter) {
+				featureWriter.addCompleteRun(contig, start, end, lowDepth, lowMapQ);
+			}
+			if(null != binWriter) {
+				binWriter.addCompleteRun(contig, start, end, depthExcludingIndels, lowDepth, lowMapQ);
+				nLociAssessed += nLoci;
+				return;
+			}
+		}
+
+		flushLargeRegions();
+
+		/* Write incomplete regions if large enough. Clear in either case. */
+		if(null != incWriter && consecInc >= minRegionSize) {
+			writeIncompleteRuns();
+		}
+
+		/* Clear regardless because we know we're outside an incomplete
+		 * region
+		 */
+		incRuns.clear();
+		consecInc = 0; 		
+
+
+		boolean low_depth = false;
+
+		/* Total depth includes reads with a deletion at this position */
+		double totalDepthIncludingIndels = depthExcludingIndels + nDeletedInRecord;
+
+		double percMapQBelowThreshold = percMapQBelowThreshold(totalDepthIncludingIndels, nMapQBelowThreshold);
+
+        /* Check if we're in a low depth Dark Region
+         * A region is 'dark' by low_depth if depth is < MIN_DEPTH
+         */
+        if(isLowDepth(depthExcludingIndels)) {
+
+            /* Save low-depth 'dark' regions with low coverage */
+            low_depth = true;
+            lowDepthRegion.addRun(contig, start, end, nMapQBelowThreshold,
+                    depthExcludingIndels, nDeletedInRecord, totalDepthIncludingIndels, percMapQBelowThreshold);
+            consecLowDepth += nLoci;
+        }
+        else if ( consecLowDepth > minRegionSize ) {
+            /* write dark region then clear */
+            writeRegion(lowDepthRegion, lowDepthWriter);
+
+            lowDepthRegion.clear();
+            consecLowDepth = 0;
+        }
+        else {
+            lowDepthRegion.clear();
+            consecLowDepth = 0;
+        }
+
+        
+        /* check if Exclusive and already in dark:
+         * if Exclusive is true and locus was already in low_depth, cannot be low mapQ so write out low MapQ and clear
+         * else if not exclusive or not low_depth check if it is a low MapQ region
+         */
+        if (DarkRegionFinder.EXCLUSIVE_REGIONS && low_depth ) {
+
+            /* print out lowMapQ Region if long enough */
+            if ( consecLowMapQ > minRegionSize) {
+                writeRegion(lowMapQRegion, lowMapQWriter);
+            }
+
+            /* clear lowMapQ Region buffer regardless of length */
+            lowMapQRegion.clear();
+            consecLowMapQ = 0;
+        }
+        else if (isLowMapQ(percMapQBelowThreshold)) {
+
+            /* Save lowMapQ 'dark' region which has at mass > MIN_MAPQ_MASS of reads with mapq < MAPQ_THRESHOLD */
+            lowMapQRegion.addRun(contig, start, end,
+                    nMapQBelowThreshold, depthExcludingIndels, nDeletedInRecord,
+                    totalDepthIncludingIndels, percMapQBelowThreshold);
+            consecLowMapQ += nLoci;
+
+        }
+        else if ( consecLowMapQ > minRegionSize ) {
+            /* write out and clear lowMapQ region since it is long enough */
+            writeRegion(lowMapQRegion, lowMapQWriter);
+            lowMapQRegion.clear();
+            consecLowMapQ = 0;
+        }
+        else {
+            lowMapQRegion.clear();
+            consecLowMapQ = 0;
+        }
+            
+        nLociAssessed += nLoci;
+        endShardRun(contig, start, end, depthExcludingIndels, nDeletedInRecord,
+                nMapQBelowThreshold, false);
+	}
+
+	/**
+	 * Note which categories' regions the run just ended. While walking a
+	 * shard, a category is written once its first region has ended, and
+	 * the runs are recorded until every category's has (see
+	 * ShardBoundary). While joining shards, a category is written only
+	 * until it ends, since the shard writes the rest.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param nMapQBelowThreshold
+	 * @param incomplete
+	 */
+	private void endShardRun(String contig, int start, int end, double depthExcludingIndels,
+			double nDeletedInRecord, int nMapQBelowThreshold, boolean incomplete) {
+		if(!joining) {
+			if(null == shardBoundary || (writing[ShardBoundary.LOW_DEPTH]
+					&& writing[ShardBoundary.LOW_MAPQ] && writing[ShardBoundary.INCOMPLETE])) {
+				return;
+			}
+			shardBoundary.addRun(contig, start, end, depthExcludingIndels, nDeletedInRecord,
+					nMapQBelowThreshold, incomplete);
+		}
+
+		/* A region that ended leaves nothing behind */
+		if(0 == consecLowDepth) {
+			writing[ShardBoundary.LOW_DEPTH] = !joining;
+		}
+		if(0 == consecLowMapQ) {
+			writing[ShardBoundary.LOW_MAPQ] = !joining;
+		}
+		if(0 == consecInc) {
+			writing[ShardBoundary.INCOMPLETE] = !joining;
+		}
+	}
+
+	/**
+	 * @param totalDepthIncludingIndels
+	 * @param nMapQBelowThreshold
+	 * @return the percentage (rounded) of reads with MAPQ ≤ threshold, or
+	 * -1 if there are no reads
+	 */
+	static double percMapQBelowThreshold(double totalDepthIncludingIndels, int nMapQBelowThreshold) {
+		return totalDepthIncludingIndels > 0 ? Math.round(nMapQBelowThreshold / totalDepthIncludingIndels * 100) : -1;
+	}
+
+	/**
+	 * A locus is 'dark' by low depth if depth ≤ minDepth
+	 *
+	 * @param depthExcludingIndels
+	 * @return
+	 */
+	boolean isLowDepth(double depthExcludingIndels) {
+		return depthExcludingIndels <= minDepth;
+	}
+
+	/**
+	 * A locus is 'dark' by low MAPQ if the MAPQ mass ≥ minMapQMass. See
+	 * also isExclusiveRegions().
+	 *
+	 * @param percMapQBelowThreshold
+	 * @return
+	 */
+	boolean isLowMapQ(double percMapQBelowThreshold) {
+		return percMapQBelowThreshold >= minMapQMass;
+	}
+
+	/**
+	 * @return whether a locus can be both low depth and low MAPQ
+	 */
+	static boolean isExclusiveRegions() {
+		return DarkRegionFinder.EXCLUSIVE_REGIONS;
+	}
+
+	/**
+	 * Process a run of contiguous, complete (i.e., not 'N') loci that all
+	 * have the same counts. The caller is responsible for knowing the loci
+	 * are complete (see CohortDarkRegionFinder).
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param nMapQBelowThreshold
+	 * @throws IOException
+	 */
+	void processCompleteRun(String contig, int start, int end, double depthExcludingIndels,
+			double nDeletedInRecord, int nMapQBelowThreshold) throws IOException {
+
+		if(!isInReference(contig)) {
+			return;
+		}
+		processLoci(contig, start, end, depthExcludingIndels, nDeletedInRecord, nMapQBelowThreshold);
+	}
+
+	/**
+	 * Record a run of incomplete loci (e.g., a run from the
+	 * ReferenceNRunIndex) without computing any coverage for it.
+	 * 
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	void processIncompleteRun(String contig, int start, int end) throws IOException {
+		if(!isInReference(contig)) {
+			return;
+		}
+		recordIncompleteRun(contig, start, end);
+	}
+
+	/**
+	 * Ensure the sequence is present in the provided reference. Warn once
+	 * per sequence if it is not.
+	 * 
+	 * @param contig
+	 * @return
+	 */
+	private boolean isInReference(String contig) {
+
+		/*
+		 * If this contig is not in the ref, then skip. When walking an
+		 * indexed SAM/BAM without user intervals, these contigs are never
+		 * visited (see generateReferenceIntervalList()).
+		 */
+		if(ignore.contains(contig)) {
+			return false;
+		}
+
+		/* Ensure sequence is present in provided reference */
+		if(null == this.hgRefDictionary.getSequence(contig)){
+			logger.warn("BAM file contains alignments for " + contig
+					+ " but this sequence was not found in the provided"
+					+ " reference. Skipping.");
+			ignore.add(contig);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the reference base is unknown ('N' or 'n'). Uses the
+	 * incomplete-region index if one was provided.
+	 * 
+	 * @param contig
+	 * @param pos 1-based
+	 * @return
+	 */
+	private boolean isIncomplete(String contig, int pos) {
+		if(null != nRunIndex) {
+			return nRunIndex.isIncomplete(contig, pos);
+		}
+
+		/* Expects 1-based position */
+		byte base = refCache.getBase(contig, pos);
+		return base == 'N' || base == 'n';
+	}
+
+	/**
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @return the first incomplete position in [start, end], or end + 1
+	 */
+	private int nextIncomplete(String contig, int start, int end) {
+		if(null != nRunIndex) {
+			int idx = nRunIndex.findRun(contig, start);
+			if(idx >= 0) {
+				return start;
+			}
+			idx = -idx - 1;
+			return idx < nRunIndex.getRunCount(contig)
+					? Math.min(end + 1, nRunIndex.getRunStart(contig, idx)) : end + 1;
+		}
+		int pos = start;
+		while(pos <= end && !isIncomplete(contig, pos)) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param contig
+	 * @param start 1-based, incomplete position
+	 * @param end 1-based, inclusive
+	 * @return the last position of the incomplete run starting at 'start',
+	 * but no further than 'end'
+	 */
+	private int incompleteRunEnd(String contig, int start, int end) {
+		if(null != nRunIndex) {
+			return Math.min(end, nRunIndex.getRunEnd(contig, nRunIndex.findRun(contig, start)));
+		}
+		int pos = start;
+		while(pos < end && isIncomplete(contig, pos + 1)) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Extend the current incomplete region by [start, end] and end any
+	 * dark regions.
+	 * 
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @throws IOException
+	 */
+	private void addIncompleteRun(String contig, int start, int end) throws IOException {
+
+		if(null != featureWriter) {
+			featureWriter.addIncompleteRun(contig, start, end);
+		}
+		if(null != binWriter) {
+			binWriter.addIncompleteRun(contig, start, end);
+			return;
+		}
+
+		flushLargeRegions();
+
+		/* Extend the last run if contiguous, otherwise start a new one */
+		Interval last = incRuns.isEmpty() ? null : incRuns.get(incRuns.size() - 1);
+		if(null != last && last.getContig().equals(contig) && last.getEnd() + 1 == start) {
+			incRuns.set(incRuns.size() - 1, new Interval(contig, last.getStart(), end));
+		}
+		else {
+			incRuns.add(new Interval(contig, start, end));
+		}
+		consecInc += end - start + 1;
+
+		/* Write dark regions if large enough */
+		if(consecLowDepth >= minRegionSize){
+			writeRegion(lowDepthRegion, lowDepthWriter);
+		}
+		if(consecLowMapQ >= minRegionSize){
+			writeRegion(lowMapQRegion, lowMapQWriter);
+		}
+
+		/* Clear regardless (i.e., even if the region wasn't large enough) */
+		lowMapQRegion.clear();
+		consecLowMapQ = 0;
+		lowDepthRegion.clear();
+		consecLowDepth = 0;
+		endShardRun(contig, start, end, 0, 0, 0, true);
+	}
+
+	/**
+	 * Write the buffered incomplete runs, one line per base (or one line
+	 * per run in merged mode).
+	 * 
+	 * @throws IOException
+	 */
+	private void writeIncompleteRuns() throws IOException {
+		if(!writing[ShardBoundary.INCOMPLETE]) {
+			return;
+		}
+		for(Interval run : incRuns) {
+			if(mergedOutput) {
+				incEncoder.reset().contig(run.getContig())
+						.field(run.getStart() - 1).field(run.getEnd()).endLine();
+				incEncoder.writeTo(incWriter);
+				continue;
+			}
+			for(int pos = run.getStart(); pos <= run.getEnd(); pos++) {
+				encodeIncompleteRegion(run.getContig(), pos);
+				incEncoder.writeTo(incWriter);
+			}
+		}
+	}
+
+	/**
+	 * Write any remaining regions (if large enough) and close the writers.
+	 * 
+	 * @throws IOException
+	 */
+	void finishWalking() throws IOException {
+
+		/* A shard's last regions may continue into the next shard */
+		if(null != shardBoundary) {
+			shardBoundary.setOpenRegions(writing, consecLowDepth, consecLowMapQ, consecInc,
+					lowDepthRegion, lowMapQRegion, incRuns);
+		}
+		else {
+			
+	        /* Write regions if large enough */
+	        if(consecLowDepth >= minRegionSize){
+	            writeRegion(lowDepthRegion, lowDepthWriter);
+	        }
+			if(consecLowMapQ >= minRegionSize) {
+				writeRegion(lowMapQRegion, lowMapQWriter);
+			}
+			if(null != incWriter && consecInc >= minRegionSize) {
+				writeIncompleteRuns();
+			}
+		}
+        
+
+		if(null != readFilter && !quiet) {
+			readFilter.logCounts("Read pre-filter");
+		}
+
+		closeWriters();
+		if(null != refCache) {
+			refCache.release();
+		}
+		if(null != trackWriter) {
+			trackWriter.close();
+		}
+		if(null != binWriter) {
+			binWriter.close();
+		}
+		if(null != featureWriter) {
+			featureWriter.close();
+		}
+		for(DarkRegionFinder finder : gridFinders) {
+			finder.finishWalking();
+		}
 	}
 	
 	/**
-	 * @param lowMapQRegions
+	 * @throws IOException
+	 */
+	private void closeWriters() throws IOException {
+		lowDepthWriter.close();
+		lowMapQWriter.close();
+		if(null != incWriter) {
+			incWriter.close();
+		}
+	}
+
+	/**
+	 * Hold back the regions at either end of the walk, which may continue
+	 * into the shards on either side, and keep them for joinShards()
+	 * instead (see ShardBoundary). Call before walking, once the threshold
+	 * configurations are added.
+	 *
+	 * @return this finder's boundary, followed by each threshold
+	 * configuration's
+	 */
+	List<ShardBoundary> recordShardBoundaries() {
+		List<ShardBoundary> boundaries = new ArrayList<ShardBoundary>();
+		boundaries.add(new ShardBoundary(mapQThreshold, minMapQMass, minRegionSize,
+				minDepth, mergedOutput));
+		shardBoundary = boundaries.get(0);
+		Arrays.fill(writing, false);
+		for(DarkRegionFinder finder : gridFinders) {
+			boundaries.addAll(finder.recordShardBoundaries());
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Write the regions that cross the boundaries between shards, for one
+	 * threshold configuration. The runs each shard recorded are replayed,
+	 * in shard order, on top of the regions left open by the shards
+	 * before it, until each category's first region in the shard ends.
+	 * From there on, the shard's own regions take over, so the output is
+	 * the same as walking the shards as one.
+	 *
+	 * @param boundaries Each shard's boundary, in shard order
+	 * @param joinOutputs The low-depth, low-MAPQ, and incomplete files for
+	 * each boundary: before the first shard, between each pair of shards,
+	 * and after the last
+	 * @throws IOException
+	 */
+	static void joinShards(List<ShardBoundary> boundaries, List<File[]> joinOutputs) throws IOException {
+		DarkRegionFinder joiner = new DarkRegionFinder(boundaries.get(0));
+		ShardBoundary shard;
+		for(int i = 0; i < boundaries.size(); i++) {
+			shard = boundaries.get(i);
+			joiner.openJoinWriters(joinOutputs.get(i));
+			Arrays.fill(joiner.writing, true);
+			for(int run = 0; run < shard.getRunCount(); run++) {
+				if(shard.isIncomplete(run)) {
+					joiner.addIncompleteRun(shard.getContig(run), shard.getStart(run), shard.getEnd(run));
+				}
+				else {
+					joiner.processLoci(shard.getContig(run), shard.getStart(run), shard.getEnd(run),
+							shard.getDepth(run), shard.getDeleted(run), shard.getMapQBelow(run));
+				}
+			}
+			joiner.closeWriters();
+
+			/*
+			 * Where a category's first region ended within the shard, the
+			 * regions open at its end are the shard's. Otherwise, every run
+			 * in the shard was replayed.
+			 */
+			if(shard.isEnded(ShardBoundary.LOW_DEPTH)) {
+				joiner.consecLowDepth = shard.getConsecLowDepth();
+				joiner.lowDepthRegion = shard.getLowDepthRegion();
+			}
+			if(shard.isEnded(ShardBoundary.LOW_MAPQ)) {
+				joiner.consecLowMapQ = shard.getConsecLowMapQ();
+				joiner.lowMapQRegion = shard.getLowMapQRegion();
+			}
+			if(shard.isEnded(ShardBoundary.INCOMPLETE)) {
+				joiner.consecInc = shard.getConsecInc();
+				joiner.incRuns = shard.getIncRuns();
+			}
+		}
+
+		/* The regions open at the end of the last shard */
+		joiner.openJoinWriters(joinOutputs.get(boundaries.size()));
+		joiner.joining = false;
+		Arrays.fill(joiner.writing, true);
+		joiner.finishWalking();
+	}
+
+	/**
+	 * @param outputs The low-depth, low-MAPQ, and incomplete files
+	 * @throws IOException
+	 */
+	private void openJoinWriters(File[] outputs) throws IOException {
+		lowDepthWriter = new BgzfBedWriter(outputs[0], false);
+		lowMapQWriter = new BgzfBedWriter(outputs[1], false);
+		incWriter = new BgzfBedWriter(outputs[2], false);
+	}
+
+	/**
+	 * @param contigName
+	 * @param position
+	 */
+	private void encodeIncompleteRegion(String contigName, int position) {
+
+		/* Bed files are 0-based. locus.getPosition() returns 1-based. #Annoying */
+		incEncoder.reset().contig(contigName)
+				.field(position - 1)
+				.field(position)
+				.endLine();
+	}
+
+	/**
+	 * @param region
 	 * @param writer
 	 * @throws IOException
 	 */
-	private void writeRegion(ArrayList<String> lowMapQRegions,
-			Writer writer) throws IOException {
-		for(String s : lowMapQRegions){
-			writer.write(s);
+	private void writeRegion(DarkRegionBuffer region,
+			BgzfBedWriter writer) throws IOException {
+		if(!writing[region == lowDepthRegion ? ShardBoundary.LOW_DEPTH : ShardBoundary.LOW_MAPQ]) {
+			return;
 		}
+		region.write(writer);
 	}
     
 	/**
+	 * Open a BGZF writer for one of the output .bed.gz files. Don't bother
+	 * indexing if the output is being thrown away.
+	 *
+	 * @param bed
+	 * @return
+	 * @throws IOException
+	 */
+	private static BgzfBedWriter openBedWriter(File bed) throws IOException {
+		return new BgzfBedWriter(bed, !bed.getPath().startsWith("/dev/null"));
+	}
+
+	/**
+	 *
+	 * Open a SAM/BAM file for reading and return the SamReader obj. Records
+	 * are not validated as they are read, which would decode every field
+	 * of every record; ReadPreFilter validates the reads that are kept.
+	 * CRAMs are decoded against the shared mapping of the reference (see
+	 * MappedFastaReference).
 	 * 
-	 * Open a SAM/BAM file for reading and return the SamReader obj
+	 * With read-ahead (see setInputOptions()), the file is read in large
+	 * chunks ahead of the walker (see ReadAheadSeekableStream), and BAM
+	 * blocks are inflated on a background thread (htsjdk's asynchronous
+	 * I/O), so neither reading nor inflating stalls the walk.
 	 * 
 	 * @param samFile
-	 * @param vs
+	 * @param hgRef
 	 * @return SamReader
+	 * @throws IOException 
 	 */
-	 private static SamReader openSam(final File samFile, ValidationStringency vs, File hgRef) {
+	 static SamReader openSam(final File samFile, File hgRef) throws IOException {
 		 
 		final SamReaderFactory factory =
 				  SamReaderFactory.makeDefault()
-					  .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS,
-							  SamReaderFactory.Option.VALIDATE_CRC_CHECKSUMS)
-					  .validationStringency(vs)
-					  .referenceSource(new ReferenceSource(hgRef));
-		
+					  .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+					  .validationStringency(ValidationStringency.SILENT)
+					  .referenceSource(MappedFastaReference.openCramReference(hgRef));
+		if(VALIDATE_CRC) {
+			factory.enable(SamReaderFactory.Option.VALIDATE_CRC_CHECKSUMS);
+		}
 
-		final SamReader samReader = factory.open(samFile);
+		final SamReader samReader;
+		if(READ_AHEAD_CHUNKS > 0 && samFile.isFile()) {
+			factory.setUseAsyncIo(true);
+			SamInputResource resource = SamInputResource.of(
+					new ReadAheadSeekableStream(samFile, READ_AHEAD_CHUNKS));
+			File index = SamFiles.findIndex(samFile);
+			if(null != index) {
+				resource.index(index);
+			}
+			samReader = factory.open(resource);
+		}
+		else {
+			samReader = factory.open(samFile);
+		}
 		
 		return samReader;
 	 }
@@ -531,7 +1580,7 @@ public class DarkRegionFinder {
 	 * @param header
 	 * @return
 	 */
-	private static IntervalList generateIntervalList(List<String> intervalStringList, SAMFileHeader header) {
+	static IntervalList generateIntervalList(List<String> intervalStringList, SAMFileHeader header) {
 		
 		if(null == intervalStringList) {
 			return null;
@@ -563,4 +1612,33 @@ public class DarkRegionFinder {
 		return intervalList;
 	}
     
+
+	/**
+	 * Build an interval list covering every sequence in the SAM/BAM header
+	 * that is also in the reference, in header order. Sequences missing
+	 * from the reference are logged and left out.
+	 *
+	 * @param header
+	 * @param hgRefDictionary
+	 * @return
+	 */
+	static IntervalList generateReferenceIntervalList(SAMFileHeader header,
+			SAMSequenceDictionary hgRefDictionary) {
+
+		IntervalList intervalList = new IntervalList(header);
+		List<String> skipped = new ArrayList<String>();
+		for(SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+			if(null == hgRefDictionary.getSequence(seq.getSequenceName())) {
+				skipped.add(seq.getSequenceName());
+				continue;
+			}
+			intervalList.add(new Interval(seq.getSequenceName(), 1, seq.getSequenceLength()));
+		}
+
+		if(!skipped.isEmpty()) {
+			logger.warn("BAM file contains " + skipped.size() + " sequence(s) that were not"
+					+ " found in the provided reference. Skipping: " + String.join(", ", skipped));
+		}
+		return intervalList;
+	}
 }
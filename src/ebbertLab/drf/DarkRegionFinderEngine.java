@@ -6,13 +6,17 @@ package ebbertLab.drf;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentGroup;
@@ -38,6 +42,29 @@ public class DarkRegionFinderEngine {
 	public static void main(String[] args) {
 		BasicConfigurator.configure();
 		DarkRegionFinderEngine cgfe = new DarkRegionFinderEngine();
+
+		/* Commands other than the default (finding dark regions) */
+		if(args.length > 0 && "index-reference".equals(args[0])) {
+			cgfe.indexReference(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if(args.length > 0 && "cohort".equals(args[0])) {
+			cgfe.findCohortDarkRegions(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if(args.length > 0 && "rethreshold".equals(args[0])) {
+			cgfe.rethreshold(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if(args.length > 0 && "merge".equals(args[0])) {
+			cgfe.mergeIntervalOutputs(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if(args.length > 0 && "serve".equals(args[0])) {
+			cgfe.serve(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		ArgumentParser parser = cgfe.init(args);
 
 		cgfe.findDarkRegions(parser, args);
@@ -61,95 +88,129 @@ public class DarkRegionFinderEngine {
 				+ " pileup. Incomplete regions are simply those where"
 				+ " nucleotides are unknown (i.e., 'N' or 'n'). Incomplete"
 				+ " and dark regions are mutually exclusive (i.e.,"
-				+ " incomplete are not included as a dark region, and vice-versa).");
+				+ " incomplete are not included as a dark region, and vice-versa)."
+				+ " Run 'DarkRegionFinder index-reference -h' to precompute the"
+				+ " incomplete regions for a reference, 'DarkRegionFinder cohort -h'"
+				+ " to walk many samples in one pass, 'DarkRegionFinder rethreshold -h'"
+				+ " to regenerate the BED files from a --coverage-track,"
+				+ " 'DarkRegionFinder merge -h' to combine the outputs of --interval-list runs,"
+				+ " or 'DarkRegionFinder serve -h' to answer interval queries from a"
+				+ " long-running server.");
 		parser.defaultHelp(true);
 		
 		ArgumentGroup drfOptions = parser.addArgumentGroup("Dark Region Finder arguments");
 		ArgumentGroup ioOptions = parser.addArgumentGroup("input/output arguments");
 			
 		/* Setup SVC options */
-		drfOptions
-				.addArgument("-s", "--min-region-size")
-				.dest("MIN_SIZE")
-				.metavar("SIZE")
-				.setDefault(1)
-				.type(Integer.class)
-				.help("The minimum size dark region to consider. Details will"
-						+ " still be written at the individual base level, but"
-						+ " only for regions that meet this size requirement."
-						+ " Regions can be merged using bedtools, if desired.");
+		DarkRegionFinderEngine.addThresholdArguments(drfOptions);
+		DarkRegionFinderEngine.addReadArguments(drfOptions);
+		DarkRegionFinderEngine.addOutputArguments(drfOptions);
 
 		drfOptions
-				.addArgument("-t", "--mapq-threshold")
-				.dest("MAPQ_THRESHOLD")
-				.metavar("THRESH")
-				.setDefault(9)
+				.addArgument("-T", "--threads")
+				.dest("THREADS")
+				.metavar("N")
+				.setDefault(1)
 				.type(Integer.class)
-				.help("The MAPQ threshold (≤) at which a read is \'inadequately\'"
-						+ " aligned and considered \'dark\'. Generally"
-						+ " recommended to use MAPQ ≤ 9"
-						+ " as this is the default MAPQ cut off used by GATK"
-						+ " when filtering reads");
+				.choices(Arguments.range(1, Integer.MAX_VALUE))
+				.help("The number of worker threads. If greater than 1, DRF splits the"
+						+ " genome (or the intervals given by --interval-list) into"
+						+ " shards of roughly equal work, estimated from the SAM/BAM/CRAM"
+						+ " index, walks them in parallel within this process, and"
+						+ " merges the results into the output files in coordinate"
+						+ " order. Regions that cross a shard boundary are joined"
+						+ " first, so the output is the same as with one thread."
+						+ " Requires an indexed SAM/BAM/CRAM.");
 
 		drfOptions
-				.addArgument("-m", "--min-mapq-mass")
-				.dest("MIN_MAPQ_MASS")
-				.metavar("MAPQ_MASS")
-				.setDefault(90)
+				.addArgument("-p", "--shards")
+				.dest("SHARDS")
+				.metavar("N")
 				.type(Integer.class)
-				.help("The minimum percentage (≥) of reads below the"
-						+ " --mapq-threshold for the locus to be considered dark."
-						+ " Dark loci where the percentage is below this threshold"
-						+ " will still be reported if the depth ≤ --min-depth");
+				.choices(Arguments.range(1, Integer.MAX_VALUE))
+				.help("The number of shards to split the genome into for --threads or"
+						+ " --shard-manifest. Defaults to "
+						+ DarkRegionShardRunner.SHARDS_PER_THREAD + " per thread. Shards"
+						+ " are made of whole 1 Mb tiles, so there may be fewer.");
 
 		drfOptions
-				.addArgument("-d", "--min-depth")
-				.dest("MIN_DEPTH")
-				.metavar("MIN_DEPTH")
-				.setDefault(5)
-				.type(Integer.class)
-				.help("The depth (≤) at which a region is always considered"
-						+ " 'dark'. The default value is meant to be a stringent"
-						+ " cutoff to identify regions where were very few reads"
-						+ " align (i.e., they're simply missing). Regions where"
-						+ " depth ≤ --min-depth will be reported regardless of MAPQ mass");
+				.addArgument("-P", "--shard-manifest")
+				.dest("SHARD_MANIFEST")
+				.metavar("FILE")
+				.type(String.class)
+				.help("Rather than finding dark regions, write the shards (see --shards)"
+						+ " to this file and exit, for submitting each shard as a"
+						+ " separate job (e.g., on a cluster). Each line has the shard"
+						+ " number, its estimated work, and its intervals, separated by"
+						+ " spaces, to pass to --interval-list. Requires an indexed"
+						+ " SAM/BAM/CRAM.");
 
 		drfOptions
-                .addArgument("-e","--region-exclusivity")
-                .dest("EXCLUSIVE")
-                .metavar("EXCLUSIVE")
-                .action(Arguments.storeTrue())
-                .type(Boolean.class)
-                .help("Whether to treat regions as exclusive or not. If present, a locus"
-                        + " will either be dark by low coverage or dark by low MAPQ"
-                        + " (set by --mapq-threshold), but NOT both. In this case,"
-                        + " the locus will be considered dark by low coverage."
-                        + " Otherwise, a locus can be in both categories if"
-                        + " depth ≤ --min-depth and MAPQ mass ≥ --min-mapq-mass"
-                        + " thresholds");
+				.addArgument("-R", "--run-manifest")
+				.dest("RUN_MANIFEST")
+				.metavar("FILE")
+				.type(String.class)
+				.help("Keep a manifest of this run in FILE: the parameters, the size and"
+						+ " modification time of the inputs and outputs, and for each shard"
+						+ " a fingerprint of its reads and where its results are in each"
+						+ " output. If FILE is from an earlier run with the same parameters,"
+						+ " reference, and outputs, only the shards whose reads or intervals"
+						+ " changed are walked again and spliced into the existing outputs;"
+						+ " otherwise every shard is walked. Reads are fingerprinted (without"
+						+ " building pileups) only when the SAM/BAM/CRAM or its index has"
+						+ " changed. Shards are 1 Mb tiles on a fixed grid (--shards is"
+						+ " ignored), walked on --threads threads. The regions at the ends"
+						+ " of each shard are kept in FILE.boundaries, so regions that cross"
+						+ " a shard boundary are joined as in a single walk. Output file"
+						+ " names are used as given, even with --interval-list. Requires an"
+						+ " indexed SAM/BAM/CRAM and can't be combined with --coverage-track.");
 
 		drfOptions
-				.addArgument("-v", "--validation-stringency")
-				.dest("STRINGENCY")
-				.setDefault("STRICT")
-				.choices("STRICT", "LENIENT", "SILENT")
+				.addArgument("-w", "--walker")
+				.dest("WALKER")
+				.setDefault("locus")
+				.choices("locus", "sweep")
 				.type(String.class)
-				.help("The validation stringency when parsing a SAM/BAM"
-						+ " file. 'STRICT' will throw errors if something "
-						+ " is amiss, 'LENIENT' will give warnings but continue,"
-						+ " and 'SILENT' will continue AND keep our mouth shut.");
-			
+				.help("How to compute depth and MAPQ counts. 'locus' uses htsjdk's"
+						+ " SamLocusIterator, which builds a pileup for every base."
+						+ " 'sweep' visits each read once and accumulates per-base counts"
+						+ " from its CIGAR, without building pileups. Both produce the"
+						+ " same output, but 'sweep' is considerably faster at high depth."
+						+ " Use 'sweep' for long reads (e.g., ONT or PacBio): 'locus' keeps"
+						+ " every overlapping read (and an entry per read per base) in"
+						+ " memory, while 'sweep' drops each read once its CIGAR is counted"
+						+ " and keeps memory bounded by the pending CIGAR events.");
+
 		drfOptions
-				.addArgument("-S", "--include-supplementary-only")
-				.dest("INCLUDE_SUPPLEMENTARY")
-				.setDefault(false)
+				.addArgument("--pipeline")
+				.dest("PIPELINE")
 				.action(Arguments.storeTrue())
-				.type(Boolean.class)
-				.help("Include supplementary alignments, but NOT secondary "
-						+ "alignments. \n\nNOTE: Secondary Alignments are reads "
-						+ "that are multiply mapped. \nSupplementary alignments "
-						+ "are chimeric alignments.");
-		
+				.help("Split the walk into stages on separate threads, linked by"
+						+ " bounded queues: reading and decoding records, counting each"
+						+ " locus, and classifying loci into regions (BED output is always"
+						+ " compressed on background threads; see --compression-threads)."
+						+ " Lets a single run use several cores without sharding. Implies"
+						+ " '--walker sweep'; the output is the same. With --threads > 1,"
+						+ " the shards already run in parallel and this has no effect.");
+
+		drfOptions
+				.addArgument("-G", "--config-grid")
+				.dest("CONFIG_GRID")
+				.metavar("KEY=VALUES")
+				.type(String.class)
+				.nargs("+")
+				.help("Also evaluate every combination of these thresholds in the same"
+						+ " pass over the SAM/BAM. Each KEY=VALUES gives the values to try"
+						+ " for one threshold, by its short option: 't' (--mapq-threshold),"
+						+ " 'm' (--min-mapq-mass), 's' (--min-region-size), or 'd'"
+						+ " (--min-depth); e.g., '-G t=9,19 m=50,90'. Thresholds not"
+						+ " listed keep their value from the options above. Each"
+						+ " combination writes its own three BED files, named by adding"
+						+ " the combination (e.g., '.t9_m90_s1_d5') before each output's"
+						+ " extension. The usual outputs are still written. MAPQ"
+						+ " thresholds must be one of "
+						+ CoverageTrackWriter.getMapQBinEdges() + ".");
+
 		/* Setup IO options */
 		ioOptions
 				.addArgument("-i", "--input")
@@ -201,6 +262,95 @@ public class DarkRegionFinderEngine {
 						+ " regions are those where the bases are unknown"
 						+ " (i.e., 'N' or 'n'). Columns for this file are: chromosome, start, end.");
 		
+		ioOptions
+				.addArgument("-N", "--n-run-index")
+				.dest("N_RUN_INDEX")
+				.type(String.class)
+				.help("An incomplete-region index built with 'index-reference'. If"
+						+ " not provided, DRF looks for <human-ref>" + ReferenceNRunIndex.EXTENSION
+						+ " and uses it if present. With an index, incomplete regions"
+						+ " are looked up rather than read from the reference base by base,"
+						+ " and (with '--walker sweep') no coverage is computed inside them.");
+
+		ioOptions
+				.addArgument("-k", "--coverage-track")
+				.dest("COVERAGE_TRACK")
+				.type(String.class)
+				.help("Also write the depth, number of reads with a deletion, and a"
+						+ " histogram of read MAPQs for every locus to this binary,"
+						+ " block-compressed track (plus an index, <track>"
+						+ CoverageTrackWriter.INDEX_EXTENSION + "). 'DarkRegionFinder"
+						+ " rethreshold' can then regenerate the BED files from the track"
+						+ " for other --min-depth, --min-mapq-mass, --min-region-size, and"
+						+ " --mapq-threshold values without re-reading the SAM/BAM.");
+
+		ioOptions
+				.addArgument("-b", "--bin-size")
+				.dest("BIN_SIZE")
+				.metavar("BASES")
+				.type(Integer.class)
+				.choices(Arguments.range(1, Integer.MAX_VALUE))
+				.help("Rather than writing the dark and incomplete regions, summarize the"
+						+ " walk in bins of this many bases (e.g., 1000 or 10000) on a fixed"
+						+ " grid, one line per bin, to --bin-output. Each line has the"
+						+ " chromosome, start, and end, then the number of complete,"
+						+ " incomplete, low-depth, low-MAPQ, and dark (low depth or low MAPQ)"
+						+ " bases walked in the bin, the fraction of complete bases that are"
+						+ " dark, and their mean depth (-1 if none are complete). Loci are"
+						+ " classified on their own, so --min-region-size doesn't apply and"
+						+ " no regions are kept in memory. The BED outputs above are not"
+						+ " written. Can't be combined with --threads > 1, --run-manifest,"
+						+ " --config-grid, or --coverage-track.");
+
+		ioOptions
+				.addArgument("-B", "--bin-output")
+				.dest("BIN_OUTPUT")
+				.metavar("FILE")
+				.setDefault("dark_bins.bed")
+				.type(String.class)
+				.help("The output BED file for --bin-size (a '.gz' extension is added if"
+						+ " missing). Written as BGZF with a tabix index, and a '#' header"
+						+ " line naming the columns.");
+
+		ioOptions
+				.addArgument("-f", "--features")
+				.dest("FEATURES")
+				.metavar("BED/GTF")
+				.type(String.class)
+				.help("Also count the dark bases in each feature (e.g., gene or exon) in"
+						+ " this BED or GTF/GFF file (by extension: .gtf, .gff, or .gff3;"
+						+ " either may be gzipped) during the walk, and write one line per"
+						+ " feature to --feature-output: the chromosome, start, end, and name,"
+						+ " then the number of complete, incomplete, low-depth, low-MAPQ"
+						+ " (camouflaged), and dark (low depth or low MAPQ) bases walked in"
+						+ " the feature, and the percentage of complete bases that are dark"
+						+ " (-1 if none are complete). This replaces intersecting the"
+						+ " per-base outputs with the features. As with --bin-size, loci are"
+						+ " classified on their own, without --min-region-size. Features"
+						+ " with no bases walked (e.g., outside --interval-list) are left"
+						+ " out. Can't be combined with --threads > 1 or --run-manifest.");
+
+		ioOptions
+				.addArgument("--feature-type")
+				.dest("FEATURE_TYPE")
+				.metavar("TYPE")
+				.setDefault("gene")
+				.type(String.class)
+				.help("For a GTF/GFF --features file, the feature type (column 3) to"
+						+ " count, e.g., 'gene', 'transcript', or 'exon'. Features are named"
+						+ " by gene_name (or gene_id, Name, or ID), plus their own ID for"
+						+ " types other than 'gene' (e.g., 'BRCA1:ENSE00001484009').");
+
+		ioOptions
+				.addArgument("--feature-output")
+				.dest("FEATURE_OUTPUT")
+				.metavar("FILE")
+				.setDefault("dark_features.bed")
+				.type(String.class)
+				.help("The output BED file for --features (a '.gz' extension is added if"
+						+ " missing). Written as BGZF with a tabix index, and a '#' header"
+						+ " line naming the columns.");
+
 		ioOptions
 				.addArgument("-L", "--interval-list")
 				.dest("INTERVAL_LIST")
@@ -224,7 +374,10 @@ public class DarkRegionFinderEngine {
 						+ " submitting multiple jobs with different regions. We chose this"
 						+ " approach because it makes it easier to split jobs across nodes"
 						+ " in a computer cluster, rather than having a single job manage"
-						+ " all treads. The results will need to be combined for the sample."
+						+ " all treads. Rather than splitting the genome by hand, use"
+						+ " --shard-manifest to split it into regions of roughly equal work."
+						+ " The results will need to be combined for the sample (see"
+						+ " 'DarkRegionFinder merge')."
 						+ " \n\nIf this argument is provided, DRF will add a random string to"
 						+ " the user-specified filenames to avoid multiple runs writing to the"
 						+ " same file.");
@@ -235,6 +388,230 @@ public class DarkRegionFinderEngine {
 	}
 	
 	
+	/**
+	 * Add the thresholds for a dark region, shared by every command that
+	 * writes dark regions.
+	 * 
+	 * @param drfOptions
+	 */
+	private static void addThresholdArguments(ArgumentGroup drfOptions) {
+		drfOptions
+				.addArgument("-s", "--min-region-size")
+				.dest("MIN_SIZE")
+				.metavar("SIZE")
+				.setDefault(1)
+				.type(Integer.class)
+				.help("The minimum size dark region to consider. Details will"
+						+ " still be written at the individual base level, but"
+						+ " only for regions that meet this size requirement."
+						+ " Regions can be merged using bedtools, if desired.");
+
+		drfOptions
+				.addArgument("-t", "--mapq-threshold")
+				.dest("MAPQ_THRESHOLD")
+				.metavar("THRESH")
+				.setDefault(9)
+				.type(Integer.class)
+				.help("The MAPQ threshold (≤) at which a read is \'inadequately\'"
+						+ " aligned and considered \'dark\'. Generally"
+						+ " recommended to use MAPQ ≤ 9"
+						+ " as this is the default MAPQ cut off used by GATK"
+						+ " when filtering reads");
+
+		drfOptions
+				.addArgument("-m", "--min-mapq-mass")
+				.dest("MIN_MAPQ_MASS")
+				.metavar("MAPQ_MASS")
+				.setDefault(90)
+				.type(Integer.class)
+				.help("The minimum percentage (≥) of reads below the"
+						+ " --mapq-threshold for the locus to be considered dark."
+						+ " Dark loci where the percentage is below this threshold"
+						+ " will still be reported if the depth ≤ --min-depth");
+
+		drfOptions
+				.addArgument("-d", "--min-depth")
+				.dest("MIN_DEPTH")
+				.metavar("MIN_DEPTH")
+				.setDefault(5)
+				.type(Integer.class)
+				.help("The depth (≤) at which a region is always considered"
+						+ " 'dark'. The default value is meant to be a stringent"
+						+ " cutoff to identify regions where were very few reads"
+						+ " align (i.e., they're simply missing). Regions where"
+						+ " depth ≤ --min-depth will be reported regardless of MAPQ mass");
+
+		drfOptions
+                .addArgument("-e","--region-exclusivity")
+                .dest("EXCLUSIVE")
+                .metavar("EXCLUSIVE")
+                .action(Arguments.storeTrue())
+                .type(Boolean.class)
+                .help("Whether to treat regions as exclusive or not. If present, a locus"
+                        + " will either be dark by low coverage or dark by low MAPQ"
+                        + " (set by --mapq-threshold), but NOT both. In this case,"
+                        + " the locus will be considered dark by low coverage."
+                        + " Otherwise, a locus can be in both categories if"
+                        + " depth ≤ --min-depth and MAPQ mass ≥ --min-mapq-mass"
+                        + " thresholds");
+	}
+
+	/**
+	 * Add the options for reading the SAM/BAM and reference, shared by the
+	 * default command and 'cohort'.
+	 * 
+	 * @param drfOptions
+	 */
+	private static void addReadArguments(ArgumentGroup drfOptions) {
+		drfOptions
+				.addArgument("-v", "--validation-stringency")
+				.dest("STRINGENCY")
+				.setDefault("STRICT")
+				.choices("STRICT", "LENIENT", "SILENT")
+				.type(String.class)
+				.help("The validation stringency when parsing a SAM/BAM"
+						+ " file. 'STRICT' will throw errors if something "
+						+ " is amiss, 'LENIENT' will give warnings but continue,"
+						+ " and 'SILENT' will continue AND keep our mouth shut."
+						+ " Only reads that pass the read filters (--exclude-flags,"
+						+ " --min-read-mapq, --max-read-span) are validated, and"
+						+ " 'SILENT' is fastest since validating decodes every field"
+						+ " of the read.");
+			
+		drfOptions
+				.addArgument("-S", "--include-supplementary-only")
+				.dest("INCLUDE_SUPPLEMENTARY")
+				.setDefault(false)
+				.action(Arguments.storeTrue())
+				.type(Boolean.class)
+				.help("Include supplementary alignments, but NOT secondary "
+						+ "alignments. \n\nNOTE: Secondary Alignments are reads "
+						+ "that are multiply mapped. \nSupplementary alignments "
+						+ "are chimeric alignments.");
+
+		drfOptions
+				.addArgument("-F", "--exclude-flags")
+				.dest("EXCLUDE_FLAGS")
+				.metavar("FLAGS")
+				.type(String.class)
+				.help("Skip reads with any of these SAM flag bits set (decimal, or"
+						+ " hex with '0x', as in 'samtools view -F'). Defaults to 0x"
+						+ Integer.toHexString(ReadPreFilter.DEFAULT_EXCLUDE_FLAGS)
+						+ " (unmapped, secondary, duplicate, and supplementary), or 0x"
+						+ Integer.toHexString(ReadPreFilter.INCLUDE_SUPPLEMENTARY_EXCLUDE_FLAGS)
+						+ " (unmapped and secondary) with --include-supplementary-only."
+						+ " E.g., add 0x200 to also skip reads that failed QC. Flags"
+						+ " are checked before anything else in the read is decoded,"
+						+ " and the number of reads skipped for each flag is logged.");
+
+		drfOptions
+				.addArgument("-q", "--min-read-mapq")
+				.dest("MIN_READ_MAPQ")
+				.metavar("MAPQ")
+				.setDefault(0)
+				.type(Integer.class)
+				.help("Skip reads with a MAPQ below this. NOTE: skipped reads count"
+						+ " toward neither depth nor MAPQ mass, so loci covered only by"
+						+ " such reads become low depth rather than low MAPQ.");
+
+		drfOptions
+				.addArgument("--max-read-span")
+				.dest("MAX_READ_SPAN")
+				.metavar("BASES")
+				.setDefault(0)
+				.type(Integer.class)
+				.help("Skip reads whose alignment spans more than this many reference"
+						+ " bases (e.g., from long deletions or spliced 'N' operators)."
+						+ " 0 (the default) keeps every read.");
+
+		drfOptions
+				.addArgument("-r", "--reference-window")
+				.dest("REF_WINDOW")
+				.metavar("BASES")
+				.setDefault(ReferenceBaseCache.DEFAULT_WINDOW_SIZE)
+				.type(Integer.class)
+				.help("The number of reference bases to load into memory at a time."
+						+ " Larger windows mean fewer reads from the reference. Use 0"
+						+ " to load one entire contig at a time (memory is then bounded"
+						+ " by the largest contig).");
+
+		drfOptions
+				.addArgument("--read-ahead")
+				.dest("READ_AHEAD")
+				.metavar("MB")
+				.setDefault(16)
+				.type(Integer.class)
+				.help("Read each input this many megabytes ahead of the walk, in 1 MB"
+						+ " chunks read in parallel, and inflate BAM blocks on a"
+						+ " background thread. This hides the latency of network"
+						+ " filesystems and cold disks. The read-ahead starts small after"
+						+ " each seek, so index queries read little extra. 0 reads"
+						+ " synchronously.");
+
+		drfOptions
+				.addArgument("--no-crc-check")
+				.dest("NO_CRC_CHECK")
+				.setDefault(false)
+				.action(Arguments.storeTrue())
+				.type(Boolean.class)
+				.help("Don't check the CRC32 of each BGZF block as it's inflated."
+						+ " Corrupt blocks usually fail to inflate anyway, but a"
+						+ " corrupt block that does inflate will go unnoticed.");
+
+		drfOptions
+				.addArgument("-x", "--exact-depth")
+				.dest("EXACT_DEPTH")
+				.setDefault(false)
+				.action(Arguments.storeTrue())
+				.type(Boolean.class)
+				.help("Count every read at every base. By default, as with htsjdk's"
+						+ " SamLocusIterator, reads are no longer counted at a base once "
+						+ DarkRegionFinder.MAX_READS_PER_LOCUS + " reads start there,"
+						+ " which truncates depth and low-MAPQ counts in collapsed"
+						+ " repeats and other high-copy regions. Exact counting keeps"
+						+ " only per-base counters, so memory does not grow with depth."
+						+ " Implies '--walker sweep'.");
+	}
+
+	/**
+	 * Add the options for writing the BED files, shared by every command
+	 * that writes dark regions.
+	 * 
+	 * @param drfOptions
+	 */
+	private static void addOutputArguments(ArgumentGroup drfOptions) {
+		drfOptions
+				.addArgument("-M", "--merged-output")
+				.dest("MERGED")
+				.setDefault(false)
+				.action(Arguments.storeTrue())
+				.type(Boolean.class)
+				.help("Write one BED line per contiguous dark or incomplete run"
+						+ " rather than one line per base. Runs are still only written"
+						+ " if they meet --min-region-size. Columns for the low-coverage"
+						+ " and low-MAPQ files become: (1) chromosome; (2) start; (3) end;"
+						+ " (4) mean depth; (5) min depth; (6) max depth (reads with a"
+						+ " deletion are NOT included in depth); (7) mean"
+						+ " percMapQBelowThreshold over loci with reads (-1 if none);"
+						+ " (8) total nDeletedInRecord across the run. The incomplete file"
+						+ " keeps its three columns.");
+
+		drfOptions
+				.addArgument("-z", "--compression-threads")
+				.dest("COMPRESSION_THREADS")
+				.metavar("N")
+				.setDefault(Math.min(4, Runtime.getRuntime().availableProcessors()))
+				.type(Integer.class)
+				.choices(Arguments.range(1, Integer.MAX_VALUE))
+				.help("The number of background threads used to compress the output"
+						+ " files. Outputs are written as BGZF (block gzip; still readable"
+						+ " by zcat) with a tabix (.tbi) index next to each file, so a"
+						+ " region can be queried with, e.g., 'tabix <file> chr1:1-1000'."
+						+ " These threads are shared by all outputs and in addition to"
+						+ " --threads.");
+	}
+
+	
 	public void findDarkRegions(ArgumentParser parser, String[] args){
 
 		Namespace parsedArgs = null;
@@ -279,22 +656,45 @@ public class DarkRegionFinderEngine {
 		}
 		
 		boolean includeSupplementary = parsedArgs.getBoolean("INCLUDE_SUPPLEMENTARY");
+		int nThreads = parsedArgs.getInt("THREADS");
+		boolean useSweepEngine = "sweep".equals(parsedArgs.getString("WALKER"));
+		boolean pipelined = parsedArgs.getBoolean("PIPELINE");
+		boolean exactDepth = parsedArgs.getBoolean("EXACT_DEPTH");
+		int refWindow = parsedArgs.getInt("REF_WINDOW");
+		String nRunIndexPath = parsedArgs.getString("N_RUN_INDEX");
+		boolean mergedOutput = parsedArgs.getBoolean("MERGED");
+		String coverageTrack = parsedArgs.getString("COVERAGE_TRACK");
+		List<String> configGrid = parsedArgs.getList("CONFIG_GRID");
+		Integer nShards = parsedArgs.getInt("SHARDS");
+		String shardManifest = parsedArgs.getString("SHARD_MANIFEST");
+		String runManifest = parsedArgs.getString("RUN_MANIFEST");
+		Integer binSize = parsedArgs.getInt("BIN_SIZE");
+		String binOutput = parsedArgs.getString("BIN_OUTPUT");
+		String features = parsedArgs.getString("FEATURES");
+		BgzfBedWriter.setCompressionThreads(parsedArgs.getInt("COMPRESSION_THREADS"));
 //		System.err.println("\nincludeSupplementary: " + includeSupplementary + "\n");
 		
 		try {
+
+			/* Only plan the shards, to be run as separate jobs */
+			if(null != shardManifest) {
+				List<ShardPlanner.Shard> shards = new ShardPlanner(new File(sam), new File(hgRef),
+						intervalList).plan(null != nShards ? nShards
+								: nThreads * DarkRegionShardRunner.SHARDS_PER_THREAD);
+				ShardPlanner.writeManifest(shards, new File(shardManifest));
+				logger.info("Wrote " + shards.size() + " shards to " + shardManifest);
+				return;
+			}
 			
+			DarkRegionFinderEngine.setReadFilterOptions(parsedArgs);
+			DarkRegionFinderEngine.setInputOptions(parsedArgs);
+
 			/*
 			 * DRF will write to .gz file. Add .gz to file names if not present.
 			 */
-			if(!lowDepthBed.startsWith("/dev/null")) {
-				lowDepthBed = lowDepthBed.endsWith(".gz") ? lowDepthBed : lowDepthBed + ".gz";
-			}
-			if(!lowMapQBed.startsWith("/dev/null")) {
-				lowMapQBed = lowMapQBed.endsWith(".gz") ? lowMapQBed : lowMapQBed + ".gz";
-			}
-			if(!incBed.startsWith("/dev/null")) {
-				incBed = incBed.endsWith(".gz") ? incBed : incBed + ".gz";
-			}
+			lowDepthBed = DarkRegionFinderEngine.addGzExtension(lowDepthBed);
+			lowMapQBed = DarkRegionFinderEngine.addGzExtension(lowMapQBed);
+			incBed = DarkRegionFinderEngine.addGzExtension(incBed);
 			
 			File lowDepthBedFile = new File(lowDepthBed);
 			File lowMapQBedFile = new File (lowMapQBed);
@@ -302,9 +702,10 @@ public class DarkRegionFinderEngine {
 			
 			/*
 			 * If an interval list is specified, append random string to output
-			 * file names.
+			 * file names. Incremental runs splice into the same files each
+			 * time, so they keep the names given.
 			 */
-			if(null != intervalList) {
+			if(null != intervalList && null == runManifest) {
 				
 				File[] newOutputFiles = DarkRegionFinderEngine.createUniqueOutputFileNames(lowDepthBed, lowMapQBed, incBed);
 				
@@ -313,13 +714,103 @@ public class DarkRegionFinderEngine {
 				incBedFile = newOutputFiles[2];
 			}
 			
+			if(null != features && (nThreads > 1 || null != runManifest)) {
+				throw new IOException("--features can't be combined with --threads > 1 or"
+						+ " --run-manifest.");
+			}
+
+			/* Bins replace the region outputs */
+			if(null != binSize) {
+				if(nThreads > 1 || null != runManifest || null != configGrid || null != coverageTrack) {
+					throw new IOException("--bin-size can't be combined with --threads > 1,"
+							+ " --run-manifest, --config-grid, or --coverage-track.");
+				}
+				lowDepthBedFile = new File("/dev/null");
+				lowMapQBedFile = new File("/dev/null");
+				incBedFile = new File("/dev/null");
+			}
+
+			List<ThresholdConfig> thresholdConfigs = new ArrayList<ThresholdConfig>();
+			if(null != configGrid) {
+				thresholdConfigs = ThresholdConfig.parseGrid(configGrid, mapQThresh,
+						minMapQMass, minRegionSize, minDepth);
+				logger.info("Evaluating " + thresholdConfigs.size()
+						+ " additional threshold configurations");
+			}
+
+			/*
+			 * Use the incomplete-region index if given, or if one exists
+			 * next to the reference.
+			 */
+			ReferenceNRunIndex nRunIndex = null;
+			File nRunIndexFile = null != nRunIndexPath ? new File(nRunIndexPath)
+					: ReferenceNRunIndex.getDefaultIndexFile(new File(hgRef));
+			if(null != nRunIndexPath || nRunIndexFile.isFile()) {
+				logger.info("Using incomplete-region index " + nRunIndexFile);
+				nRunIndex = ReferenceNRunIndex.load(nRunIndexFile, new File(hgRef));
+			}
+
 			// Do your thing.
-			DarkRegionFinder cgf = new DarkRegionFinder(new File(sam),
-					lowDepthBedFile, lowMapQBedFile, incBedFile,
-					new File(hgRef), mapQThresh, minMapQMass, minRegionSize, minDepth,
-                    exclusive, vs, intervalList, includeSupplementary);
+			if(nThreads > 1 || null != runManifest) {
+				DarkRegionShardRunner runner = new DarkRegionShardRunner(new File(sam),
+						lowDepthBedFile, lowMapQBedFile, incBedFile,
+						new File(hgRef), mapQThresh, minMapQMass, minRegionSize, minDepth,
+						exclusive, vs, intervalList, includeSupplementary, nThreads);
+				if(pipelined) {
+					logger.info("Shards run in parallel; ignoring --pipeline.");
+				}
+				runner.setUseSweepEngine(useSweepEngine);
+				runner.setExactDepth(exactDepth);
+				runner.setReferenceWindowSize(refWindow);
+				runner.setNRunIndex(nRunIndex);
+				runner.setMergedOutput(mergedOutput);
+				runner.setThresholdConfigs(thresholdConfigs);
+				if(null != nShards) {
+					runner.setShardCount(nShards);
+				}
+				if(null != coverageTrack) {
+					runner.setCoverageTrack(new File(coverageTrack));
+				}
+				if(null != runManifest) {
+					runner.setRunManifest(new File(runManifest));
+				}
+
+				runner.run();
+			}
+			else {
+				DarkRegionFinder cgf = new DarkRegionFinder(new File(sam),
+						lowDepthBedFile, lowMapQBedFile, incBedFile,
+						new File(hgRef), mapQThresh, minMapQMass, minRegionSize, minDepth,
+						exclusive, vs, intervalList, includeSupplementary);
+				cgf.setReferenceWindowSize(refWindow);
+				cgf.setExactDepth(exactDepth);
+				cgf.setNRunIndex(nRunIndex);
+				cgf.setMergedOutput(mergedOutput);
+				cgf.setPipelined(pipelined);
+				for(ThresholdConfig config : thresholdConfigs) {
+					cgf.addThresholdConfig(config, config.getOutputFile(lowDepthBedFile),
+							config.getOutputFile(lowMapQBedFile), config.getOutputFile(incBedFile));
+				}
+				if(null != coverageTrack) {
+					cgf.setCoverageTrack(new File(coverageTrack));
+				}
+				if(null != features) {
+					cgf.setFeatureSummary(new File(features), parsedArgs.getString("FEATURE_TYPE"),
+							new File(DarkRegionFinderEngine.addGzExtension(
+									parsedArgs.getString("FEATURE_OUTPUT"))));
+				}
+				if(null != binSize) {
+					cgf.setBinSummary(new File(DarkRegionFinderEngine.addGzExtension(binOutput)),
+							binSize);
+				}
 
-			cgf.startWalkingByLocus();
+				if(useSweepEngine) {
+					cgf.startWalkingBySweep();
+				}
+				else {
+					cgf.startWalkingByLocus();
+				}
+			}
 
 		} catch (FileNotFoundException e) {
 			DarkRegionFinderEngine.printErrorUsageHelpAndExit(parser, logger, e);
@@ -333,6 +824,567 @@ public class DarkRegionFinderEngine {
 	}
 
 	
+	/**
+	 * The 'index-reference' command. Scan the reference once for incomplete
+	 * regions and write them to a sidecar index that later runs can use.
+	 * 
+	 * @param args
+	 */
+	private void indexReference(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newArgumentParser("DarkRegionFinder index-reference");
+		parser.description("Scan the reference for incomplete regions (i.e., runs of"
+				+ " 'N' or 'n') and write them to an index. Incomplete regions depend"
+				+ " only on the reference, so this only needs to be done once per"
+				+ " reference.");
+		parser.defaultHelp(true);
+
+		parser
+				.addArgument("-g", "--human-ref")
+				.dest("HG_REF")
+				.type(String.class)
+				.required(true)
+				.help("The human genome reference file. Must also be indexed "
+						+ "by 'samtools faidx' and have a GATK/Picard sequence"
+						+ " dictionary (e.g., gatk CreateSequenceDictionary -R <ref.fa>).");
+
+		parser
+				.addArgument("-o", "--output")
+				.dest("OUTPUT")
+				.type(String.class)
+				.help("The index file to write. Defaults to <human-ref>"
+						+ ReferenceNRunIndex.EXTENSION + ", where DRF finds it"
+						+ " automatically.");
+
+		Namespace parsedArgs = null;
+		try{
+			parsedArgs = parser.parseArgs(args);
+		} catch (ArgumentParserException e){
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		File hgRef = new File(parsedArgs.getString("HG_REF"));
+		File out = null != parsedArgs.getString("OUTPUT") ? new File(parsedArgs.getString("OUTPUT"))
+				: ReferenceNRunIndex.getDefaultIndexFile(hgRef);
+
+		try {
+			ReferenceNRunIndex.build(hgRef, out);
+			logger.info("Wrote incomplete-region index to " + out);
+		} catch (FileNotFoundException e) {
+			DarkRegionFinderEngine.printErrorUsageHelpAndExit(parser, logger, e);
+		} catch (IOException e) {
+			DarkRegionFinderEngine.printErrorAndExit(e);
+		}
+	}
+	
+	/**
+	 * The 'cohort' command. Walk every alignment file in a manifest in one
+	 * pass, sharing the reference between them.
+	 * 
+	 * @param args
+	 */
+	private void findCohortDarkRegions(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newArgumentParser("DarkRegionFinder cohort");
+		parser.description("Find dark and incomplete regions for many samples in a single"
+				+ " pass. Every file in the manifest is walked in lockstep, so the"
+				+ " reference is read (and incomplete regions found) once for the whole"
+				+ " cohort. Writes <sample>.low_coverage.dark.bed.gz and"
+				+ " <sample>.low_mapq.dark.bed.gz for each sample, a single "
+				+ CohortDarkRegionFinder.INCOMPLETE_BED + ", and "
+				+ CohortDarkRegionFinder.COUNTS_BED + ", which gives the number of samples"
+				+ " that are dark at each locus. Columns for the counts file are:"
+				+ " (1) chromosome; (2) start; (3) end; (4) n samples with low coverage;"
+				+ " (5) n samples with low MAPQ; (6) n samples dark by either. Loci with"
+				+ " the same counts share a line, and loci where no sample is dark are"
+				+ " not written. Counts are per locus and ignore --min-region-size."
+				+ " Every file must be indexed and aligned to the same reference. Each"
+				+ " file stays open for the whole run.");
+		parser.defaultHelp(true);
+
+		ArgumentGroup drfOptions = parser.addArgumentGroup("Dark Region Finder arguments");
+		ArgumentGroup ioOptions = parser.addArgumentGroup("input/output arguments");
+		DarkRegionFinderEngine.addThresholdArguments(drfOptions);
+		DarkRegionFinderEngine.addReadArguments(drfOptions);
+		DarkRegionFinderEngine.addOutputArguments(drfOptions);
+
+		ioOptions
+				.addArgument("-I", "--manifest")
+				.dest("MANIFEST")
+				.type(String.class)
+				.required(true)
+				.help("A file listing the SAM/BAM/CRAM files, one per line. A line"
+						+ " may start with a sample name and a tab (<name><tab><file>);"
+						+ " otherwise the sample is named after its read groups, or the"
+						+ " file if the read groups don't name exactly one sample."
+						+ " Blank lines and lines starting with '#' are ignored.");
+
+		ioOptions
+				.addArgument("-g", "--human-ref")
+				.dest("HG_REF")
+				.type(String.class)
+				.required(true)
+				.help("The human genome reference file. Must also be indexed "
+						+ "by 'samtools faidx' and have a GATK/Picard sequence"
+						+ " dictionary (e.g., gatk CreateSequenceDictionary -R <ref.fa>).");
+
+		ioOptions
+				.addArgument("-o", "--output-dir")
+				.dest("OUTPUT_DIR")
+				.type(String.class)
+				.setDefault(".")
+				.help("The directory to write the outputs to. Created if it doesn't exist.");
+
+		ioOptions
+				.addArgument("-N", "--n-run-index")
+				.dest("N_RUN_INDEX")
+				.type(String.class)
+				.help("An incomplete-region index built with 'index-reference'. If"
+						+ " not provided, DRF looks for <human-ref>" + ReferenceNRunIndex.EXTENSION
+						+ " and uses it if present.");
+
+		ioOptions
+				.addArgument("-L", "--interval-list")
+				.dest("INTERVAL_LIST")
+				.type(String.class)
+				.nargs("+")
+				.help("Specific intervals to include, formatted as"
+						+ " <contig_name>:<start>-<end> (1-based). See the default"
+						+ " command's help for details.");
+
+		Namespace parsedArgs = null;
+		try{
+			parsedArgs = parser.parseArgs(args);
+		} catch (ArgumentParserException e){
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		String hgRef = parsedArgs.getString("HG_REF");
+		String nRunIndexPath = parsedArgs.getString("N_RUN_INDEX");
+		BgzfBedWriter.setCompressionThreads(parsedArgs.getInt("COMPRESSION_THREADS"));
+
+		try {
+			DarkRegionFinderEngine.setReadFilterOptions(parsedArgs);
+			DarkRegionFinderEngine.setInputOptions(parsedArgs);
+			CohortDarkRegionFinder cohort = new CohortDarkRegionFinder(
+					new File(parsedArgs.getString("MANIFEST")),
+					new File(parsedArgs.getString("OUTPUT_DIR")), new File(hgRef),
+					parsedArgs.getInt("MAPQ_THRESHOLD"), parsedArgs.getInt("MIN_MAPQ_MASS"),
+					parsedArgs.getInt("MIN_SIZE"), parsedArgs.getInt("MIN_DEPTH"),
+					parsedArgs.getBoolean("EXCLUSIVE"),
+					ValidationStringency.valueOf(parsedArgs.getString("STRINGENCY")),
+					parsedArgs.<String>getList("INTERVAL_LIST"),
+					parsedArgs.getBoolean("INCLUDE_SUPPLEMENTARY"));
+			cohort.setReferenceWindowSize(parsedArgs.getInt("REF_WINDOW"));
+			cohort.setExactDepth(parsedArgs.getBoolean("EXACT_DEPTH"));
+			cohort.setMergedOutput(parsedArgs.getBoolean("MERGED"));
+
+			File nRunIndexFile = null != nRunIndexPath ? new File(nRunIndexPath)
+					: ReferenceNRunIndex.getDefaultIndexFile(new File(hgRef));
+			if(null != nRunIndexPath || nRunIndexFile.isFile()) {
+				logger.info("Using incomplete-region index " + nRunIndexFile);
+				cohort.setNRunIndex(ReferenceNRunIndex.load(nRunIndexFile, new File(hgRef)));
+			}
+
+			cohort.startWalking();
+
+		} catch (FileNotFoundException e) {
+			DarkRegionFinderEngine.printErrorUsageHelpAndExit(parser, logger, e);
+		} catch (IOException e) {
+			DarkRegionFinderEngine.printErrorAndExit(e);
+		} catch (Exception e) {
+			logger.error("The cohort command failed", e);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * The 'rethreshold' command. Regenerate the BED files from a coverage
+	 * track written with --coverage-track, for new thresholds.
+	 * 
+	 * @param args
+	 */
+	private void rethreshold(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newArgumentParser("DarkRegionFinder rethreshold");
+		parser.description("Regenerate the low-coverage, low-MAPQ, and incomplete BED files"
+				+ " from a coverage track written with --coverage-track, using new"
+				+ " thresholds. Neither the SAM/BAM nor the reference is read. The output"
+				+ " is the same as re-running DRF on the SAM/BAM with the new thresholds,"
+				+ " but --mapq-threshold must be one of the MAPQs the track counts reads"
+				+ " by (" + Arrays.toString(CoverageTrackWriter.MAPQ_BIN_UPPER_EDGES) + ").");
+		parser.defaultHelp(true);
+
+		ArgumentGroup drfOptions = parser.addArgumentGroup("Dark Region Finder arguments");
+		ArgumentGroup ioOptions = parser.addArgumentGroup("input/output arguments");
+		DarkRegionFinderEngine.addThresholdArguments(drfOptions);
+		DarkRegionFinderEngine.addOutputArguments(drfOptions);
+
+		ioOptions
+				.addArgument("-k", "--coverage-track")
+				.dest("COVERAGE_TRACK")
+				.type(String.class)
+				.required(true)
+				.help("The coverage track written with --coverage-track.");
+
+		ioOptions
+				.addArgument("-c", "--low-coverage-bed-output")
+				.dest("LOW_COV_BED")
+				.type(String.class)
+				.setDefault("low_coverage.dark.bed")
+				.help("The output BED file for low-coverage dark regions.");
+
+		ioOptions
+				.addArgument("-a", "--low-mapq-bed-output")
+				.dest("LOW_MAPQ_BED")
+				.type(String.class)
+				.setDefault("low_mapq.dark.bed")
+				.help("The output BED file for low MAPQ dark regions.");
+
+		ioOptions
+				.addArgument("-n", "--incomplete-bed-output")
+				.dest("INC_BED")
+				.type(String.class)
+				.setDefault("incomplete.bed")
+				.help("The output BED file for incomplete regions.");
+
+		ioOptions
+				.addArgument("-L", "--interval-list")
+				.dest("INTERVAL_LIST")
+				.type(String.class)
+				.nargs("+")
+				.help("Only regenerate these intervals, formatted as"
+						+ " <contig_name>:<start>-<end> (1-based). Uses the track's"
+						+ " index to read only the intervals.");
+
+		Namespace parsedArgs = null;
+		try{
+			parsedArgs = parser.parseArgs(args);
+		} catch (ArgumentParserException e){
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		BgzfBedWriter.setCompressionThreads(parsedArgs.getInt("COMPRESSION_THREADS"));
+
+		try {
+			CoverageTrackRethresholder rethresholder = new CoverageTrackRethresholder(
+					new File(parsedArgs.getString("COVERAGE_TRACK")),
+					new File(DarkRegionFinderEngine.addGzExtension(parsedArgs.getString("LOW_COV_BED"))),
+					new File(DarkRegionFinderEngine.addGzExtension(parsedArgs.getString("LOW_MAPQ_BED"))),
+					new File(DarkRegionFinderEngine.addGzExtension(parsedArgs.getString("INC_BED"))),
+					parsedArgs.getInt("MAPQ_THRESHOLD"), parsedArgs.getInt("MIN_MAPQ_MASS"),
+					parsedArgs.getInt("MIN_SIZE"), parsedArgs.getInt("MIN_DEPTH"),
+					parsedArgs.getBoolean("EXCLUSIVE"),
+					parsedArgs.<String>getList("INTERVAL_LIST"));
+			rethresholder.setMergedOutput(parsedArgs.getBoolean("MERGED"));
+			rethresholder.run();
+
+		} catch (FileNotFoundException e) {
+			DarkRegionFinderEngine.printErrorUsageHelpAndExit(parser, logger, e);
+		} catch (IOException e) {
+			DarkRegionFinderEngine.printErrorAndExit(e);
+		}
+	}
+
+	/**
+	 * The 'merge' command. Combine the salted outputs of --interval-list
+	 * runs into one file per category.
+	 * 
+	 * @param args
+	 */
+	private void mergeIntervalOutputs(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newArgumentParser("DarkRegionFinder merge");
+		parser.description("Combine the outputs of DRF runs with --interval-list (which add"
+				+ " '.salt_<random>' to each output's name) into one sorted, block-gzipped"
+				+ " and indexed file per category. Pass the same output names the runs"
+				+ " were given; every salted file next to each is merged in reference"
+				+ " order. Regions that touch across an interval boundary are joined"
+				+ " into one, and --min-region-size is applied to the joined region."
+				+ " Runs shorter than --min-region-size on either side of a boundary are"
+				+ " never written, so run the intervals with --min-region-size 0 (which"
+				+ " writes every run) and give the size you want here. With --merged-output,"
+				+ " the statistics of a joined run are recombined from each part's rounded"
+				+ " means, weighted by length, so they are approximate. The salted"
+				+ " files are left in place.");
+		parser.defaultHelp(true);
+
+		ArgumentGroup drfOptions = parser.addArgumentGroup("Dark Region Finder arguments");
+		ArgumentGroup ioOptions = parser.addArgumentGroup("input/output arguments");
+
+		drfOptions
+				.addArgument("-s", "--min-region-size")
+				.dest("MIN_SIZE")
+				.metavar("SIZE")
+				.setDefault(1)
+				.type(Integer.class)
+				.help("The minimum size region to write, after joining regions"
+						+ " across interval boundaries. As in a single run, dark regions"
+						+ " must be longer than this, and incomplete regions at least"
+						+ " this long.");
+		DarkRegionFinderEngine.addOutputArguments(drfOptions);
+
+		ioOptions
+				.addArgument("-g", "--human-ref")
+				.dest("HG_REF")
+				.type(String.class)
+				.required(true)
+				.help("The human genome reference file the runs used. Only its"
+						+ " sequence dictionary (.dict) is read, to order the output.");
+
+		ioOptions
+				.addArgument("-c", "--low-coverage-bed-output")
+				.dest("LOW_COV_BED")
+				.type(String.class)
+				.setDefault("low_coverage.dark.bed")
+				.help("The low-coverage output name given to the runs.");
+
+		ioOptions
+				.addArgument("-a", "--low-mapq-bed-output")
+				.dest("LOW_MAPQ_BED")
+				.type(String.class)
+				.setDefault("low_mapq.dark.bed")
+				.help("The low MAPQ output name given to the runs.");
+
+		ioOptions
+				.addArgument("-n", "--incomplete-bed-output")
+				.dest("INC_BED")
+				.type(String.class)
+				.setDefault("incomplete.bed")
+				.help("The incomplete output name given to the runs.");
+
+		Namespace parsedArgs = null;
+		try{
+			parsedArgs = parser.parseArgs(args);
+		} catch (ArgumentParserException e){
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		BgzfBedWriter.setCompressionThreads(parsedArgs.getInt("COMPRESSION_THREADS"));
+
+		try {
+			IndexedFastaSequenceFile refReader = new IndexedFastaSequenceFile(
+					new File(parsedArgs.getString("HG_REF")));
+			SAMSequenceDictionary dictionary = refReader.getSequenceDictionary();
+			refReader.close();
+			if(null == dictionary) {
+				throw new IOException("The reference provided does not have a dictionary (.dict) file. Generate"
+						+ " the dictionary before proceeding.");
+			}
+
+			SaltedOutputMerger merger = new SaltedOutputMerger(dictionary,
+					parsedArgs.getInt("MIN_SIZE"), parsedArgs.getBoolean("MERGED"));
+			File output;
+			List<File> inputs;
+			String[] beds = {parsedArgs.getString("LOW_COV_BED"),
+					parsedArgs.getString("LOW_MAPQ_BED"), parsedArgs.getString("INC_BED")};
+			String bed;
+			for(int i = 0; i < beds.length; i++) {
+				bed = DarkRegionFinderEngine.addGzExtension(beds[i]);
+				if(bed.startsWith("/dev/null")) {
+					continue;
+				}
+				output = new File(bed);
+				inputs = SaltedOutputMerger.findSaltedFiles(output);
+				if(inputs.isEmpty()) {
+					logger.warn("No --interval-list outputs found for " + output + ". Skipping.");
+					continue;
+				}
+				merger.merge(inputs, output, beds.length - 1 == i);
+			}
+
+		} catch (FileNotFoundException e) {
+			DarkRegionFinderEngine.printErrorUsageHelpAndExit(parser, logger, e);
+		} catch (IOException e) {
+			DarkRegionFinderEngine.printErrorAndExit(e);
+		}
+	}
+
+	/**
+	 * The 'serve' command. Answer interval queries for the files in a
+	 * manifest over HTTP until the process is stopped.
+	 * 
+	 * @param args
+	 */
+	private void serve(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newArgumentParser("DarkRegionFinder serve");
+		parser.description("Answer dark-region queries over HTTP on the loopback interface"
+				+ " (127.0.0.1), keeping the reference, readers, and indexes open between"
+				+ " queries. Query with GET /query?sample=<name>&region=<contig>:<start>-<end>"
+				+ " (repeat 'region' for more than one), optionally overriding the"
+				+ " thresholds with t, m, s, and d (as -t, -m, -s, and -d) and"
+				+ " merged=true|false. Each line of the answer is the category"
+				+ " (low_coverage, low_mapq, or incomplete) followed by the line the"
+				+ " default command would write for the same --interval-list. GET /samples"
+				+ " lists the sample names and GET /stats the number of queries answered."
+				+ " Recent answers are cached. Every file must be indexed.");
+		parser.defaultHelp(true);
+
+		ArgumentGroup drfOptions = parser.addArgumentGroup("Dark Region Finder arguments");
+		ArgumentGroup ioOptions = parser.addArgumentGroup("input/output arguments");
+		DarkRegionFinderEngine.addThresholdArguments(drfOptions);
+		DarkRegionFinderEngine.addReadArguments(drfOptions);
+		DarkRegionFinderEngine.addOutputArguments(drfOptions);
+
+		ioOptions
+				.addArgument("-I", "--manifest")
+				.dest("MANIFEST")
+				.type(String.class)
+				.required(true)
+				.help("A file listing the SAM/BAM/CRAM files to serve, in the same format"
+						+ " as for 'cohort'. Queries name the sample to walk.");
+
+		ioOptions
+				.addArgument("-g", "--human-ref")
+				.dest("HG_REF")
+				.type(String.class)
+				.required(true)
+				.help("The human genome reference file. Must also be indexed "
+						+ "by 'samtools faidx' and have a GATK/Picard sequence"
+						+ " dictionary (e.g., gatk CreateSequenceDictionary -R <ref.fa>).");
+
+		ioOptions
+				.addArgument("-N", "--n-run-index")
+				.dest("N_RUN_INDEX")
+				.type(String.class)
+				.help("An incomplete-region index built with 'index-reference'. If"
+						+ " not provided, DRF looks for <human-ref>" + ReferenceNRunIndex.EXTENSION
+						+ " and uses it if present.");
+
+		ioOptions
+				.addArgument("-p", "--port")
+				.dest("PORT")
+				.type(Integer.class)
+				.setDefault(DarkRegionServer.DEFAULT_PORT)
+				.help("The port to listen on.");
+
+		ioOptions
+				.addArgument("-T", "--threads")
+				.dest("THREADS")
+				.type(Integer.class)
+				.setDefault(4)
+				.help("The number of queries to answer at once. Each thread keeps its own"
+						+ " reader open for every sample it has queried.");
+
+		ioOptions
+				.addArgument("-C", "--cache-size")
+				.dest("CACHE_SIZE")
+				.type(Integer.class)
+				.setDefault(DarkRegionServer.DEFAULT_CACHE_SIZE)
+				.help("The number of recent answers to keep. 0 disables the cache.");
+
+		Namespace parsedArgs = null;
+		try{
+			parsedArgs = parser.parseArgs(args);
+		} catch (ArgumentParserException e){
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		String hgRef = parsedArgs.getString("HG_REF");
+		String nRunIndexPath = parsedArgs.getString("N_RUN_INDEX");
+		BgzfBedWriter.setCompressionThreads(parsedArgs.getInt("COMPRESSION_THREADS"));
+
+		try {
+			if(parsedArgs.getInt("THREADS") < 1) {
+				throw new IOException("--threads must be at least 1.");
+			}
+			if(parsedArgs.getInt("CACHE_SIZE") < 0) {
+				throw new IOException("--cache-size cannot be negative.");
+			}
+
+			DarkRegionFinderEngine.setReadFilterOptions(parsedArgs);
+			DarkRegionFinderEngine.setInputOptions(parsedArgs);
+			final DarkRegionServer server = new DarkRegionServer(
+					new File(parsedArgs.getString("MANIFEST")), new File(hgRef),
+					parsedArgs.getInt("MAPQ_THRESHOLD"), parsedArgs.getInt("MIN_MAPQ_MASS"),
+					parsedArgs.getInt("MIN_SIZE"), parsedArgs.getInt("MIN_DEPTH"),
+					parsedArgs.getBoolean("EXCLUSIVE"),
+					ValidationStringency.valueOf(parsedArgs.getString("STRINGENCY")),
+					parsedArgs.getBoolean("INCLUDE_SUPPLEMENTARY"),
+					parsedArgs.getInt("CACHE_SIZE"));
+			server.setReferenceWindowSize(parsedArgs.getInt("REF_WINDOW"));
+			server.setExactDepth(parsedArgs.getBoolean("EXACT_DEPTH"));
+			server.setMergedOutput(parsedArgs.getBoolean("MERGED"));
+
+			File nRunIndexFile = null != nRunIndexPath ? new File(nRunIndexPath)
+					: ReferenceNRunIndex.getDefaultIndexFile(new File(hgRef));
+			if(null != nRunIndexPath || nRunIndexFile.isFile()) {
+				logger.info("Using incomplete-region index " + nRunIndexFile);
+				server.setNRunIndex(ReferenceNRunIndex.load(nRunIndexFile, new File(hgRef)));
+			}
+
+			/* Close the readers when the process is stopped */
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					server.stop();
+				}
+			});
+			server.start(parsedArgs.getInt("PORT"), parsedArgs.getInt("THREADS"));
+
+		} catch (FileNotFoundException e) {
+			DarkRegionFinderEngine.printErrorUsageHelpAndExit(parser, logger, e);
+		} catch (IOException e) {
+			DarkRegionFinderEngine.printErrorAndExit(e);
+		} catch (Exception e) {
+			logger.error("The serve command failed", e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Set the read pre-filter options (see ReadPreFilter) for every
+	 * DarkRegionFinder in this process.
+	 * 
+	 * @param parsedArgs
+	 * @throws IOException if --exclude-flags isn't a number
+	 */
+	private static void setReadFilterOptions(Namespace parsedArgs) throws IOException {
+		String flags = parsedArgs.getString("EXCLUDE_FLAGS");
+		Integer excludeFlags = null;
+		if(null != flags) {
+			try {
+				excludeFlags = Integer.decode(flags);
+			} catch (NumberFormatException e) {
+				throw new IOException("Could not parse --exclude-flags '" + flags
+						+ "'. Give the flags in decimal or in hex with '0x'.");
+			}
+		}
+		DarkRegionFinder.setReadFilterOptions(excludeFlags, parsedArgs.getInt("MIN_READ_MAPQ"),
+				parsedArgs.getInt("MAX_READ_SPAN"));
+	}
+
+	/**
+	 * Set how inputs are read (see DarkRegionFinder.openSam()) for every
+	 * DarkRegionFinder in this process.
+	 * 
+	 * @param parsedArgs
+	 * @throws IOException if --read-ahead is negative
+	 */
+	private static void setInputOptions(Namespace parsedArgs) throws IOException {
+		int readAhead = parsedArgs.getInt("READ_AHEAD");
+		if(readAhead < 0) {
+			throw new IOException("--read-ahead must be 0 or more megabytes.");
+		}
+		/* The chunks are 1 MB */
+		DarkRegionFinder.setInputOptions(readAhead, !parsedArgs.getBoolean("NO_CRC_CHECK"));
+	}
+
+	/**
+	 * Add '.gz' to an output file name if it isn't already there (and the
+	 * output isn't being thrown away).
+	 * 
+	 * @param bed
+	 * @return
+	 */
+	private static String addGzExtension(String bed) {
+		if(bed.startsWith("/dev/null") || bed.endsWith(".gz")) {
+			return bed;
+		}
+		return bed + ".gz";
+	}
+	
 	/**
 	 * Print the error. Then print the usage and help
 	 * information and exit
@@ -401,17 +1453,17 @@ public class DarkRegionFinderEngine {
 
 			lowDepthBedFile = lowDepthBed.startsWith(devNull) ?
 					new File(lowDepthBed) :
-						new File(lowDepthFileAndExtension[0] + ".salt_"
+						new File(lowDepthFileAndExtension[0] + SaltedOutputMerger.SALT_TAG
 								+ saltString + lowDepthFileAndExtension[1]);
 
 			lowMapQBedFile = lowMapQBed.startsWith(devNull) ?
 					new File(lowMapQBed) :
-						new File(lowMAPQFileAndExtension[0] + ".salt_"
+						new File(lowMAPQFileAndExtension[0] + SaltedOutputMerger.SALT_TAG
 								+ saltString + lowMAPQFileAndExtension[1]);
 
 			incBedFile = incBed.startsWith(devNull) ? 
 					new File(incBed) :
-						new File(incFileAndExtension[0] + ".salt_"
+						new File(incFileAndExtension[0] + SaltedOutputMerger.SALT_TAG
 								+ saltString + incFileAndExtension[1]);
 			
 			/*
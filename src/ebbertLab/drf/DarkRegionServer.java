@@ -0,0 +1,532 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Answer dark-region queries over HTTP on the loopback interface, keeping
+ * what's expensive to open warm between queries. The reference is mapped
+ * once (see MappedFastaReference), and each handler thread keeps a
+ * SamReader (with the index it has loaded) open for every sample it has
+ * queried. A query walks only the requested regions, with the same code as
+ * a run with --interval-list, so it gives the same regions. Recent answers
+ * are kept in a small LRU cache.
+ *
+ * Endpoints (all GET):
+ * <ul>
+ * <li>/query?sample=NAME&amp;region=CHR:START-END[&amp;region=...] with
+ * optional t, m, s, and d (--mapq-threshold, --min-mapq-mass,
+ * --min-region-size, and --min-depth) and merged=true|false. Returns one
+ * line per dark or incomplete region: the category (low_coverage,
+ * low_mapq, or incomplete) followed by the line from the corresponding
+ * BED output.</li>
+ * <li>/samples: the sample names, one per line</li>
+ * <li>/stats: the number of queries and cache hits</li>
+ * </ul>
+ *
+ * @author markebbert
+ *
+ */
+public class DarkRegionServer {
+
+	private static Logger logger = Logger.getLogger(DarkRegionServer.class);
+
+	public static final int DEFAULT_PORT = 8642;
+	public static final int DEFAULT_CACHE_SIZE = 1000;
+
+	/* The categories, in the order they're written for a query */
+	private static final String[] CATEGORIES = {"low_coverage", "low_mapq", "incomplete"};
+
+	/* Refuse queries that would walk more than this many bases */
+	private static final long MAX_QUERY_BASES = 10000000;
+
+	private final Map<String, File> samples = new LinkedHashMap<String, File>();
+	private final File hgRef;
+	private final ReferenceSequenceFile hgRefReader;
+	private final SAMSequenceDictionary hgRefDictionary;
+	private final int mapQThreshold, minMapQMass, minRegionSize, minDepth;
+	private final boolean exclusiveRegions, includeSupplementary;
+	private final ValidationStringency vs;
+	private int referenceWindowSize = ReferenceBaseCache.DEFAULT_WINDOW_SIZE;
+	private ReferenceNRunIndex nRunIndex;
+	private boolean mergedOutput = false, exactDepth = false;
+
+	/* Each handler thread's readers, by sample, and every reader opened */
+	private final ThreadLocal<Map<String, SamReader>> readers = new ThreadLocal<Map<String, SamReader>>() {
+		@Override
+		protected Map<String, SamReader> initialValue() {
+			return new HashMap<String, SamReader>();
+		}
+	};
+	private final List<SamReader> openReaders = Collections.synchronizedList(new ArrayList<SamReader>());
+
+	/* Recent answers by query, least recently used first */
+	private final Map<String, String> cache;
+	private final AtomicLong nQueries = new AtomicLong(), nCacheHits = new AtomicLong();
+
+	private HttpServer server;
+	private ExecutorService pool;
+
+	/**
+	 *
+	 * @param manifest The SAM/BAM/CRAM files, in the same format as for
+	 * CohortDarkRegionFinder. Every file must be indexed.
+	 * @param hgRef
+	 * @param mapQThreshold The default for queries that don't give one
+	 * @param minMapQMass The default for queries that don't give one
+	 * @param minRegionSize The default for queries that don't give one
+	 * @param minDepth The default for queries that don't give one
+	 * @param exclusiveRegions
+	 * @param vs
+	 * @param includeSupplementary
+	 * @param cacheSize The number of answers to keep
+	 * @throws IOException
+	 */
+	public DarkRegionServer(File manifest, File hgRef, int mapQThreshold, int minMapQMass,
+			int minRegionSize, int minDepth, boolean exclusiveRegions, ValidationStringency vs,
+			boolean includeSupplementary, final int cacheSize) throws IOException {
+		this.hgRef = hgRef;
+		this.mapQThreshold = mapQThreshold;
+		this.minMapQMass = minMapQMass;
+		this.minRegionSize = minRegionSize;
+		this.minDepth = minDepth;
+		this.exclusiveRegions = exclusiveRegions;
+		this.vs = vs;
+		this.includeSupplementary = includeSupplementary;
+
+		this.hgRefReader = MappedFastaReference.openReference(hgRef);
+		this.hgRefDictionary = hgRefReader.getSequenceDictionary();
+		if(null == hgRefDictionary) {
+			throw new IOException("The reference provided does not have a dictionary (.dict) file."
+					+ " Generate the dictionary before proceeding.");
+		}
+
+		this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		readManifest(manifest);
+	}
+
+	/**
+	 * Check that every file in the manifest can be opened and is indexed,
+	 * and name its sample.
+	 *
+	 * @param manifest
+	 * @throws IOException
+	 */
+	private void readManifest(File manifest) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(manifest));
+		try {
+			String line, name;
+			String[] toks;
+			File samFile;
+			SamReader reader;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				toks = line.split("\t");
+				samFile = new File(toks[toks.length - 1]);
+
+				reader = DarkRegionFinder.openSam(samFile, hgRef);
+				try {
+					if(!reader.hasIndex()) {
+						throw new IOException("The server requires indexed SAM/BAM/CRAM files. Index "
+								+ samFile + " before proceeding.");
+					}
+					name = toks.length > 1 ? toks[0]
+							: CohortDarkRegionFinder.getSampleName(reader.getFileHeader(), samFile);
+				} finally {
+					reader.close();
+				}
+				if(samples.containsKey(name)) {
+					throw new IOException("Sample name " + name + " appears more than once in the"
+							+ " manifest. Give each file a unique name (<name><tab><file>).");
+				}
+				samples.put(name, samFile);
+			}
+		} finally {
+			br.close();
+		}
+
+		if(samples.isEmpty()) {
+			throw new IOException("The manifest " + manifest + " does not list any files.");
+		}
+	}
+
+	/**
+	 * @param referenceWindowSize
+	 */
+	public void setReferenceWindowSize(int referenceWindowSize) {
+		this.referenceWindowSize = referenceWindowSize;
+	}
+
+	/**
+	 * @param nRunIndex
+	 */
+	public void setNRunIndex(ReferenceNRunIndex nRunIndex) {
+		this.nRunIndex = nRunIndex;
+	}
+
+	/**
+	 * Answer with one line per run rather than per base, unless the query
+	 * says otherwise.
+	 *
+	 * @param mergedOutput
+	 */
+	public void setMergedOutput(boolean mergedOutput) {
+		this.mergedOutput = mergedOutput;
+	}
+
+	/**
+	 * @param exactDepth (see DarkRegionFinder.setExactDepth())
+	 */
+	public void setExactDepth(boolean exactDepth) {
+		this.exactDepth = exactDepth;
+	}
+
+	/**
+	 * Start answering queries on the loopback interface.
+	 *
+	 * @param port
+	 * @param nThreads The number of queries to answer at once
+	 * @throws IOException
+	 */
+	public void start(int port, int nThreads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/query", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleQuery(exchange);
+			}
+		});
+		server.createContext("/samples", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder sb = new StringBuilder();
+				for(String name : samples.keySet()) {
+					sb.append(name).append('\n');
+				}
+				respond(exchange, 200, sb.toString());
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, "queries\t" + nQueries.get() + "\ncache_hits\t"
+						+ nCacheHits.get() + "\n");
+			}
+		});
+
+		pool = Executors.newFixedThreadPool(nThreads);
+		server.setExecutor(pool);
+		server.start();
+		logger.info("Serving " + samples.size() + " samples at http://"
+				+ server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+				+ "/query on " + nThreads + " threads");
+	}
+
+	/**
+	 * Stop answering queries and close every reader.
+	 */
+	public void stop() {
+		if(null != server) {
+			server.stop(0);
+			pool.shutdown();
+		}
+		synchronized(openReaders) {
+			for(SamReader reader : openReaders) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					logger.warn("Could not close a reader: " + e.getMessage());
+				}
+			}
+			openReaders.clear();
+		}
+		logger.info("Answered " + nQueries.get() + " queries (" + nCacheHits.get()
+				+ " from the cache)");
+	}
+
+	/**
+	 * Answer a /query request. Bad queries get a 400 with the reason.
+	 *
+	 * @param exchange
+	 * @throws IOException
+	 */
+	private void handleQuery(HttpExchange exchange) throws IOException {
+		try {
+			if(!"GET".equals(exchange.getRequestMethod())) {
+				respond(exchange, 405, "Only GET is supported.\n");
+				return;
+			}
+			respond(exchange, 200, query(parseParameters(exchange.getRequestURI().getRawQuery())));
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, e.getMessage() + "\n");
+		} catch (Exception e) {
+			logger.error("Query " + exchange.getRequestURI() + " failed", e);
+			respond(exchange, 500, "The query failed: " + e.getMessage() + "\n");
+		}
+	}
+
+	/**
+	 * Answer a query from the cache, or by walking its regions.
+	 *
+	 * @param params
+	 * @return
+	 * @throws Exception
+	 */
+	String query(Map<String, List<String>> params) throws Exception {
+		String sample = getParameter(params, "sample", null);
+		if(null == sample) {
+			throw new IllegalArgumentException("Give a sample (sample=NAME). See /samples.");
+		}
+		if(!samples.containsKey(sample)) {
+			throw new IllegalArgumentException("Unknown sample " + sample + ". See /samples.");
+		}
+		List<String> regions = normalizeRegions(params.get("region"));
+
+		int t = Integer.parseInt(getParameter(params, "t", String.valueOf(mapQThreshold)));
+		int m = Integer.parseInt(getParameter(params, "m", String.valueOf(minMapQMass)));
+		int s = Integer.parseInt(getParameter(params, "s", String.valueOf(minRegionSize)));
+		int d = Integer.parseInt(getParameter(params, "d", String.valueOf(minDepth)));
+		boolean merged = Boolean.parseBoolean(getParameter(params, "merged",
+				String.valueOf(mergedOutput)));
+
+		nQueries.incrementAndGet();
+		String key = sample + "\t" + String.join(",", regions) + "\t" + t + "\t" + m
+				+ "\t" + s + "\t" + d + "\t" + merged;
+		String answer;
+		synchronized(cache) {
+			answer = cache.get(key);
+		}
+		if(null != answer) {
+			nCacheHits.incrementAndGet();
+			return answer;
+		}
+
+		answer = walk(sample, regions, t, m, s, d, merged);
+		synchronized(cache) {
+			cache.put(key, answer);
+		}
+		return answer;
+	}
+
+	/**
+	 * Walk the regions for a sample with this thread's reader, writing the
+	 * regions to memory.
+	 *
+	 * @param sample
+	 * @param regions
+	 * @param t
+	 * @param m
+	 * @param s
+	 * @param d
+	 * @param merged
+	 * @return
+	 * @throws Exception
+	 */
+	private String walk(String sample, List<String> regions, int t, int m, int s, int d,
+			boolean merged) throws Exception {
+
+		SamReader reader = getReader(sample);
+		for(String region : regions) {
+			String contig = region.substring(0, region.lastIndexOf(':'));
+			if(null == reader.getFileHeader().getSequence(contig)) {
+				throw new IllegalArgumentException("Sequence " + contig + " is not in "
+						+ samples.get(sample) + ".");
+			}
+		}
+
+		ByteArrayOutputStream[] outs = new ByteArrayOutputStream[CATEGORIES.length];
+		BgzfBedWriter[] writers = new BgzfBedWriter[CATEGORIES.length];
+		for(int c = 0; c < CATEGORIES.length; c++) {
+			outs[c] = new ByteArrayOutputStream();
+			writers[c] = new BgzfBedWriter(outs[c]);
+		}
+
+		DarkRegionFinder drf = new DarkRegionFinder(reader, hgRefReader,
+				writers[0], writers[1], writers[2], t, m, s, d, exclusiveRegions, vs,
+				regions, includeSupplementary);
+		drf.setQuiet(true);
+		drf.setReferenceWindowSize(referenceWindowSize);
+		drf.setNRunIndex(nRunIndex);
+		drf.setMergedOutput(merged);
+		drf.setExactDepth(exactDepth);
+		drf.startWalkingBySweep();
+
+		StringBuilder sb = new StringBuilder("#category\tchrom\tstart\tend\t...\n");
+		String line;
+		for(int c = 0; c < CATEGORIES.length; c++) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(
+					new BlockCompressedInputStream(new ByteArrayInputStream(outs[c].toByteArray()))));
+			try {
+				while(null != (line = br.readLine())) {
+					sb.append(CATEGORIES[c]).append('\t').append(line).append('\n');
+				}
+			} finally {
+				br.close();
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get this thread's reader for a sample, opening it the first time.
+	 *
+	 * @param sample
+	 * @return
+	 * @throws IOException
+	 */
+	private SamReader getReader(String sample) throws IOException {
+		Map<String, SamReader> threadReaders = readers.get();
+		SamReader reader = threadReaders.get(sample);
+		if(null == reader) {
+			reader = DarkRegionFinder.openSam(samples.get(sample), hgRef);
+			threadReaders.put(sample, reader);
+			openReaders.add(reader);
+		}
+		return reader;
+	}
+
+	/**
+	 * Check the regions against the reference and write them the same way
+	 * (so equal queries share a cache entry).
+	 *
+	 * @param regions CHR:START-END, 1-based and inclusive
+	 * @return
+	 */
+	private List<String> normalizeRegions(List<String> regions) {
+		if(null == regions || regions.isEmpty()) {
+			throw new IllegalArgumentException("Give at least one region (region=CHR:START-END).");
+		}
+
+		List<String> normalized = new ArrayList<String>();
+		long nBases = 0;
+		for(String region : regions) {
+			int colon = region.lastIndexOf(':');
+			int dash = region.indexOf('-', colon + 1);
+			if(colon < 1 || dash < 0) {
+				throw new IllegalArgumentException("Could not parse region '" + region
+						+ "'. Expected CHR:START-END.");
+			}
+			String contig = region.substring(0, colon);
+			SAMSequenceRecord seq = hgRefDictionary.getSequence(contig);
+			if(null == seq) {
+				throw new IllegalArgumentException("Sequence " + contig + " is not in the reference.");
+			}
+			int start = Integer.parseInt(region.substring(colon + 1, dash).replace(",", ""));
+			int end = Integer.parseInt(region.substring(dash + 1).replace(",", ""));
+			if(start < 1 || end < start || end > seq.getSequenceLength()) {
+				throw new IllegalArgumentException("Region '" + region + "' is not within "
+						+ contig + ":1-" + seq.getSequenceLength() + ".");
+			}
+			nBases += end - start + 1;
+			normalized.add(contig + ":" + start + "-" + end);
+		}
+		if(nBases > MAX_QUERY_BASES) {
+			throw new IllegalArgumentException("The regions cover " + nBases + " bases. Queries are"
+					+ " limited to " + MAX_QUERY_BASES + "; use the DarkRegionFinder command for more.");
+		}
+		return normalized;
+	}
+
+	/**
+	 * @param params
+	 * @param name
+	 * @param defaultValue
+	 * @return the parameter's last value, or 'defaultValue'
+	 */
+	private static String getParameter(Map<String, List<String>> params, String name,
+			String defaultValue) {
+		List<String> values = params.get(name);
+		return null == values ? defaultValue : values.get(values.size() - 1);
+	}
+
+	/**
+	 * @param rawQuery The URL's query string (still encoded), or null
+	 * @return the values of each parameter, in order
+	 * @throws IOException
+	 */
+	private static Map<String, List<String>> parseParameters(String rawQuery) throws IOException {
+		Map<String, List<String>> params = new HashMap<String, List<String>>();
+		if(null == rawQuery) {
+			return params;
+		}
+		for(String pair : rawQuery.split("&")) {
+			if(pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			List<String> values = params.get(name);
+			if(null == values) {
+				values = new ArrayList<String>();
+				params.put(name, values);
+			}
+			values.add(value);
+		}
+		return params;
+	}
+
+	/**
+	 * @param exchange
+	 * @param status
+	 * @param body
+	 * @throws IOException
+	 */
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
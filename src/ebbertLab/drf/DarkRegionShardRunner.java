@@ -0,0 +1,900 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SamFiles;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Split the genome into shards of roughly equal work (see ShardPlanner)
+ * and walk them on a pool of worker threads inside a single JVM. Each
+ * shard gets its own DarkRegionFinder (and therefore its own SamReader)
+ * writing to temporary .gz files. The shards share one memory mapping of
+ * the reference (see MappedFastaReference). A region that crosses from
+ * one shard into the next is left out of both and joined once every
+ * shard is done (see ShardBoundary), so the outputs are the same as a
+ * single walk's. The shards' and boundaries' temporary files are then
+ * concatenated in coordinate order into the final outputs. Concatenated
+ * BGZF blocks are still a valid BGZF file, so no recompression is needed
+ * to merge; only the tabix index is rebuilt.
+ *
+ * With a run manifest (see setRunManifest()), the outputs are kept up to
+ * date incrementally: only shards that changed since the last run are
+ * walked, and their blocks are spliced in between the unchanged shards'
+ * blocks in the existing outputs. The unchanged shards' boundaries are
+ * kept from the last run, so every boundary is joined again.
+ *
+ * @author markebbert
+ *
+ */
+public class DarkRegionShardRunner {
+
+	private static Logger logger = Logger.getLogger(DarkRegionShardRunner.class);
+
+	/*
+	 * By default, aim for a few shards per thread so one slow shard doesn't
+	 * leave the other threads idle.
+	 */
+	static final int SHARDS_PER_THREAD = 4;
+	private static final String DEV_NULL = "/dev/null";
+
+	/* Each shard's boundaries, kept next to the run manifest */
+	static final String BOUNDARY_EXTENSION = ".boundaries";
+	private static final String BOUNDARY_MAGIC = "DRFBOUNDARIES1";
+
+	private final File samFile, outDepthBed, outMapQBed, outIncBed, hgRef;
+	private final int mapQThreshold, minMapQMass, minRegionSize, minDepth, nThreads;
+	private int nShards;
+	private final boolean exclusiveRegions, includeSupplementary;
+	private final ValidationStringency vs;
+	private final List<String> intervalStringList;
+	private boolean useSweepEngine = false;
+	private boolean exactDepth = false;
+	private int referenceWindowSize = ReferenceBaseCache.DEFAULT_WINDOW_SIZE;
+	private ReferenceNRunIndex nRunIndex;
+	private boolean mergedOutput = false;
+	private File coverageTrack;
+	private List<ThresholdConfig> thresholdConfigs = new ArrayList<ThresholdConfig>();
+	private File runManifest;
+
+	/**
+	 *
+	 * @param samFile
+	 * @param outDepthBed
+	 * @param outMapQBed
+	 * @param outIncBed
+	 * @param hgRef
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @param exclusiveRegions
+	 * @param vs
+	 * @param intervalStringList
+	 * @param includeSupplementary
+	 * @param nThreads
+	 */
+	public DarkRegionShardRunner(final File samFile, final File outDepthBed,
+			File outMapQBed, File outIncBed, File hgRef,
+			final int mapQThreshold, final int minMapQMass, final int minRegionSize,
+			int minDepth, final boolean exclusiveRegions, final ValidationStringency vs,
+			List<String> intervalStringList, final boolean includeSupplementary,
+			final int nThreads) {
+		this.samFile = samFile;
+		this.outDepthBed = outDepthBed;
+		this.outMapQBed = outMapQBed;
+		this.outIncBed = outIncBed;
+		this.hgRef = hgRef;
+		this.mapQThreshold = mapQThreshold;
+		this.minMapQMass = minMapQMass;
+		this.minRegionSize = minRegionSize;
+		this.minDepth = minDepth;
+		this.exclusiveRegions = exclusiveRegions;
+		this.vs = vs;
+		this.intervalStringList = intervalStringList;
+		this.includeSupplementary = includeSupplementary;
+		this.nThreads = nThreads;
+		this.nShards = nThreads * SHARDS_PER_THREAD;
+	}
+
+	/**
+	 * Set how many shards to split the genome into (by default, a few per
+	 * thread).
+	 * 
+	 * @param nShards
+	 */
+	public void setShardCount(int nShards) {
+		this.nShards = nShards;
+	}
+
+	/**
+	 * Walk each shard with the SweepLineCoverageWalker instead of
+	 * SamLocusIterator.
+	 * 
+	 * @param useSweepEngine
+	 */
+	public void setUseSweepEngine(boolean useSweepEngine) {
+		this.useSweepEngine = useSweepEngine;
+	}
+
+	/**
+	 * Count every read at every locus in each shard (see
+	 * DarkRegionFinder.setExactDepth()).
+	 * 
+	 * @param exactDepth
+	 */
+	public void setExactDepth(boolean exactDepth) {
+		this.exactDepth = exactDepth;
+	}
+
+	/**
+	 * Set how many reference bases each shard holds in memory at a time.
+	 * 
+	 * @param referenceWindowSize
+	 */
+	public void setReferenceWindowSize(int referenceWindowSize) {
+		this.referenceWindowSize = referenceWindowSize;
+	}
+
+	/**
+	 * Share an incomplete-region index between all shards.
+	 * 
+	 * @param nRunIndex
+	 */
+	public void setNRunIndex(ReferenceNRunIndex nRunIndex) {
+		this.nRunIndex = nRunIndex;
+	}
+
+	/**
+	 * Write one line per contiguous run rather than one line per base.
+	 * 
+	 * @param mergedOutput
+	 */
+	public void setMergedOutput(boolean mergedOutput) {
+		this.mergedOutput = mergedOutput;
+	}
+
+	/**
+	 * Write a coverage track for each shard, and merge them into this one.
+	 * 
+	 * @param coverageTrack
+	 */
+	public void setCoverageTrack(File coverageTrack) {
+		this.coverageTrack = coverageTrack;
+	}
+
+	/**
+	 * Also evaluate each of these combinations of thresholds in every
+	 * shard (see DarkRegionFinder.addThresholdConfig()). Each combination's
+	 * outputs are named with ThresholdConfig.getOutputFile().
+	 * 
+	 * @param thresholdConfigs
+	 */
+	public void setThresholdConfigs(List<ThresholdConfig> thresholdConfigs) {
+		this.thresholdConfigs = thresholdConfigs;
+	}
+
+	/**
+	 * Keep a manifest of this run (see RunManifest) and, if one from an
+	 * earlier run is already there, recompute only the shards whose reads
+	 * or intervals changed, splicing them into the existing outputs. The
+	 * genome is cut on a fixed grid of tiles (see ShardPlanner.planTiles())
+	 * rather than into shards of equal work, so shards line up from one
+	 * run to the next, and the shard count is ignored. Each shard's
+	 * boundaries (see ShardBoundary) are kept in <runManifest>.boundaries,
+	 * so the regions that cross into or out of a changed shard can be
+	 * joined without walking its neighbours again.
+	 * 
+	 * @param runManifest
+	 */
+	public void setRunManifest(File runManifest) {
+		this.runManifest = runManifest;
+	}
+
+	/**
+	 * Build the shards, walk them on the worker pool, and merge the results.
+	 *
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+
+		if(null != runManifest) {
+			runIncremental();
+			return;
+		}
+
+		final List<ShardPlanner.Shard> shards = new ShardPlanner(samFile, hgRef, intervalStringList).plan(nShards);
+		logger.info("Walking " + shards.size() + " shards on " + nThreads + " threads");
+
+		final List<File> finalOutputs = getFinalOutputs();
+		final List<File[]> shardOutputs = new ArrayList<File[]>();
+		final List<File> shardTracks = new ArrayList<File>();
+		for(int i = 0; i < shards.size(); i++) {
+			shardOutputs.add(getShardOutputs(finalOutputs, i));
+			shardTracks.add(null == coverageTrack ? null : shardFile(coverageTrack, i));
+		}
+
+		List<List<ShardBoundary>> boundaries = walkShards(shards, shardOutputs, shardTracks, false);
+		joinShards(boundaries, finalOutputs);
+
+		/*
+		 * Merge the shard outputs in shard (i.e., coordinate) order, with
+		 * the regions joined across each boundary in between
+		 */
+		List<File[]> parts = new ArrayList<File[]>();
+		for(int i = 0; i < shards.size(); i++) {
+			parts.add(getJoinOutputs(finalOutputs, i));
+			parts.add(shardOutputs.get(i));
+		}
+		parts.add(getJoinOutputs(finalOutputs, shards.size()));
+		for(int category = 0; category < finalOutputs.size(); category++) {
+			mergeShards(parts, category, finalOutputs.get(category));
+		}
+		if(null != coverageTrack) {
+			CoverageTrackWriter.merge(shardTracks, coverageTrack);
+		}
+	}
+
+	/**
+	 * Recompute the shards that changed since the run in the manifest (or
+	 * every shard, if there's no usable manifest), splice them into the
+	 * outputs, and write the new manifest.
+	 *
+	 * @throws Exception
+	 */
+	private void runIncremental() throws Exception {
+
+		if(null != coverageTrack) {
+			throw new IOException("A coverage track can't be spliced, so --run-manifest"
+					+ " can't be combined with --coverage-track.");
+		}
+
+		final List<ShardPlanner.Shard> shards = new ShardPlanner(samFile, hgRef, intervalStringList).planTiles();
+		final List<File> finalOutputs = getFinalOutputs();
+		RunManifest current = describeRun(finalOutputs);
+
+		/* Reuse nothing if the parameters, reference, or outputs changed */
+		RunManifest previous = null;
+		String reason = "there is no earlier run in " + runManifest;
+		if(runManifest.isFile()) {
+			previous = RunManifest.read(runManifest);
+			reason = previous.findMismatch(current, finalOutputs);
+		}
+
+		/* The unchanged shards' boundaries, to join them to the changed ones */
+		File boundaryFile = new File(runManifest.getPath() + BOUNDARY_EXTENSION);
+		Map<String, List<ShardBoundary>> previousBoundaries = null;
+		if(null == reason) {
+			current.setInput("shard_boundaries", boundaryFile);
+			if(!previous.sameInput(current, "shard_boundaries")) {
+				reason = boundaryFile + " is not the one from the last run";
+			}
+			else {
+				try {
+					previousBoundaries = readBoundaries(boundaryFile);
+				} catch (IOException e) {
+					reason = "could not read " + boundaryFile + ": " + e.getMessage();
+				}
+			}
+		}
+		if(null != reason) {
+			logger.info("Computing every shard: " + reason);
+			previous = null;
+		}
+
+		/*
+		 * If the alignments haven't been touched since the last run, their
+		 * fingerprints haven't changed either. Otherwise, fingerprint them
+		 * (and every new shard) again.
+		 */
+		final long[] fingerprints = new long[shards.size()];
+		boolean sameAlignments = null != previous && previous.sameInput(current, "alignments")
+				&& previous.sameInput(current, "alignment_index");
+		List<ShardPlanner.Shard> unknown = new ArrayList<ShardPlanner.Shard>();
+		final List<Integer> unknownIndexes = new ArrayList<Integer>();
+		RunManifest.ShardRecord record;
+		for(int i = 0; i < shards.size(); i++) {
+			record = null == previous ? null : previous.getShard(shards.get(i).getTile());
+			if(sameAlignments && null != record && record.intervals.equals(getIntervals(shards.get(i)))) {
+				fingerprints[i] = record.fingerprint;
+			}
+			else {
+				unknown.add(shards.get(i));
+				unknownIndexes.add(i);
+			}
+		}
+		if(!unknown.isEmpty()) {
+			logger.info("Fingerprinting the reads in " + unknown.size() + " shards");
+			fingerprintShards(unknown, unknownIndexes, fingerprints);
+		}
+
+		/* Walk the shards that are new, or whose intervals or reads changed */
+		final boolean[] changed = new boolean[shards.size()];
+		List<ShardPlanner.Shard> changedShards = new ArrayList<ShardPlanner.Shard>();
+		List<File[]> changedOutputs = new ArrayList<File[]>();
+		for(int i = 0; i < shards.size(); i++) {
+			record = null == previous ? null : previous.getShard(shards.get(i).getTile());
+			changed[i] = null == record || !record.intervals.equals(getIntervals(shards.get(i)))
+					|| record.fingerprint != fingerprints[i]
+					|| null == previousBoundaries.get(shards.get(i).getTile());
+			if(changed[i]) {
+				changedShards.add(shards.get(i));
+				changedOutputs.add(getShardOutputs(finalOutputs, i));
+			}
+		}
+		logger.info("Walking " + changedShards.size() + " of " + shards.size()
+				+ " shards on " + nThreads + " threads");
+		List<List<ShardBoundary>> changedBoundaries = walkShards(changedShards, changedOutputs,
+				null, true);
+
+		/*
+		 * Join every boundary again, since a changed shard changes the
+		 * regions that cross into or out of it. The boundaries are saved
+		 * first, since joining them takes over their open regions.
+		 */
+		List<List<ShardBoundary>> boundaries = new ArrayList<List<ShardBoundary>>();
+		int nChanged = 0;
+		for(int i = 0; i < shards.size(); i++) {
+			boundaries.add(changed[i] ? changedBoundaries.get(nChanged++)
+					: previousBoundaries.get(shards.get(i).getTile()));
+		}
+		writeBoundaries(boundaryFile, shards, boundaries);
+		current.setInput("shard_boundaries", boundaryFile);
+		joinShards(boundaries, finalOutputs);
+
+		/* Splice the new shards in between the unchanged ones and the boundaries */
+		long[][] offsets = new long[shards.size()][finalOutputs.size()];
+		long[][] lengths = new long[shards.size()][finalOutputs.size()];
+		for(int category = 0; category < finalOutputs.size(); category++) {
+			spliceShards(shards, changed, previous, category, finalOutputs, offsets, lengths);
+			current.addOutput(finalOutputs.get(category));
+		}
+
+		for(int i = 0; i < shards.size(); i++) {
+			current.addShard(new RunManifest.ShardRecord(shards.get(i).getTile(),
+					getIntervals(shards.get(i)), fingerprints[i], offsets[i], lengths[i]));
+		}
+		current.write(runManifest);
+		logger.info("Wrote run manifest " + runManifest);
+	}
+
+	/**
+	 * Save every shard's boundaries for the next run, replacing 'file'
+	 * only once it's complete.
+	 *
+	 * @param file
+	 * @param shards
+	 * @param boundaries Each shard's boundaries, from walkShards()
+	 * @throws IOException
+	 */
+	private static void writeBoundaries(File file, List<ShardPlanner.Shard> shards,
+			List<List<ShardBoundary>> boundaries) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(tmp))));
+		try {
+			dos.writeUTF(BOUNDARY_MAGIC);
+			dos.writeInt(shards.size());
+			for(int i = 0; i < shards.size(); i++) {
+				dos.writeUTF(shards.get(i).getTile());
+				dos.writeInt(boundaries.get(i).size());
+				for(ShardBoundary boundary : boundaries.get(i)) {
+					boundary.save(dos);
+				}
+			}
+		} finally {
+			dos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Read the boundaries saved by writeBoundaries().
+	 *
+	 * @param file
+	 * @return each shard's boundaries, by tile
+	 * @throws IOException
+	 */
+	private static Map<String, List<ShardBoundary>> readBoundaries(File file) throws IOException {
+		Map<String, List<ShardBoundary>> boundaries = new HashMap<String, List<ShardBoundary>>();
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if(!BOUNDARY_MAGIC.equals(dis.readUTF())) {
+				throw new IOException(file + " is not a file of shard boundaries from this"
+						+ " version of DarkRegionFinder.");
+			}
+			int nShards = dis.readInt(), nConfigs;
+			String tile;
+			List<ShardBoundary> shardBoundaries;
+			for(int i = 0; i < nShards; i++) {
+				tile = dis.readUTF();
+				nConfigs = dis.readInt();
+				shardBoundaries = new ArrayList<ShardBoundary>();
+				for(int c = 0; c < nConfigs; c++) {
+					shardBoundaries.add(ShardBoundary.load(dis));
+				}
+				boundaries.put(tile, shardBoundaries);
+			}
+		} finally {
+			dis.close();
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Record everything about this run that affects its outputs.
+	 *
+	 * @param finalOutputs
+	 * @return
+	 */
+	private RunManifest describeRun(List<File> finalOutputs) {
+		RunManifest manifest = new RunManifest();
+		manifest.setParameter("tile_size", ShardPlanner.TILE_SIZE);
+		manifest.setParameter("mapq_threshold", mapQThreshold);
+		manifest.setParameter("min_mapq_mass", minMapQMass);
+		manifest.setParameter("min_region_size", minRegionSize);
+		manifest.setParameter("min_depth", minDepth);
+		manifest.setParameter("exclusive_regions", exclusiveRegions);
+		manifest.setParameter("include_supplementary", includeSupplementary);
+		manifest.setParameter("validation_stringency", vs);
+		manifest.setParameter("exact_depth", exactDepth);
+		manifest.setParameter("merged_output", mergedOutput);
+		manifest.setParameter("read_filter", DarkRegionFinder.getReadFilterOptions());
+		List<String> outputPaths = new ArrayList<String>();
+		for(File output : finalOutputs) {
+			outputPaths.add(output.getAbsolutePath());
+		}
+		manifest.setParameter("outputs", String.join(",", outputPaths));
+
+		manifest.setInput("alignments", samFile);
+		File index = SamFiles.findIndex(samFile);
+		manifest.setInput("alignment_index", null == index ? new File(DEV_NULL) : index);
+		manifest.setInput("reference", hgRef);
+		return manifest;
+	}
+
+	/**
+	 * Fingerprint the shards' reads (see RunManifest.fingerprint()) on the
+	 * worker pool, a few batches of shards per thread.
+	 *
+	 * @param shards
+	 * @param indexes Where each shard's fingerprint goes in 'fingerprints'
+	 * @param fingerprints
+	 * @throws Exception
+	 */
+	private void fingerprintShards(final List<ShardPlanner.Shard> shards,
+			final List<Integer> indexes, final long[] fingerprints) throws Exception {
+		int nBatches = Math.min(shards.size(), nThreads * SHARDS_PER_THREAD);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int b = 0; b < nBatches; b++) {
+			final int from = (int) ((long) shards.size() * b / nBatches);
+			final int to = (int) ((long) shards.size() * (b + 1) / nBatches);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					SamReader reader = DarkRegionFinder.openSam(samFile, hgRef);
+					try {
+						for(int i = from; i < to; i++) {
+							fingerprints[indexes.get(i)] = RunManifest.fingerprint(reader,
+									shards.get(i).getIntervalStrings());
+						}
+					} finally {
+						reader.close();
+					}
+					return null;
+				}
+			});
+		}
+		runTasks(tasks);
+	}
+
+	/**
+	 * Walk the shards on the worker pool, biggest first, so a big one isn't
+	 * left running alone at the end.
+	 *
+	 * @param shards
+	 * @param shardOutputs Each shard's outputs
+	 * @param shardTracks Each shard's coverage track (or null for none)
+	 * @param quiet Don't log each shard's intervals and read counts
+	 * @return each shard's boundaries (see
+	 * DarkRegionFinder.recordShardBoundaries()), for joinShards()
+	 * @throws Exception
+	 */
+	private List<List<ShardBoundary>> walkShards(final List<ShardPlanner.Shard> shards,
+			List<File[]> shardOutputs, List<File> shardTracks, final boolean quiet) throws Exception {
+
+		List<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < shards.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(shards.get(b).getWork(), shards.get(a).getWork());
+			}
+		});
+
+		final List<List<ShardBoundary>> boundaries = new ArrayList<List<ShardBoundary>>(
+				Collections.<List<ShardBoundary>>nCopies(shards.size(), null));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(final int i : order) {
+			final File[] outputs = shardOutputs.get(i);
+			final List<String> shardIntervals = shards.get(i).getIntervalStrings();
+			final File shardTrack = null == shardTracks ? null : shardTracks.get(i);
+
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					DarkRegionFinder drf = new DarkRegionFinder(samFile,
+							outputs[0], outputs[1], outputs[2], hgRef,
+							mapQThreshold, minMapQMass, minRegionSize, minDepth,
+							exclusiveRegions, vs, shardIntervals, includeSupplementary);
+					drf.setQuiet(quiet);
+					drf.setReferenceWindowSize(referenceWindowSize);
+					drf.setExactDepth(exactDepth);
+					drf.setNRunIndex(nRunIndex);
+					drf.setMergedOutput(mergedOutput);
+					for(int c = 0; c < thresholdConfigs.size(); c++) {
+						drf.addThresholdConfig(thresholdConfigs.get(c), outputs[3 * c + 3],
+								outputs[3 * c + 4], outputs[3 * c + 5]);
+					}
+					if(null != shardTrack) {
+						drf.setCoverageTrack(shardTrack);
+					}
+					boundaries.set(i, drf.recordShardBoundaries());
+					if(useSweepEngine) {
+						drf.startWalkingBySweep();
+					}
+					else {
+						drf.startWalkingByLocus();
+					}
+					return null;
+				}
+			});
+		}
+		runTasks(tasks);
+		return boundaries;
+	}
+
+	/**
+	 * Join the regions that cross the boundaries between shards, for each
+	 * threshold configuration, writing each boundary's regions to their
+	 * own temporary files (see getJoinOutputs()).
+	 *
+	 * @param boundaries Each shard's boundaries, from walkShards()
+	 * @param finalOutputs
+	 * @throws IOException
+	 */
+	private static void joinShards(List<List<ShardBoundary>> boundaries,
+			List<File> finalOutputs) throws IOException {
+		List<ShardBoundary> configBoundaries;
+		List<File[]> joinOutputs;
+		for(int config = 0; config < finalOutputs.size() / 3; config++) {
+			configBoundaries = new ArrayList<ShardBoundary>();
+			for(List<ShardBoundary> shardBoundaries : boundaries) {
+				configBoundaries.add(shardBoundaries.get(config));
+			}
+			joinOutputs = new ArrayList<File[]>();
+			for(int i = 0; i <= boundaries.size(); i++) {
+				joinOutputs.add(Arrays.copyOfRange(getJoinOutputs(finalOutputs, i),
+						3 * config, 3 * config + 3));
+			}
+			DarkRegionFinder.joinShards(configBoundaries, joinOutputs);
+		}
+	}
+
+	/**
+	 * Run the tasks on a pool of nThreads threads. Fail the whole run if
+	 * any task failed.
+	 *
+	 * @param tasks
+	 * @throws Exception
+	 */
+	private void runTasks(List<Callable<Void>> tasks) throws Exception {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+
+		try {
+			for(Callable<Void> task : tasks) {
+				futures.add(pool.submit(task));
+			}
+
+			for(Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					pool.shutdownNow();
+					if(e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return the three outputs, followed by the three for each threshold
+	 * configuration
+	 */
+	private List<File> getFinalOutputs() {
+		List<File> finalOutputs = new ArrayList<File>();
+		finalOutputs.add(outDepthBed);
+		finalOutputs.add(outMapQBed);
+		finalOutputs.add(outIncBed);
+		for(ThresholdConfig config : thresholdConfigs) {
+			finalOutputs.add(config.getOutputFile(outDepthBed));
+			finalOutputs.add(config.getOutputFile(outMapQBed));
+			finalOutputs.add(config.getOutputFile(outIncBed));
+		}
+		return finalOutputs;
+	}
+
+	/**
+	 * @param finalOutputs
+	 * @param shardIndex
+	 * @return the shard's temporary file for each output
+	 */
+	private static File[] getShardOutputs(List<File> finalOutputs, int shardIndex) {
+		File[] outputs = new File[finalOutputs.size()];
+		for(int category = 0; category < outputs.length; category++) {
+			outputs[category] = shardFile(finalOutputs.get(category), shardIndex);
+		}
+		return outputs;
+	}
+
+	/**
+	 * @param finalOutputs
+	 * @param boundaryIndex 0 for the regions before the first shard, i for
+	 * those between shards i - 1 and i
+	 * @return the boundary's temporary file for each output
+	 */
+	private static File[] getJoinOutputs(List<File> finalOutputs, int boundaryIndex) {
+		File[] outputs = new File[finalOutputs.size()];
+		for(int category = 0; category < outputs.length; category++) {
+			outputs[category] = joinFile(finalOutputs.get(category), boundaryIndex);
+		}
+		return outputs;
+	}
+
+	/**
+	 * @param finalOutput
+	 * @param boundaryIndex
+	 * @return the boundary's temporary file for the output (see
+	 * getJoinOutputs())
+	 */
+	private static File joinFile(File finalOutput, int boundaryIndex) {
+		return tempFile(finalOutput, ".join_" + boundaryIndex);
+	}
+
+	/**
+	 * @param shard
+	 * @return the shard's intervals, as recorded in the run manifest
+	 */
+	private static String getIntervals(ShardPlanner.Shard shard) {
+		return String.join(" ", shard.getIntervalStrings());
+	}
+
+	/**
+	 * Get the temporary output file for a shard. Shards write to /dev/null
+	 * if the final output is /dev/null.
+	 *
+	 * @param finalOutput
+	 * @param shardIndex
+	 * @return
+	 */
+	private static File shardFile(File finalOutput, int shardIndex) {
+		return tempFile(finalOutput, ".shard_" + shardIndex);
+	}
+
+	/**
+	 * @param finalOutput
+	 * @param tag
+	 * @return <finalOutput><tag>.tmp, or /dev/null if the final output is
+	 * /dev/null
+	 */
+	private static File tempFile(File finalOutput, String tag) {
+		if(finalOutput.getPath().startsWith(DEV_NULL)) {
+			return finalOutput;
+		}
+		return new File(finalOutput.getPath() + tag + ".tmp");
+	}
+
+	/**
+	 * Concatenate the shard files for one output category into the final
+	 * output, index it, and remove the shard files. Each shard ends with a
+	 * BGZF end-of-file block, which is dropped so only the final output
+	 * has one.
+	 *
+	 * @param shardOutputs Each part's outputs, in order
+	 * @param category
+	 * @param finalOutput
+	 * @throws IOException
+	 */
+	private static void mergeShards(List<File[]> shardOutputs, int category,
+			File finalOutput) throws IOException {
+
+		if(finalOutput.getPath().startsWith(DEV_NULL)) {
+			return;
+		}
+
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		byte[] buffer = new byte[1 << 16];
+		int n;
+		long remaining;
+		File shard;
+		OutputStream out = new FileOutputStream(finalOutput);
+		try {
+			for(File[] outputs : shardOutputs) {
+				shard = outputs[category];
+				remaining = shard.length() - eof.length;
+				InputStream in = new FileInputStream(shard);
+				try {
+					while(remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+						out.write(buffer, 0, n);
+						remaining -= n;
+					}
+				} finally {
+					in.close();
+				}
+				if(!shard.delete()) {
+					logger.warn("Could not remove temporary shard file " + shard);
+				}
+				File shardIndex = BgzfBedWriter.getIndexFile(shard);
+				if(shardIndex.exists() && !shardIndex.delete()) {
+					logger.warn("Could not remove temporary shard index " + shardIndex);
+				}
+			}
+			out.write(eof);
+		} finally {
+			out.close();
+		}
+
+		BgzfBedWriter.writeIndex(finalOutput);
+	}
+
+	/**
+	 * Rebuild one output from the changed shards' temporary files and the
+	 * unchanged shards' blocks in the existing output, in shard order,
+	 * with each boundary's temporary file (see joinShards()) in between.
+	 * Only the changed shards are read from their own files; the rest are
+	 * copied byte for byte. Each shard's offset and length in the new
+	 * output are recorded for the next run.
+	 *
+	 * @param shards
+	 * @param changed
+	 * @param previous The earlier run (null if every shard changed)
+	 * @param category
+	 * @param finalOutputs
+	 * @param offsets
+	 * @param lengths
+	 * @throws IOException
+	 */
+	private static void spliceShards(List<ShardPlanner.Shard> shards, boolean[] changed,
+			RunManifest previous, int category, List<File> finalOutputs,
+			long[][] offsets, long[][] lengths) throws IOException {
+
+		File finalOutput = finalOutputs.get(category);
+		if(finalOutput.getPath().startsWith(DEV_NULL)) {
+			return;
+		}
+
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		File spliced = new File(finalOutput.getPath() + ".splice.tmp");
+		FileChannel out = new FileOutputStream(spliced).getChannel();
+		FileChannel existing = null == previous ? null : new FileInputStream(finalOutput).getChannel();
+		try {
+			long offset = 0, length;
+			RunManifest.ShardRecord record;
+			for(int i = 0; i < shards.size(); i++) {
+				offset += appendTempFile(joinFile(finalOutput, i), out);
+				if(changed[i]) {
+					length = appendTempFile(shardFile(finalOutput, i), out);
+				}
+				else {
+					record = previous.getShard(shards.get(i).getTile());
+					length = record.lengths[category];
+					copy(existing, record.offsets[category], length, out);
+				}
+				offsets[i][category] = offset;
+				lengths[i][category] = length;
+				offset += length;
+			}
+			appendTempFile(joinFile(finalOutput, shards.size()), out);
+			out.write(ByteBuffer.wrap(eof));
+		} finally {
+			out.close();
+			if(null != existing) {
+				existing.close();
+			}
+		}
+
+		Files.move(spliced.toPath(), finalOutput.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		BgzfBedWriter.writeIndex(finalOutput);
+	}
+
+	/**
+	 * Copy a shard's or boundary's temporary file, without its BGZF
+	 * end-of-file block, to the end of 'out', and remove it.
+	 *
+	 * @param part
+	 * @param out
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	private static long appendTempFile(File part, FileChannel out) throws IOException {
+		long length = part.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+		FileChannel in = new FileInputStream(part).getChannel();
+		try {
+			copy(in, 0, length, out);
+		} finally {
+			in.close();
+		}
+		if(!part.delete()) {
+			logger.warn("Could not remove temporary file " + part);
+		}
+		File partIndex = BgzfBedWriter.getIndexFile(part);
+		if(partIndex.exists() && !partIndex.delete()) {
+			logger.warn("Could not remove temporary index " + partIndex);
+		}
+		return length;
+	}
+
+	/**
+	 * Copy 'length' bytes from 'position' in 'in' to the end of 'out'.
+	 *
+	 * @param in
+	 * @param position
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 */
+	private static void copy(FileChannel in, long position, long length, FileChannel out) throws IOException {
+		long n;
+		while(length > 0) {
+			n = in.transferTo(position, length, out);
+			if(n <= 0) {
+				throw new IOException("Unexpected end of file while splicing shards");
+			}
+			position += n;
+			length -= n;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pass locus counts from a SweepLineCoverageWalker to a handler running on
+ * another thread, so counting and classifying loci (and encoding the BED
+ * lines) overlap. Counts are queued as primitive columns in batches; a
+ * fixed set of batches goes back and forth between the threads, so the
+ * walker waits when the handler falls behind.
+ *
+ * If the handler fails, the pipe keeps draining (and discarding) batches
+ * so the walker never blocks, and the failure is thrown to the walker on
+ * its next call (or from finish()).
+ *
+ * @author markebbert
+ *
+ */
+public class LocusCountPipe implements SweepLineCoverageWalker.LocusCountHandler {
+
+	private static final int BATCH_SIZE = 8192;
+	private static final int N_BATCHES = 8;
+
+	private static final byte LOCUS = 0, INCOMPLETE_RUN = 1, UNCOVERED_RUN = 2;
+
+	/**
+	 * Queued calls, as columns. For runs, 'start' and 'end' are the run;
+	 * for a locus, 'start' is its position.
+	 */
+	private class Batch {
+		int size;
+		boolean last;
+		final byte[] kind = new byte[BATCH_SIZE];
+		final String[] contig = new String[BATCH_SIZE];
+		final int[] start = new int[BATCH_SIZE];
+		final int[] end = new int[BATCH_SIZE];
+		final int[] depth = new int[BATCH_SIZE];
+		final int[] deleted = new int[BATCH_SIZE];
+		final int[] lowMapQ = new int[BATCH_SIZE];
+		final int[] mapQBins = null == walkerMapQBins ? null
+				: new int[BATCH_SIZE * walkerMapQBins.length];
+	}
+
+	private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(N_BATCHES);
+	private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(N_BATCHES);
+
+	/* The walker's MAPQ bins, copied for each locus (null if not counted) */
+	private final int[] walkerMapQBins;
+
+	/* The MAPQ bins for the locus being handled (see getMapQBins()) */
+	private final int[] mapQBins;
+
+	private Batch batch;
+	private Thread thread;
+	private volatile Throwable failure;
+
+	/**
+	 *
+	 * @param walkerMapQBins The walker's MAPQ bins (see
+	 * SweepLineCoverageWalker.getMapQBins()), or null if it isn't counting
+	 * them
+	 */
+	public LocusCountPipe(int[] walkerMapQBins) {
+		this.walkerMapQBins = walkerMapQBins;
+		this.mapQBins = null == walkerMapQBins ? null : new int[walkerMapQBins.length];
+	}
+
+	/**
+	 * Start handing the counts to 'handler' on a background thread.
+	 *
+	 * @param handler
+	 */
+	public void start(final SweepLineCoverageWalker.LocusCountHandler handler) {
+		for(int i = 0; i < N_BATCHES; i++) {
+			free.add(new Batch());
+		}
+		batch = free.poll();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain(handler);
+			}
+		}, "drf-locus-classifier");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the MAPQ bins for the locus being passed to the handler, or
+	 * null if they aren't counted. Only valid on the handler's thread,
+	 * during handleLocus().
+	 */
+	public int[] getMapQBins() {
+		return mapQBins;
+	}
+
+	@Override
+	public void handleLocus(String contig, int position, int depthExcludingIndels,
+			int nDeletedInRecord, int nMapQBelowThreshold) throws IOException {
+		int i = batch.size;
+		batch.kind[i] = LOCUS;
+		batch.contig[i] = contig;
+		batch.start[i] = position;
+		batch.depth[i] = depthExcludingIndels;
+		batch.deleted[i] = nDeletedInRecord;
+		batch.lowMapQ[i] = nMapQBelowThreshold;
+		if(null != walkerMapQBins) {
+			System.arraycopy(walkerMapQBins, 0, batch.mapQBins, i * walkerMapQBins.length,
+					walkerMapQBins.length);
+		}
+		added();
+	}
+
+	@Override
+	public void handleIncompleteRun(String contig, int start, int end) throws IOException {
+		addRun(INCOMPLETE_RUN, contig, start, end);
+	}
+
+	@Override
+	public void handleUncoveredRun(String contig, int start, int end) throws IOException {
+		addRun(UNCOVERED_RUN, contig, start, end);
+	}
+
+	private void addRun(byte kind, String contig, int start, int end) throws IOException {
+		int i = batch.size;
+		batch.kind[i] = kind;
+		batch.contig[i] = contig;
+		batch.start[i] = start;
+		batch.end[i] = end;
+		added();
+	}
+
+	/**
+	 * Pass the batch on once it's full.
+	 *
+	 * @throws IOException
+	 */
+	private void added() throws IOException {
+		if(++batch.size < BATCH_SIZE) {
+			return;
+		}
+		checkFailure();
+		try {
+			full.put(batch);
+			batch = free.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while queueing loci");
+		}
+		batch.size = 0;
+	}
+
+	/**
+	 * Pass on what's left and wait for the handler to finish with it.
+	 *
+	 * @throws IOException if the handler failed
+	 */
+	public void finish() throws IOException {
+		batch.last = true;
+		try {
+			full.put(batch);
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for loci to be handled");
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stop the handler's thread if it's still running (e.g., because the
+	 * walk failed).
+	 */
+	public void close() {
+		if(null != thread && thread.isAlive()) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Hand each queued call to the handler, until the last batch.
+	 *
+	 * @param handler
+	 */
+	private void drain(SweepLineCoverageWalker.LocusCountHandler handler) {
+		Batch b;
+		boolean last;
+		do {
+			try {
+				b = full.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(null == failure) {
+				try {
+					replay(b, handler);
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+			last = b.last;
+			b.last = false;
+			free.add(b);
+		} while(!last);
+	}
+
+	private void replay(Batch b, SweepLineCoverageWalker.LocusCountHandler handler) throws IOException {
+		for(int i = 0; i < b.size; i++) {
+			switch(b.kind[i]) {
+			case LOCUS:
+				if(null != mapQBins) {
+					System.arraycopy(b.mapQBins, i * mapQBins.length, mapQBins, 0, mapQBins.length);
+				}
+				handler.handleLocus(b.contig[i], b.start[i], b.depth[i], b.deleted[i], b.lowMapQ[i]);
+				break;
+			case INCOMPLETE_RUN:
+				handler.handleIncompleteRun(b.contig[i], b.start[i], b.end[i]);
+				break;
+			default:
+				handler.handleUncoveredRun(b.contig[i], b.start[i], b.end[i]);
+			}
+		}
+	}
+
+	/**
+	 * Throw the handler's failure, if it failed.
+	 *
+	 * @throws IOException
+	 */
+	private void checkFailure() throws IOException {
+		Throwable t = failure;
+		if(null == t) {
+			return;
+		}
+		if(t instanceof IOException) {
+			throw (IOException) t;
+		}
+		if(t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if(t instanceof Error) {
+			throw (Error) t;
+		}
+		throw new IOException(t);
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.cram.ref.ReferenceSource;
+import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.SequenceUtil;
+import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
+
+/**
+ * An indexed FASTA (.fa + .fai) mapped read-only into memory, serving both
+ * DarkRegionFinder's base lookups (as a ReferenceSequenceFile) and CRAM
+ * decoding (as a CRAMReferenceSource). One mapping is shared by every
+ * reader in the process (see getShared()), so concurrent shards read the
+ * same page-cache-backed memory rather than each buffering its own copy
+ * of the reference through a file channel.
+ *
+ * Block-compressed references (.fa.gz) can't be mapped; openReference()
+ * and openCramReference() fall back to htsjdk's readers for them.
+ *
+ * @author markebbert
+ *
+ */
+public class MappedFastaReference implements ReferenceSequenceFile, CRAMReferenceSource {
+
+	private static Logger logger = Logger.getLogger(MappedFastaReference.class);
+
+	/* Mappings are limited to 2 GB, so larger files are mapped in segments */
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	/* One mapping per reference file in this process */
+	private static final Map<File, MappedFastaReference> SHARED = new HashMap<File, MappedFastaReference>();
+
+	private final File fasta;
+	private final FastaSequenceIndex index;
+	private final SAMSequenceDictionary dictionary;
+	private final MappedByteBuffer[] segments;
+
+	/*
+	 * Upper-cased contigs handed to CRAM decoders. Shards decoding the same
+	 * contig share one copy, which the GC may reclaim once none of them
+	 * holds it.
+	 */
+	private final Map<String, SoftReference<byte[]>> cramBases = new HashMap<String, SoftReference<byte[]>>();
+
+	private Iterator<FastaSequenceIndexEntry> sequenceIterator;
+
+	/**
+	 *
+	 * @param fasta
+	 * @throws IOException
+	 */
+	private MappedFastaReference(File fasta) throws IOException {
+		this.fasta = fasta;
+		File fai = ReferenceSequenceFileFactory.getFastaIndexFileName(fasta.toPath()).toFile();
+		if(!fai.isFile()) {
+			throw new IOException("The reference " + fasta + " is not indexed (no .fai file)."
+					+ " Index the reference before proceeding.");
+		}
+		this.index = new FastaSequenceIndex(fai);
+
+		File dict = ReferenceSequenceFileFactory.getDefaultDictionaryForReferenceSequence(fasta);
+		this.dictionary = dict.isFile() ? SAMSequenceDictionaryExtractor.extractDictionary(dict.toPath()) : null;
+
+		/* The mappings stay valid after the channel is closed */
+		RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+			for(int i = 0; i < segments.length; i++) {
+				long start = (long) i << SEGMENT_BITS;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(size - start, SEGMENT_MASK + 1));
+			}
+		} finally {
+			raf.close();
+		}
+		logger.debug("Mapped " + fasta + " in " + segments.length + " segments");
+	}
+
+	/**
+	 * Get the process-wide mapping of 'fasta', mapping it on first use.
+	 *
+	 * @param fasta An uncompressed FASTA with a .fai index
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedFastaReference getShared(File fasta) throws IOException {
+		File key = fasta.getCanonicalFile();
+		synchronized(SHARED) {
+			MappedFastaReference reference = SHARED.get(key);
+			if(null == reference) {
+				reference = new MappedFastaReference(key);
+				SHARED.put(key, reference);
+			}
+			return reference;
+		}
+	}
+
+	/**
+	 * @param fasta
+	 * @return whether 'fasta' can be mapped (i.e., it's not compressed)
+	 */
+	public static boolean canMap(File fasta) {
+		String name = fasta.getName();
+		return !name.endsWith(".gz") && !name.endsWith(".bgz");
+	}
+
+	/**
+	 * Open the reference for base lookups: the shared mapping, or an
+	 * IndexedFastaSequenceFile if it can't be mapped.
+	 *
+	 * @param fasta
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReferenceSequenceFile openReference(File fasta) throws IOException {
+		return canMap(fasta) ? getShared(fasta) : new IndexedFastaSequenceFile(fasta);
+	}
+
+	/**
+	 * Open the reference for CRAM decoding: the shared mapping, or a
+	 * ReferenceSource if it can't be mapped.
+	 *
+	 * @param fasta
+	 * @return
+	 * @throws IOException
+	 */
+	public static CRAMReferenceSource openCramReference(File fasta) throws IOException {
+		return canMap(fasta) ? getShared(fasta) : new ReferenceSource(fasta);
+	}
+
+	@Override
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public synchronized ReferenceSequence nextSequence() {
+		if(null == sequenceIterator) {
+			sequenceIterator = index.iterator();
+		}
+		if(!sequenceIterator.hasNext()) {
+			return null;
+		}
+		FastaSequenceIndexEntry entry = sequenceIterator.next();
+		return getSubsequenceAt(entry.getContig(), 1, entry.getSize());
+	}
+
+	@Override
+	public synchronized void reset() {
+		sequenceIterator = null;
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return true;
+	}
+
+	@Override
+	public ReferenceSequence getSequence(String contig) {
+		return getSubsequenceAt(contig, 1, getIndexEntry(contig).getSize());
+	}
+
+	/**
+	 * Copy bases [start, stop] out of the mapping, skipping line breaks.
+	 * Safe to call from several threads at once.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param stop 1-based, inclusive
+	 */
+	@Override
+	public ReferenceSequence getSubsequenceAt(String contig, long start, long stop) {
+		FastaSequenceIndexEntry entry = getIndexEntry(contig);
+		if(start < 1 || stop > entry.getSize() || stop < start - 1) {
+			throw new IllegalArgumentException("Cannot get " + contig + ":" + start + "-" + stop
+					+ " from " + fasta + "; " + contig + " has " + entry.getSize() + " bases.");
+		}
+
+		int basesPerLine = entry.getBasesPerLine();
+		byte[] bases = new byte[(int) (stop - start + 1)];
+		long pos = start - 1;
+		int copied = 0, n;
+		while(copied < bases.length) {
+			n = (int) Math.min(basesPerLine - pos % basesPerLine, bases.length - copied);
+			copy(entry.getLocation() + (pos / basesPerLine) * entry.getBytesPerLine()
+					+ pos % basesPerLine, bases, copied, n);
+			copied += n;
+			pos += n;
+		}
+		return new ReferenceSequence(contig, entry.getSequenceIndex(), bases);
+	}
+
+	/**
+	 * Get the whole (upper-cased) sequence for CRAM decoding, trying other
+	 * names for it (e.g., with or without 'chr') if asked.
+	 */
+	@Override
+	public byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
+		List<String> names = new ArrayList<String>();
+		names.add(record.getSequenceName());
+		if(tryNameVariants) {
+			names.addAll(getNameVariants(record.getSequenceName()));
+		}
+
+		for(String name : names) {
+			if(!index.hasIndexEntry(name)) {
+				continue;
+			}
+			synchronized(cramBases) {
+				SoftReference<byte[]> cached = cramBases.get(name);
+				byte[] bases = null == cached ? null : cached.get();
+				if(null == bases) {
+					bases = SequenceUtil.upperCase(getSequence(name).getBases());
+					cramBases.put(name, new SoftReference<byte[]>(bases));
+				}
+				return bases;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The mapping is shared and stays valid until the reference is no
+	 * longer reachable, so there is nothing to close.
+	 */
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return fasta.getAbsolutePath();
+	}
+
+	/**
+	 * @param contig
+	 * @return
+	 */
+	private FastaSequenceIndexEntry getIndexEntry(String contig) {
+		if(!index.hasIndexEntry(contig)) {
+			throw new IllegalArgumentException("Sequence " + contig
+					+ " was not found in the reference.");
+		}
+		return index.getIndexEntry(contig);
+	}
+
+	/**
+	 * Copy 'length' bytes at 'offset' in the file, which may cross from
+	 * one segment into the next.
+	 *
+	 * @param offset
+	 * @param dest
+	 * @param destPos
+	 * @param length
+	 */
+	private void copy(long offset, byte[] dest, int destPos, int length) {
+		int n;
+		ByteBuffer segment;
+		while(length > 0) {
+			segment = segments[(int) (offset >>> SEGMENT_BITS)].duplicate();
+			segment.position((int) (offset & SEGMENT_MASK));
+			n = Math.min(length, segment.remaining());
+			segment.get(dest, destPos, n);
+			offset += n;
+			destPos += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Other common names for a sequence, as ReferenceSource tries them:
+	 * with or without 'chr', and 'M' for 'MT' (and vice versa).
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static List<String> getNameVariants(String name) {
+		List<String> variants = new ArrayList<String>();
+		if("M".equals(name) || "chrM".equals(name)) {
+			variants.add("MT");
+		}
+		else if("MT".equals(name)) {
+			variants.add("M");
+			variants.add("chrM");
+		}
+		if(name.startsWith("chr")) {
+			variants.add(name.substring(3));
+		}
+		else {
+			variants.add("chr" + name);
+		}
+		return variants;
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+/**
+ * Read a file in large chunks, several at a time, ahead of where the reader
+ * is. On a network filesystem (or a cold disk), each read costs a round
+ * trip; with a few chunks in flight, the round trips overlap each other and
+ * the decoding of the chunks already read.
+ *
+ * The read-ahead starts at one chunk and doubles (up to 'maxChunks') for
+ * each chunk read in order, so a seek (e.g., for an index query) reads
+ * little that isn't needed, while a long sequential scan keeps every
+ * chunk in flight.
+ *
+ * Like other streams, it's meant for one thread at a time. The chunks
+ * are read on a pool of daemon threads shared by every stream.
+ *
+ * @author markebbert
+ *
+ */
+public class ReadAheadSeekableStream extends SeekableStream {
+
+	static final int CHUNK_SIZE = 1 << 20;
+
+	private static final ExecutorService chunkReaders = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "drf-read-ahead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * A chunk being (or already) read.
+	 */
+	private static class Chunk {
+		final long index;
+		final byte[] data;
+		final Future<Integer> length;
+
+		/* Claimed by whichever comes first: the read, or a discard */
+		final AtomicBoolean claimed;
+
+		Chunk(long index, byte[] data, Future<Integer> length, AtomicBoolean claimed) {
+			this.index = index;
+			this.data = data;
+			this.length = length;
+			this.claimed = claimed;
+		}
+	}
+
+	private final File file;
+	private final FileChannel channel;
+	private final long length;
+	private final int maxChunks;
+
+	/* The chunks read (or being read) ahead, in order */
+	private final ArrayDeque<Chunk> ahead = new ArrayDeque<Chunk>();
+	private final ArrayDeque<byte[]> spare = new ArrayDeque<byte[]>();
+	private int window = 1;
+
+	/* The chunk holding 'position' */
+	private byte[] current;
+	private long currentIndex = -1;
+	private int currentLength;
+
+	private long position;
+
+	/**
+	 *
+	 * @param file
+	 * @param maxChunks The most chunks to have in flight at once
+	 * @throws IOException
+	 */
+	public ReadAheadSeekableStream(File file, int maxChunks) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.length = channel.size();
+		this.maxChunks = Math.max(1, maxChunks);
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		this.position = position;
+	}
+
+	@Override
+	public boolean eof() throws IOException {
+		return position >= length;
+	}
+
+	@Override
+	public String getSource() {
+		return file.getAbsolutePath();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!load()) {
+			return -1;
+		}
+		return current[(int) (position++ - currentIndex * CHUNK_SIZE)] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if(0 == length) {
+			return 0;
+		}
+		if(!load()) {
+			return -1;
+		}
+		int from = (int) (position - currentIndex * CHUNK_SIZE);
+		int n = Math.min(length, currentLength - from);
+		System.arraycopy(current, from, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		discardAhead();
+		current = null;
+		spare.clear();
+		channel.close();
+	}
+
+	/**
+	 * Make the chunk holding 'position' current, and read ahead of it.
+	 *
+	 * @return false if 'position' is at (or past) the end of the file
+	 * @throws IOException
+	 */
+	private boolean load() throws IOException {
+		if(position >= length) {
+			return false;
+		}
+		long index = position / CHUNK_SIZE;
+		if(index == currentIndex) {
+			return true;
+		}
+
+		Chunk next = ahead.peekFirst();
+		if(null != next && next.index == index) {
+			ahead.removeFirst();
+			window = Math.min(window * 2, maxChunks);
+		}
+		else {
+			/* Out of order, so start over */
+			discardAhead();
+			window = 1;
+			next = readChunk(index);
+		}
+
+		int n = await(next);
+		if(null != current) {
+			spare.add(current);
+		}
+		current = next.data;
+		currentIndex = index;
+		currentLength = n;
+
+		long nextIndex = ahead.isEmpty() ? index + 1 : ahead.peekLast().index + 1;
+		while(ahead.size() < window && nextIndex * CHUNK_SIZE < length) {
+			ahead.addLast(readChunk(nextIndex++));
+		}
+		return true;
+	}
+
+	/**
+	 * Start reading a chunk on the pool.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private Chunk readChunk(final long index) {
+		final byte[] data = spare.isEmpty() ? new byte[CHUNK_SIZE] : spare.poll();
+		final AtomicBoolean claimed = new AtomicBoolean();
+		Future<Integer> n = chunkReaders.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				if(!claimed.compareAndSet(false, true)) {
+					/* Discarded before it started */
+					return 0;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				long offset = index * CHUNK_SIZE;
+				int read;
+				while(buffer.hasRemaining()) {
+					read = channel.read(buffer, offset + buffer.position());
+					if(read < 0) {
+						break;
+					}
+				}
+				return buffer.position();
+			}
+		});
+		return new Chunk(index, data, n, claimed);
+	}
+
+	/**
+	 * @param chunk
+	 * @return the number of bytes read into the chunk
+	 * @throws IOException if reading it failed
+	 */
+	private int await(Chunk chunk) throws IOException {
+		try {
+			return chunk.length.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while reading " + file);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not read " + file + ": " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Drop the chunks read ahead. A buffer is only reused if its read never
+	 * started or has finished; buffers still being read into are left for
+	 * the garbage collector rather than waited for.
+	 */
+	private void discardAhead() {
+		Chunk chunk;
+		while(null != (chunk = ahead.poll())) {
+			if(chunk.claimed.compareAndSet(false, true)) {
+				/* The read hadn't started, and now never will */
+				chunk.length.cancel(false);
+				spare.add(chunk.data);
+			}
+			else if(chunk.length.isDone()) {
+				spare.add(chunk.data);
+			}
+		}
+	}
+}
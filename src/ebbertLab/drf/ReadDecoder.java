@@ -0,0 +1,288 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * The first stage of a pipelined sweep (see
+ * SweepLineCoverageWalker.setPipelined()). On its own thread, it pulls
+ * records from the SamReader (which inflates and decodes them), drops the
+ * ones the filter rejects, and passes the rest on to the walker as
+ * primitive columns: start, end, MAPQ, and the CIGAR packed as
+ * (length &lt;&lt; 4 | operator). A fixed set of batches goes back and forth
+ * between the two threads, so the decoder waits when the walker falls
+ * behind and memory stays bounded.
+ *
+ * Each read is tagged with its segment: the index of the interval it was
+ * queried for or, when walking the whole file, its sequence index.
+ *
+ * @author markebbert
+ *
+ */
+public class ReadDecoder implements Runnable {
+
+	static final int BATCH_SIZE = 4096;
+	private static final int N_BATCHES = 8;
+
+	/**
+	 * Decoded reads, as columns. The CIGAR for read r is
+	 * cigar[cigarEnd[r - 1] .. cigarEnd[r]) (from 0 for the first read).
+	 */
+	static class Batch {
+		int size;
+		boolean last;
+		final int[] segment = new int[BATCH_SIZE];
+		final int[] start = new int[BATCH_SIZE];
+		final int[] end = new int[BATCH_SIZE];
+		final int[] mapQ = new int[BATCH_SIZE];
+		final int[] cigarEnd = new int[BATCH_SIZE];
+		int[] cigar = new int[BATCH_SIZE * 4];
+
+		private void clear() {
+			size = 0;
+			last = false;
+		}
+
+		/**
+		 * @param r
+		 * @return where read r's CIGAR starts in 'cigar'
+		 */
+		int cigarStart(int r) {
+			return 0 == r ? 0 : cigarEnd[r - 1];
+		}
+
+		private void add(int seg, SAMRecord rec) {
+			List<CigarElement> elements = rec.getCigar().getCigarElements();
+			int c = cigarStart(size);
+			if(c + elements.size() > cigar.length) {
+				int[] grown = new int[Math.max(cigar.length * 2, c + elements.size())];
+				System.arraycopy(cigar, 0, grown, 0, c);
+				cigar = grown;
+			}
+			for(int i = 0; i < elements.size(); i++) {
+				cigar[c++] = elements.get(i).getLength() << 4 | elements.get(i).getOperator().ordinal();
+			}
+			segment[size] = seg;
+			start[size] = rec.getAlignmentStart();
+			end[size] = rec.getAlignmentEnd();
+			mapQ[size] = rec.getMappingQuality();
+			cigarEnd[size] = c;
+			size++;
+		}
+	}
+
+	private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(N_BATCHES);
+	private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(N_BATCHES);
+
+	private final SamReader samReader;
+	private final List<Interval> intervals;
+	private final SamRecordFilter filter;
+
+	/* Set before the last batch is queued, so the walker sees it */
+	private volatile Throwable failure;
+	private Thread thread;
+
+	/**
+	 *
+	 * @param samReader
+	 * @param intervals The (sorted, merged) intervals to query, in order,
+	 * or null to read the whole file
+	 * @param filter Records matching this filter are dropped
+	 */
+	public ReadDecoder(SamReader samReader, List<Interval> intervals, SamRecordFilter filter) {
+		this.samReader = samReader;
+		this.intervals = intervals;
+		this.filter = filter;
+	}
+
+	/**
+	 * Start decoding on a background thread.
+	 */
+	public void start() {
+		for(int i = 0; i < N_BATCHES; i++) {
+			free.add(new Batch());
+		}
+		thread = new Thread(this, "drf-read-decoder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		Batch batch;
+		try {
+			batch = free.take();
+		} catch (InterruptedException e) {
+			return;
+		}
+
+		try {
+			if(null == intervals) {
+				batch = decodeFile(batch);
+			}
+			else {
+				batch = decodeIntervals(batch);
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Throwable t) {
+			failure = t;
+		}
+
+		batch.last = true;
+		try {
+			full.put(batch);
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Read the whole file, tagging each read with its sequence index.
+	 *
+	 * @param batch
+	 * @return the batch being filled
+	 * @throws InterruptedException
+	 */
+	private Batch decodeFile(Batch batch) throws InterruptedException {
+		SAMRecord rec;
+		int refIndex;
+		SAMRecordIterator it = samReader.iterator();
+		try {
+			while(it.hasNext()) {
+				rec = it.next();
+
+				/* Unplaced reads are sorted last, so we're done */
+				refIndex = rec.getReferenceIndex();
+				if(refIndex < 0) {
+					break;
+				}
+
+				/*
+				 * The filter sees every read, so its counts match a run
+				 * without --pipeline. Unmapped reads it keeps (if
+				 * --exclude-flags leaves out 0x4) are still skipped, as the
+				 * locus iterator would.
+				 */
+				if(filter.filterOut(rec) || rec.getReadUnmappedFlag()) {
+					continue;
+				}
+				batch = add(batch, refIndex, rec);
+			}
+		} finally {
+			it.close();
+		}
+		return batch;
+	}
+
+	/**
+	 * Query each interval in turn, tagging each read with its interval.
+	 *
+	 * @param batch
+	 * @return the batch being filled
+	 * @throws InterruptedException
+	 */
+	private Batch decodeIntervals(Batch batch) throws InterruptedException {
+		SAMRecord rec;
+		SAMRecordIterator it;
+		Interval interval;
+		for(int i = 0; i < intervals.size(); i++) {
+			interval = intervals.get(i);
+			it = samReader.queryOverlapping(interval.getContig(), interval.getStart(), interval.getEnd());
+			try {
+				while(it.hasNext()) {
+					rec = it.next();
+					if(filter.filterOut(rec) || rec.getReadUnmappedFlag()) {
+						continue;
+					}
+					batch = add(batch, i, rec);
+				}
+			} finally {
+				it.close();
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Add a read, passing the batch on (and taking an empty one) when it's
+	 * full.
+	 *
+	 * @param batch
+	 * @param segment
+	 * @param rec
+	 * @return the batch to add the next read to
+	 * @throws InterruptedException
+	 */
+	private Batch add(Batch batch, int segment, SAMRecord rec) throws InterruptedException {
+		batch.add(segment, rec);
+		if(BATCH_SIZE == batch.size) {
+			full.put(batch);
+			batch = free.take();
+			batch.clear();
+		}
+		return batch;
+	}
+
+	/**
+	 * Wait for the next batch. Hand it back with recycle() once its reads
+	 * are added.
+	 *
+	 * @return
+	 * @throws IOException if the walk was interrupted or reading failed
+	 */
+	Batch take() throws IOException {
+		Batch batch;
+		try {
+			batch = full.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for reads");
+		}
+		if(batch.last && null != failure) {
+			if(failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if(failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new IOException("Could not read the alignments: " + failure.getMessage(), failure);
+		}
+		return batch;
+	}
+
+	/**
+	 * @param batch
+	 */
+	void recycle(Batch batch) {
+		free.add(batch);
+	}
+
+	/**
+	 * Stop decoding (if it hasn't finished) and wait for the thread, so the
+	 * SamReader can be used again.
+	 */
+	void close() {
+		if(null == thread) {
+			return;
+		}
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
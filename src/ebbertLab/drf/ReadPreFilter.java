@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.SAMValidationError;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.filter.SamRecordFilter;
+
+/**
+ * Reject reads before anything beyond their fixed-length fields is
+ * decoded. BAM records decode their CIGAR, read name, bases, qualities,
+ * and attributes lazily, but validating a record (as the SamReader does
+ * for every record unless the stringency is SILENT) decodes all of them.
+ * So the reader is opened without record validation (see
+ * DarkRegionFinder.openSam()) and the checks here run cheapest first:
+ * <ol>
+ * <li>flags, then MAPQ, which are already decoded</li>
+ * <li>the reference span, which decodes only the CIGAR</li>
+ * <li>validation at the user's stringency, for reads that are kept</li>
+ * </ol>
+ * Reads that are dropped are therefore never validated. Counts of the
+ * reads each check dropped are logged with logCounts().
+ *
+ * One instance per traversal; it is not thread-safe.
+ *
+ * @author markebbert
+ *
+ */
+public class ReadPreFilter implements SamRecordFilter {
+
+	private static Logger logger = Logger.getLogger(ReadPreFilter.class);
+
+	/* Unmapped, secondary, duplicate, and supplementary */
+	static final int DEFAULT_EXCLUDE_FLAGS = SAMFlag.READ_UNMAPPED.intValue()
+			| SAMFlag.SECONDARY_ALIGNMENT.intValue()
+			| SAMFlag.DUPLICATE_READ.intValue()
+			| SAMFlag.SUPPLEMENTARY_ALIGNMENT.intValue();
+
+	/* Unmapped and secondary (i.e., for --include-supplementary-only) */
+	static final int INCLUDE_SUPPLEMENTARY_EXCLUDE_FLAGS = SAMFlag.READ_UNMAPPED.intValue()
+			| SAMFlag.SECONDARY_ALIGNMENT.intValue();
+
+	private static final int N_FLAG_BITS = 12;
+
+	private final int excludeFlags, minMapQ, maxSpan;
+	private final ValidationStringency vs;
+
+	/*
+	 * The reads dropped for each flag bit (a read with several excluded
+	 * bits is counted under the lowest), for MAPQ, and for span.
+	 */
+	private final long[] nDroppedByFlag = new long[N_FLAG_BITS];
+	private long nDroppedByMapQ = 0, nDroppedBySpan = 0, nRecords = 0;
+
+	/**
+	 *
+	 * @param excludeFlags Drop reads with any of these SAM flag bits set
+	 * @param minMapQ Drop reads with a MAPQ below this (0 keeps every read)
+	 * @param maxSpan Drop reads whose alignment spans more reference bases
+	 * than this (≤ 0 keeps every read)
+	 * @param vs How to validate the reads that are kept
+	 */
+	public ReadPreFilter(int excludeFlags, int minMapQ, int maxSpan, ValidationStringency vs) {
+		this.excludeFlags = excludeFlags;
+		this.minMapQ = minMapQ;
+		this.maxSpan = maxSpan;
+		this.vs = vs;
+	}
+
+	@Override
+	public boolean filterOut(SAMRecord rec) {
+		nRecords++;
+
+		int flags = rec.getFlags() & excludeFlags;
+		if(0 != flags) {
+			nDroppedByFlag[Integer.numberOfTrailingZeros(flags)]++;
+			return true;
+		}
+		if(rec.getMappingQuality() < minMapQ) {
+			nDroppedByMapQ++;
+			return true;
+		}
+		if(maxSpan > 0 && !rec.getReadUnmappedFlag()
+				&& rec.getAlignmentEnd() - rec.getAlignmentStart() + 1 > maxSpan) {
+			nDroppedBySpan++;
+			return true;
+		}
+
+		if(ValidationStringency.SILENT != vs) {
+			List<SAMValidationError> errors = rec.isValid(ValidationStringency.STRICT == vs);
+			if(null != errors) {
+				SAMUtils.processValidationErrors(errors, nRecords, vs);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean filterOut(SAMRecord first, SAMRecord second) {
+		return filterOut(first) || filterOut(second);
+	}
+
+	/**
+	 * @return the number of reads this filter has seen
+	 */
+	public long getRecordCount() {
+		return nRecords;
+	}
+
+	/**
+	 * @return the number of reads this filter has dropped
+	 */
+	public long getDroppedCount() {
+		long dropped = nDroppedByMapQ + nDroppedBySpan;
+		for(long n : nDroppedByFlag) {
+			dropped += n;
+		}
+		return dropped;
+	}
+
+	/**
+	 * Log how many reads each check dropped.
+	 *
+	 * @param label What was filtered (e.g., a sample name)
+	 */
+	public void logCounts(String label) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(label).append(": kept ").append(nRecords - getDroppedCount())
+				.append(" of ").append(nRecords).append(" reads");
+		/* Some bits have more than one name (e.g., NOT_PRIMARY_ALIGNMENT) */
+		int reported = 0;
+		for(SAMFlag flag : SAMFlag.values()) {
+			if(0 != (excludeFlags & flag.intValue() & ~reported)) {
+				sb.append("; ").append(flag.name()).append(": ")
+						.append(nDroppedByFlag[Integer.numberOfTrailingZeros(flag.intValue())]);
+				reported |= flag.intValue();
+			}
+		}
+		if(minMapQ > 0) {
+			sb.append("; MAPQ < ").append(minMapQ).append(": ").append(nDroppedByMapQ);
+		}
+		if(maxSpan > 0) {
+			sb.append("; span > ").append(maxSpan).append(": ").append(nDroppedBySpan);
+		}
+		logger.info(sb.toString());
+	}
+}
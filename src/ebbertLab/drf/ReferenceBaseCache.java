@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+/**
+ * Serve single reference bases from a window of the reference held in a
+ * byte[], rather than doing an indexed FASTA lookup (and allocating a new
+ * byte[]) for every base. Windows are loaded as the walk moves forward, and
+ * the previous window (or contig) is dropped as soon as the walk moves past
+ * it, so memory is bounded by the window size (or the largest contig if
+ * whole contigs are loaded).
+ *
+ * @author markebbert
+ *
+ */
+public class ReferenceBaseCache {
+
+	/* Default number of bases to load at a time */
+	public static final int DEFAULT_WINDOW_SIZE = 1000000;
+
+	private final ReferenceSequenceFile refReader;
+	private final int windowSize;
+
+	private String contig;
+	private int contigLength;
+
+	/* 1-based position of bases[0] and the number of valid bases */
+	private int windowStart, windowLength;
+	private byte[] bases;
+
+	/**
+	 *
+	 * @param refReader
+	 * @param windowSize Number of bases to load at a time. If ≤ 0, load
+	 * entire contigs.
+	 */
+	public ReferenceBaseCache(ReferenceSequenceFile refReader, int windowSize) {
+		this.refReader = refReader;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Get the reference base at the given position.
+	 *
+	 * @param contigName
+	 * @param position 1-based
+	 * @return
+	 */
+	public byte getBase(String contigName, int position) {
+		if(!contigName.equals(contig) || position < windowStart
+				|| position >= windowStart + windowLength) {
+			loadWindow(contigName, position);
+		}
+		return bases[position - windowStart];
+	}
+
+	/**
+	 * Drop the currently loaded window.
+	 */
+	public void release() {
+		contig = null;
+		bases = null;
+		windowStart = windowLength = 0;
+	}
+
+	/**
+	 * Load the window beginning at 'position', replacing (and releasing)
+	 * whatever was loaded before.
+	 *
+	 * @param contigName
+	 * @param position
+	 */
+	private void loadWindow(String contigName, int position) {
+		if(!contigName.equals(contig)) {
+			SAMSequenceRecord seq = refReader.getSequenceDictionary().getSequence(contigName);
+			if(null == seq) {
+				throw new IllegalArgumentException("Sequence " + contigName
+						+ " was not found in the reference.");
+			}
+
+			/* Let go of the previous contig before loading the next */
+			release();
+			contig = contigName;
+			contigLength = seq.getSequenceLength();
+		}
+
+		int start = windowSize > 0 ? position : 1;
+		int end = windowSize > 0 ? (int) Math.min(contigLength, (long) position + windowSize - 1)
+				: contigLength;
+
+		/* Expects 1-based position (inclusive to inclusive) */
+		bases = null;
+		bases = refReader.getSubsequenceAt(contig, start, end).getBases();
+		windowStart = start;
+		windowLength = bases.length;
+	}
+}
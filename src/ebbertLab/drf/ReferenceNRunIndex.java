@@ -0,0 +1,338 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+
+/**
+ * An index of the runs of unknown bases ('N' or 'n') in a reference, i.e.,
+ * the incomplete regions. Incomplete regions depend only on the reference,
+ * so the index is built once (see the 'index-reference' command) and
+ * written as a small sidecar file next to the reference. Runs are stored
+ * per contig as sorted, non-overlapping, 1-based inclusive [start, end]
+ * pairs and looked up by binary search.
+ *
+ * The index records the reference's size and modification time, so an
+ * index left behind by an edited reference is rebuilt when it's loaded
+ * rather than used.
+ *
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author markebbert
+ *
+ */
+public class ReferenceNRunIndex {
+
+	private static Logger logger = Logger.getLogger(ReferenceNRunIndex.class);
+
+	public static final String EXTENSION = ".nruns";
+	private static final String MAGIC = "DRFNRUN2";
+	private static final int SCAN_WINDOW_SIZE = 1000000;
+
+	/* contig -> {starts, ends} */
+	private final HashMap<String, int[][]> runs;
+
+	private ReferenceNRunIndex(HashMap<String, int[][]> runs) {
+		this.runs = runs;
+	}
+
+	/**
+	 * The default sidecar location for a reference (i.e., <ref>.nruns).
+	 *
+	 * @param hgRef
+	 * @return
+	 */
+	public static File getDefaultIndexFile(File hgRef) {
+		return new File(hgRef.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Scan every contig in the reference for runs of 'N' or 'n' and write
+	 * the index to 'out', replacing it only once it's complete.
+	 *
+	 * @param hgRef
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void build(File hgRef, File out) throws IOException {
+
+		IndexedFastaSequenceFile refReader = new IndexedFastaSequenceFile(hgRef);
+		SAMSequenceDictionary dict = refReader.getSequenceDictionary();
+		if(null == dict) {
+			refReader.close();
+			throw new IOException("The reference provided does not have a dictionary (.dict) file. Generate"
+					+ " the dictionary before proceeding.");
+		}
+
+		File tmp = new File(out.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			dos.writeUTF(MAGIC);
+			dos.writeLong(hgRef.length());
+			dos.writeLong(hgRef.lastModified());
+			dos.writeInt(dict.size());
+
+			int len, windowEnd, runStart, nRuns;
+			int[] starts = new int[1024], ends = new int[1024];
+			byte[] bases;
+			byte base;
+			for(SAMSequenceRecord seq : dict.getSequences()) {
+				len = seq.getSequenceLength();
+				nRuns = 0;
+				runStart = -1;
+				for(int windowStart = 1; windowStart <= len; windowStart += SCAN_WINDOW_SIZE) {
+					windowEnd = Math.min(len, windowStart + SCAN_WINDOW_SIZE - 1);
+					bases = refReader.getSubsequenceAt(seq.getSequenceName(), windowStart, windowEnd).getBases();
+					for(int i = 0; i < bases.length; i++) {
+						base = bases[i];
+						if(base == 'N' || base == 'n') {
+							if(runStart < 0) {
+								runStart = windowStart + i;
+							}
+						}
+						else if(runStart >= 0) {
+							if(nRuns == starts.length) {
+								starts = Arrays.copyOf(starts, nRuns * 2);
+								ends = Arrays.copyOf(ends, nRuns * 2);
+							}
+							starts[nRuns] = runStart;
+							ends[nRuns++] = windowStart + i - 1;
+							runStart = -1;
+						}
+					}
+				}
+				if(runStart >= 0) {
+					if(nRuns == starts.length) {
+						starts = Arrays.copyOf(starts, nRuns * 2);
+						ends = Arrays.copyOf(ends, nRuns * 2);
+					}
+					starts[nRuns] = runStart;
+					ends[nRuns++] = len;
+				}
+
+				dos.writeUTF(seq.getSequenceName());
+				dos.writeInt(len);
+				dos.writeInt(nRuns);
+				for(int i = 0; i < nRuns; i++) {
+					dos.writeInt(starts[i]);
+					dos.writeInt(ends[i]);
+				}
+				logger.info("Indexed " + seq.getSequenceName() + ": " + nRuns + " incomplete runs");
+			}
+		} finally {
+			dos.close();
+			refReader.close();
+		}
+		Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @param indexFile
+	 * @param hgRef
+	 * @return whether the index was built from the reference as it is now
+	 * (i.e., with the same size and modification time) by this version
+	 * @throws IOException if it's not an incomplete-region index at all
+	 */
+	static boolean isCurrent(File indexFile, File hgRef) throws IOException {
+		DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)));
+		String magic;
+		try {
+			magic = dis.readUTF();
+			if(MAGIC.equals(magic)) {
+				return dis.readLong() == hgRef.length() && dis.readLong() == hgRef.lastModified();
+			}
+		} catch (IOException e) {
+			magic = null;
+		} finally {
+			dis.close();
+		}
+
+		/* Every version's magic shares the first seven characters */
+		if(null == magic || !magic.startsWith(MAGIC.substring(0, MAGIC.length() - 1))) {
+			throw new IOException(indexFile + " is not a DRF incomplete-region index.");
+		}
+		return false;
+	}
+
+	/**
+	 * Load an index and verify it matches the reference's dictionary. If
+	 * the reference changed since the index was built (or the index is
+	 * from an older version of DRF), the index is rebuilt first.
+	 *
+	 * @param indexFile
+	 * @param hgRef
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReferenceNRunIndex load(File indexFile, File hgRef) throws IOException {
+		if(!isCurrent(indexFile, hgRef)) {
+			logger.warn("The incomplete-region index " + indexFile + " was not built from "
+					+ hgRef + " as it is now. Rebuilding it.");
+			build(hgRef, indexFile);
+		}
+
+		IndexedFastaSequenceFile refReader = new IndexedFastaSequenceFile(hgRef);
+		try {
+			if(null == refReader.getSequenceDictionary()) {
+				throw new IOException("The reference provided does not have a dictionary (.dict) file. Generate"
+						+ " the dictionary before proceeding.");
+			}
+			return load(indexFile, refReader.getSequenceDictionary());
+		} finally {
+			refReader.close();
+		}
+	}
+
+	/**
+	 * Load an index and verify it matches the reference dictionary.
+	 *
+	 * @param indexFile
+	 * @param hgRefDictionary
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReferenceNRunIndex load(File indexFile,
+			SAMSequenceDictionary hgRefDictionary) throws IOException {
+
+		HashMap<String, int[][]> runs = new HashMap<String, int[][]>();
+		HashMap<String, Integer> lengths = new HashMap<String, Integer>();
+
+		DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if(!MAGIC.equals(dis.readUTF())) {
+				throw new IOException(indexFile + " is not a DRF incomplete-region index"
+						+ " from this version. Rebuild it with 'index-reference'.");
+			}
+
+			/* The reference's size and modification time (see isCurrent()) */
+			dis.readLong();
+			dis.readLong();
+			int nContigs = dis.readInt(), len, nRuns;
+			String contig;
+			int[][] contigRuns;
+			for(int c = 0; c < nContigs; c++) {
+				contig = dis.readUTF();
+				len = dis.readInt();
+				nRuns = dis.readInt();
+				contigRuns = new int[2][nRuns];
+				for(int i = 0; i < nRuns; i++) {
+					contigRuns[0][i] = dis.readInt();
+					contigRuns[1][i] = dis.readInt();
+				}
+				runs.put(contig, contigRuns);
+				lengths.put(contig, len);
+			}
+		} finally {
+			dis.close();
+		}
+
+		/* Make sure the index was built from this reference */
+		SAMSequenceRecord seq;
+		for(String contig : lengths.keySet()) {
+			seq = hgRefDictionary.getSequence(contig);
+			if(null == seq || seq.getSequenceLength() != lengths.get(contig)) {
+				throw new IOException("The incomplete-region index " + indexFile
+						+ " does not match the reference (" + contig + " differs)."
+						+ " Rebuild it with 'index-reference'.");
+			}
+		}
+		if(lengths.size() != hgRefDictionary.size()) {
+			throw new IOException("The incomplete-region index " + indexFile
+					+ " does not match the reference (different number of sequences)."
+					+ " Rebuild it with 'index-reference'.");
+		}
+
+		return new ReferenceNRunIndex(runs);
+	}
+
+	/**
+	 * Find the run containing 'position', or the first run after it.
+	 *
+	 * @param contig
+	 * @param position 1-based
+	 * @return the index of the run containing position, or
+	 * (-(insertion point) - 1) if position is not in a run, where the
+	 * insertion point is the index of the first run after position. Returns
+	 * -1 if the contig has no runs.
+	 */
+	public int findRun(String contig, int position) {
+		int[][] contigRuns = runs.get(contig);
+		if(null == contigRuns) {
+			return -1;
+		}
+		int[] ends = contigRuns[1];
+		int lo = 0, hi = ends.length - 1, mid;
+
+		/* Find the first run ending at or after position */
+		while(lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			if(ends[mid] < position) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		if(lo < ends.length && contigRuns[0][lo] <= position) {
+			return lo;
+		}
+		return -lo - 1;
+	}
+
+	/**
+	 * @param contig
+	 * @param position 1-based
+	 * @return whether the base at position is unknown ('N' or 'n')
+	 */
+	public boolean isIncomplete(String contig, int position) {
+		return findRun(contig, position) >= 0;
+	}
+
+	/**
+	 * @param contig
+	 * @return the number of runs on the contig
+	 */
+	public int getRunCount(String contig) {
+		int[][] contigRuns = runs.get(contig);
+		return null == contigRuns ? 0 : contigRuns[0].length;
+	}
+
+	/**
+	 * @param contig
+	 * @param runIndex
+	 * @return the 1-based start of the run
+	 */
+	public int getRunStart(String contig, int runIndex) {
+		return runs.get(contig)[0][runIndex];
+	}
+
+	/**
+	 * @param contig
+	 * @param runIndex
+	 * @return the 1-based, inclusive end of the run
+	 */
+	public int getRunEnd(String contig, int runIndex) {
+		return runs.get(contig)[1][runIndex];
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * What a sharded run was given and what it wrote, so a later run can
+ * recompute only the shards that changed (see
+ * DarkRegionShardRunner.setRunManifest()). The manifest records:
+ * <ul>
+ * <li>every parameter that affects the outputs</li>
+ * <li>the size and modification time of the inputs and of each output,
+ * and of the file of shard boundaries written with them</li>
+ * <li>for each shard (a tile from ShardPlanner.planTiles()): its
+ * intervals, a fingerprint of the reads overlapping them, and the bytes
+ * its BGZF blocks occupy in each output</li>
+ * </ul>
+ *
+ * It's a tab-delimited text file, one record per line, starting with the
+ * record type ('param', 'input', 'output', or 'shard').
+ *
+ * @author markebbert
+ *
+ */
+public class RunManifest {
+
+	static final String HEADER = "#drf-run-manifest";
+	static final int VERSION = 1;
+
+	/**
+	 * One shard: its intervals, the fingerprint of its reads, and the
+	 * offset and length of its blocks in each output.
+	 */
+	static class ShardRecord {
+		final String tile, intervals;
+		final long fingerprint;
+		final long[] offsets, lengths;
+
+		ShardRecord(String tile, String intervals, long fingerprint, long[] offsets, long[] lengths) {
+			this.tile = tile;
+			this.intervals = intervals;
+			this.fingerprint = fingerprint;
+			this.offsets = offsets;
+			this.lengths = lengths;
+		}
+	}
+
+	private final Map<String, String> params = new LinkedHashMap<String, String>();
+	private final Map<String, String> inputs = new LinkedHashMap<String, String>();
+	private final List<String> outputs = new ArrayList<String>();
+	private final Map<String, ShardRecord> shards = new LinkedHashMap<String, ShardRecord>();
+
+	/**
+	 * @param name
+	 * @param value
+	 */
+	void setParameter(String name, Object value) {
+		params.put(name, String.valueOf(value));
+	}
+
+	/**
+	 * Record an input's size and modification time.
+	 *
+	 * @param role
+	 * @param file
+	 */
+	void setInput(String role, File file) {
+		inputs.put(role, stamp(file));
+	}
+
+	/**
+	 * Record an output's size and modification time, once it's written.
+	 *
+	 * @param file
+	 */
+	void addOutput(File file) {
+		outputs.add(stamp(file));
+	}
+
+	/**
+	 * @param shard
+	 */
+	void addShard(ShardRecord shard) {
+		shards.put(shard.tile, shard);
+	}
+
+	/**
+	 * @param tile
+	 * @return the shard for 'tile', or null if there was none
+	 */
+	ShardRecord getShard(String tile) {
+		return shards.get(tile);
+	}
+
+	/**
+	 * @param other
+	 * @param role
+	 * @return whether the input had the same size and modification time
+	 * in both runs
+	 */
+	boolean sameInput(RunManifest other, String role) {
+		String stamp = inputs.get(role);
+		return null != stamp && stamp.equals(other.inputs.get(role));
+	}
+
+	/**
+	 * Check whether this (earlier) run's outputs can be reused for 'current':
+	 * the parameters and reference must be the same, and every output must
+	 * be as this run left it.
+	 *
+	 * @param current
+	 * @param finalOutputs The current run's outputs
+	 * @return why they can't be reused, or null if they can
+	 */
+	String findMismatch(RunManifest current, List<File> finalOutputs) {
+		if(!params.equals(current.params)) {
+			for(Map.Entry<String, String> param : current.params.entrySet()) {
+				if(!param.getValue().equals(params.get(param.getKey()))) {
+					return "'" + param.getKey() + "' changed from " + params.get(param.getKey())
+							+ " to " + param.getValue();
+				}
+			}
+			return "the parameters changed";
+		}
+		if(!sameInput(current, "reference")) {
+			return "the reference changed";
+		}
+		if(outputs.size() != finalOutputs.size()) {
+			return "the outputs changed";
+		}
+		for(int i = 0; i < outputs.size(); i++) {
+			if(!outputs.get(i).equals(stamp(finalOutputs.get(i)))) {
+				return finalOutputs.get(i) + " was changed or removed after the last run";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fingerprint the reads overlapping a shard's intervals: their flags,
+	 * start, MAPQ, and CIGAR, which is all the walk uses. Only the CIGAR is
+	 * decoded beyond the fixed-length fields. The fingerprint is not
+	 * cryptographic; a change would go unnoticed only if the 64-bit hashes
+	 * happened to collide.
+	 *
+	 * @param reader Must be indexed
+	 * @param intervalStrings
+	 * @return
+	 */
+	static long fingerprint(SamReader reader, List<String> intervalStrings) {
+		SAMFileHeader header = reader.getFileHeader();
+		List<Interval> intervals = DarkRegionFinder.generateIntervalList(intervalStrings, header).getIntervals();
+		QueryInterval[] queries = new QueryInterval[intervals.size()];
+		for(int i = 0; i < queries.length; i++) {
+			queries[i] = new QueryInterval(header.getSequenceIndex(intervals.get(i).getContig()),
+					intervals.get(i).getStart(), intervals.get(i).getEnd());
+		}
+
+		long hash = 0;
+		SAMRecord rec;
+		SAMRecordIterator it = reader.queryOverlapping(QueryInterval.optimizeIntervals(queries));
+		try {
+			while(it.hasNext()) {
+				rec = it.next();
+				hash = mix(hash, rec.getFlags());
+				hash = mix(hash, rec.getAlignmentStart());
+				hash = mix(hash, rec.getMappingQuality());
+				for(CigarElement element : rec.getCigar().getCigarElements()) {
+					hash = mix(hash, ((long) element.getLength() << 8) | element.getOperator().ordinal());
+				}
+			}
+		} finally {
+			it.close();
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, long value) {
+		hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * @param file
+	 * @return the file's path, size, and modification time
+	 */
+	static String stamp(File file) {
+		return file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+	}
+
+	/**
+	 * Read a manifest written by write().
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException if it's not a manifest (or of another version)
+	 */
+	static RunManifest read(File file) throws IOException {
+		RunManifest manifest = new RunManifest();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line = br.readLine();
+			if(null == line || !line.equals(HEADER + "\t" + VERSION)) {
+				throw new IOException(file + " is not a run manifest from this version of"
+						+ " DarkRegionFinder. Remove it to start over.");
+			}
+
+			String[] toks;
+			while(null != (line = br.readLine())) {
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				toks = line.split("\t", -1);
+				if("param".equals(toks[0])) {
+					manifest.params.put(toks[1], toks[2]);
+				}
+				else if("input".equals(toks[0])) {
+					manifest.inputs.put(toks[1], toks[2] + "\t" + toks[3] + "\t" + toks[4]);
+				}
+				else if("output".equals(toks[0])) {
+					manifest.outputs.add(toks[1] + "\t" + toks[2] + "\t" + toks[3]);
+				}
+				else if("shard".equals(toks[0])) {
+					String[] spans = toks[4].split(",");
+					long[] offsets = new long[spans.length], lengths = new long[spans.length];
+					for(int i = 0; i < spans.length; i++) {
+						offsets[i] = Long.parseLong(spans[i].substring(0, spans[i].indexOf(':')));
+						lengths[i] = Long.parseLong(spans[i].substring(spans[i].indexOf(':') + 1));
+					}
+					manifest.addShard(new ShardRecord(toks[1], toks[3],
+							Long.parseUnsignedLong(toks[2], 16), offsets, lengths));
+				}
+				else {
+					throw new IOException(file + " has an unknown record: " + line);
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Could not parse run manifest " + file + ": " + e.getMessage());
+		} finally {
+			br.close();
+		}
+		return manifest;
+	}
+
+	/**
+	 * Write the manifest, replacing 'file' only once it's complete.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+		try {
+			writer.write(HEADER + "\t" + VERSION + "\n");
+			for(Map.Entry<String, String> param : params.entrySet()) {
+				writer.write("param\t" + param.getKey() + "\t" + param.getValue() + "\n");
+			}
+			for(Map.Entry<String, String> input : inputs.entrySet()) {
+				writer.write("input\t" + input.getKey() + "\t" + input.getValue() + "\n");
+			}
+			for(String output : outputs) {
+				writer.write("output\t" + output + "\n");
+			}
+			writer.write("#shard\ttile\tfingerprint\tintervals\toffset:length in each output\n");
+			StringBuilder sb = new StringBuilder();
+			for(ShardRecord shard : shards.values()) {
+				sb.setLength(0);
+				sb.append("shard\t").append(shard.tile)
+						.append('\t').append(Long.toHexString(shard.fingerprint))
+						.append('\t').append(shard.intervals).append('\t');
+				for(int i = 0; i < shard.offsets.length; i++) {
+					sb.append(i > 0 ? "," : "").append(shard.offsets[i]).append(':').append(shard.lengths[i]);
+				}
+				writer.write(sb.append('\n').toString());
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
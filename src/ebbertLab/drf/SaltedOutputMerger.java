@@ -0,0 +1,340 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Merge the outputs of several --interval-list runs (which add
+ * '.salt_<random>' to their file names) into one sorted, indexed file per
+ * category. The inputs are read in parallel and merged in reference
+ * order, holding one line per input (plus, in per-base mode, at most
+ * --min-region-size lines of the current region) in memory.
+ *
+ * Regions that touch across an interval boundary are joined, and
+ * --min-region-size is applied to the joined region as DarkRegionFinder
+ * applies it: a dark region must be longer than it, and an incomplete
+ * region at least as long. Runs that were too short on either side of a
+ * boundary were never written, though, so the interval runs should use
+ * --min-region-size 0, which writes every run, for the size to be applied
+ * correctly here.
+ *
+ * @author markebbert
+ *
+ */
+public class SaltedOutputMerger {
+
+	private static Logger logger = Logger.getLogger(SaltedOutputMerger.class);
+
+	static final String SALT_TAG = ".salt_";
+
+	/* Columns in a low-coverage or low-MAPQ line written with --merged-output */
+	private static final int MERGED_DARK_COLUMNS = 8;
+
+	private final SAMSequenceDictionary dictionary;
+	private final int minRegionSize;
+	private final boolean mergedOutput;
+
+	/* Whether the output being merged is incomplete regions (see isLongEnough()) */
+	private boolean incomplete;
+	private final BedRecordEncoder encoder = new BedRecordEncoder();
+
+	/* The current region: [start, end) on contigIndex, 0-based */
+	private int contigIndex = -1;
+	private long start, end;
+	private String contig;
+
+	/* Per-base mode: the region's lines, until it's long enough to write */
+	private final List<String> pending = new ArrayList<String>();
+	private boolean streaming;
+
+	/* Merged mode: the region's aggregate statistics (if it has any) */
+	private boolean hasStats;
+	private long nCoveredLoci;
+	private double sumDepth, minDepth, maxDepth, sumPercMapQ, sumDeleted;
+
+	/**
+	 * One input, positioned at its current line.
+	 */
+	private class Source implements Comparable<Source> {
+		final File file;
+		final int order;
+		final BufferedReader reader;
+		String line;
+		String[] fields;
+		int contigIndex;
+		long start, end;
+
+		Source(File file, int order) throws IOException {
+			this.file = file;
+			this.order = order;
+			this.reader = new BufferedReader(new InputStreamReader(
+					new BlockCompressedInputStream(file)));
+		}
+
+		/**
+		 * @return false at the end of the input
+		 * @throws IOException
+		 */
+		boolean advance() throws IOException {
+			while(null != (line = reader.readLine())) {
+				if(!line.isEmpty()) {
+					break;
+				}
+			}
+			if(null == line) {
+				reader.close();
+				return false;
+			}
+			fields = line.split("\t");
+			if(fields.length < 3) {
+				throw new IOException(file + " has a line with fewer than three columns: " + line);
+			}
+			contigIndex = dictionary.getSequenceIndex(fields[0]);
+			if(contigIndex < 0) {
+				throw new IOException(file + " has a line on " + fields[0]
+						+ ", which is not in the reference.");
+			}
+			start = Long.parseLong(fields[1]);
+
+			/*
+			 * Per-base lines are always one locus (the low-coverage and
+			 * low-MAPQ files write the same start and end for them)
+			 */
+			end = mergedOutput ? Long.parseLong(fields[2]) : start + 1;
+			return true;
+		}
+
+		@Override
+		public int compareTo(Source other) {
+			if(contigIndex != other.contigIndex) {
+				return Integer.compare(contigIndex, other.contigIndex);
+			}
+			if(start != other.start) {
+				return Long.compare(start, other.start);
+			}
+			if(end != other.end) {
+				return Long.compare(end, other.end);
+			}
+			return Integer.compare(order, other.order);
+		}
+	}
+
+	/**
+	 *
+	 * @param dictionary The order to merge in
+	 * @param minRegionSize
+	 * @param mergedOutput Whether the inputs were written with
+	 * --merged-output (one line per run) rather than one line per base
+	 */
+	public SaltedOutputMerger(SAMSequenceDictionary dictionary, int minRegionSize,
+			boolean mergedOutput) {
+		this.dictionary = dictionary;
+		this.minRegionSize = minRegionSize;
+		this.mergedOutput = mergedOutput;
+	}
+
+	/**
+	 * Find the salted outputs of --interval-list runs for an output file.
+	 * E.g., for low_coverage.dark.bed.gz, these are
+	 * low_coverage.dark.bed.salt_<random>.gz in the same directory.
+	 *
+	 * @param finalOutput
+	 * @return the files, sorted by name
+	 */
+	public static List<File> findSaltedFiles(File finalOutput) {
+		File dir = null == finalOutput.getAbsoluteFile().getParentFile()
+				? new File(".") : finalOutput.getAbsoluteFile().getParentFile();
+		String name = finalOutput.getName();
+		int extensionIndex = name.lastIndexOf('.');
+		final String prefix = (extensionIndex < 0 ? name : name.substring(0, extensionIndex)) + SALT_TAG;
+		final String suffix = extensionIndex < 0 ? "" : name.substring(extensionIndex);
+
+		List<File> files = new ArrayList<File>();
+		File[] candidates = dir.listFiles();
+		if(null != candidates) {
+			for(File candidate : candidates) {
+				name = candidate.getName();
+
+				/* The salt itself has no '.' (e.g., to skip the .tbi files) */
+				if(candidate.isFile() && name.startsWith(prefix) && name.endsWith(suffix)
+						&& name.length() > prefix.length() + suffix.length()
+						&& name.indexOf('.', prefix.length()) == name.length() - suffix.length()) {
+					files.add(candidate);
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Merge the inputs into 'output' (block-gzipped and indexed).
+	 *
+	 * @param inputs
+	 * @param output
+	 * @param incomplete Whether these are incomplete (rather than dark)
+	 * regions
+	 * @throws IOException
+	 */
+	public void merge(List<File> inputs, File output, boolean incomplete) throws IOException {
+		logger.info("Merging " + inputs.size() + " files into " + output);
+		this.incomplete = incomplete;
+
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		BgzfBedWriter writer = new BgzfBedWriter(output);
+		try {
+			Source source;
+			for(int i = 0; i < inputs.size(); i++) {
+				source = new Source(inputs.get(i), i);
+				if(source.advance()) {
+					queue.add(source);
+				}
+			}
+
+			contigIndex = -1;
+			while(!queue.isEmpty()) {
+				source = queue.poll();
+				add(source, writer);
+				if(source.advance()) {
+					queue.add(source);
+				}
+			}
+			endRegion(writer);
+		} finally {
+			for(Source source : queue) {
+				source.reader.close();
+			}
+			writer.close();
+		}
+	}
+
+	/**
+	 * Add the source's current line to the current region if it touches
+	 * it, or end the region and start a new one.
+	 *
+	 * @param source
+	 * @param writer
+	 * @throws IOException
+	 */
+	private void add(Source source, BgzfBedWriter writer) throws IOException {
+		if(source.contigIndex != contigIndex || source.start > end) {
+			endRegion(writer);
+			contigIndex = source.contigIndex;
+			contig = source.fields[0];
+			start = end = source.start;
+			pending.clear();
+			streaming = false;
+			hasStats = source.fields.length >= MERGED_DARK_COLUMNS;
+			nCoveredLoci = 0;
+			sumDepth = sumPercMapQ = sumDeleted = 0;
+			minDepth = Double.MAX_VALUE;
+			maxDepth = -1;
+		}
+
+		/* Overlapping intervals write the same loci twice. Keep the first. */
+		if(source.end <= end) {
+			return;
+		}
+		long newLoci = source.end - Math.max(source.start, end);
+		end = source.end;
+
+		if(mergedOutput) {
+			if(hasStats) {
+				addStats(source.fields, newLoci, source.end - source.start);
+			}
+			return;
+		}
+
+		if(streaming) {
+			writeLine(writer, source.line);
+			return;
+		}
+		pending.add(source.line);
+		if(isLongEnough()) {
+			for(String line : pending) {
+				writeLine(writer, line);
+			}
+			pending.clear();
+			streaming = true;
+		}
+	}
+
+	/**
+	 * Fold a merged line's statistics into the region, weighting the means
+	 * by the loci it adds. The lines don't say how many of their loci had
+	 * reads, so the mean MAPQ percentage is only an estimate.
+	 *
+	 * @param fields
+	 * @param newLoci
+	 * @param lineLoci
+	 */
+	private void addStats(String[] fields, long newLoci, long lineLoci) {
+		double meanDepth = Double.parseDouble(fields[3]);
+		double percMapQ = Double.parseDouble(fields[6]);
+		sumDepth += meanDepth * newLoci;
+		minDepth = Math.min(minDepth, Double.parseDouble(fields[4]));
+		maxDepth = Math.max(maxDepth, Double.parseDouble(fields[5]));
+		if(percMapQ >= 0) {
+			nCoveredLoci += newLoci;
+			sumPercMapQ += percMapQ * newLoci;
+		}
+		sumDeleted += Double.parseDouble(fields[7]) * newLoci / lineLoci;
+	}
+
+	/**
+	 * As in DarkRegionFinder, a dark region is written only if it's longer
+	 * than minRegionSize, but an incomplete region if it's at least as
+	 * long.
+	 *
+	 * @return whether the current region is large enough to write
+	 */
+	private boolean isLongEnough() {
+		return end - start > minRegionSize || (incomplete && end - start == minRegionSize);
+	}
+
+	/**
+	 * Write the current region if it's large enough.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	private void endRegion(BgzfBedWriter writer) throws IOException {
+		if(contigIndex < 0 || !isLongEnough() || !mergedOutput) {
+			return;
+		}
+
+		encoder.reset().contig(contig).field(start).field(end);
+		if(hasStats) {
+			encoder.field(round(sumDepth / (end - start)))
+					.field((long) minDepth)
+					.field((long) maxDepth)
+					.field(nCoveredLoci > 0 ? round(sumPercMapQ / nCoveredLoci) : -1.0)
+					.field(Math.round(sumDeleted));
+		}
+		encoder.endLine();
+		encoder.writeTo(writer);
+	}
+
+	private void writeLine(BgzfBedWriter writer, String line) throws IOException {
+		writer.write(line);
+		writer.write('\n');
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import htsjdk.samtools.util.Interval;
+
+/**
+ * The regions at either end of one shard of a sharded walk (see
+ * DarkRegionShardRunner), for one threshold configuration. A region that
+ * crosses from one shard into the next can't be judged by either shard
+ * alone, so each shard leaves its ends to be joined once every shard is
+ * done (see DarkRegionFinder.joinShards()):
+ * <ul>
+ * <li>At the start of the shard, each category (low depth, low MAPQ, and
+ * incomplete) is held back until its first region ends. The runs of loci
+ * up to then are recorded here, to be replayed on top of the regions left
+ * open by the shard before.</li>
+ * <li>At the end of the shard, the regions still open are kept here
+ * rather than written.</li>
+ * </ul>
+ * Once a category's region has ended, its regions no longer depend on
+ * anything before the shard, so everything in between is the shard's own
+ * and is written by the shard itself.
+ *
+ * @author markebbert
+ *
+ */
+public class ShardBoundary {
+
+	/* The categories, in the same order as a finder's outputs */
+	static final int LOW_DEPTH = 0, LOW_MAPQ = 1, INCOMPLETE = 2;
+
+	final int mapQThreshold, minMapQMass, minRegionSize, minDepth;
+	final boolean mergedOutput;
+
+	/*
+	 * The runs passed in before every category's first region ended. An
+	 * incomplete run has no counts.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+	private int nRuns = 0;
+	private String[] contigs = new String[INITIAL_CAPACITY];
+	private int[] starts = new int[INITIAL_CAPACITY];
+	private int[] ends = new int[INITIAL_CAPACITY];
+	private double[] depths = new double[INITIAL_CAPACITY];
+	private double[] nDeleted = new double[INITIAL_CAPACITY];
+	private int[] nMapQBelow = new int[INITIAL_CAPACITY];
+	private boolean[] incomplete = new boolean[INITIAL_CAPACITY];
+
+	/* Whether each category's first region ended within the shard */
+	private final boolean[] ended = new boolean[3];
+
+	/* The regions open at the end of the shard */
+	private double consecLowDepth, consecLowMapQ, consecInc;
+	private DarkRegionBuffer lowDepthRegion, lowMapQRegion;
+	private ArrayList<Interval> incRuns = new ArrayList<Interval>();
+
+	/**
+	 * The thresholds of the finder walking the shard, which the finder
+	 * joining the shards uses too.
+	 *
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @param mergedOutput
+	 */
+	ShardBoundary(int mapQThreshold, int minMapQMass, int minRegionSize, int minDepth,
+			boolean mergedOutput) {
+		this.mapQThreshold = mapQThreshold;
+		this.minMapQMass = minMapQMass;
+		this.minRegionSize = minRegionSize;
+		this.minDepth = minDepth;
+		this.mergedOutput = mergedOutput;
+		this.lowDepthRegion = new DarkRegionBuffer(DarkRegionBuffer.RegionType.LOW_DEPTH, mergedOutput);
+		this.lowMapQRegion = new DarkRegionBuffer(DarkRegionBuffer.RegionType.LOW_MAPQ, mergedOutput);
+	}
+
+	/**
+	 * Record a run of loci, as passed to the finder.
+	 *
+	 * @param contig
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @param depthExcludingIndels
+	 * @param nDeletedInRecord
+	 * @param nMapQBelowThreshold
+	 * @param isIncomplete
+	 */
+	void addRun(String contig, int start, int end, double depthExcludingIndels,
+			double nDeletedInRecord, int nMapQBelowThreshold, boolean isIncomplete) {
+		if(nRuns == starts.length) {
+			int capacity = nRuns * 2;
+			contigs = Arrays.copyOf(contigs, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			depths = Arrays.copyOf(depths, capacity);
+			nDeleted = Arrays.copyOf(nDeleted, capacity);
+			nMapQBelow = Arrays.copyOf(nMapQBelow, capacity);
+			incomplete = Arrays.copyOf(incomplete, capacity);
+		}
+		contigs[nRuns] = contig;
+		starts[nRuns] = start;
+		ends[nRuns] = end;
+		depths[nRuns] = depthExcludingIndels;
+		nDeleted[nRuns] = nDeletedInRecord;
+		nMapQBelow[nRuns] = nMapQBelowThreshold;
+		incomplete[nRuns++] = isIncomplete;
+	}
+
+	/**
+	 * Keep the regions open at the end of the shard.
+	 *
+	 * @param ended Whether each category's first region ended
+	 * @param consecLowDepth
+	 * @param consecLowMapQ
+	 * @param consecInc
+	 * @param lowDepthRegion
+	 * @param lowMapQRegion
+	 * @param incRuns
+	 */
+	void setOpenRegions(boolean[] ended, double consecLowDepth, double consecLowMapQ,
+			double consecInc, DarkRegionBuffer lowDepthRegion, DarkRegionBuffer lowMapQRegion,
+			ArrayList<Interval> incRuns) {
+		System.arraycopy(ended, 0, this.ended, 0, this.ended.length);
+		this.consecLowDepth = consecLowDepth;
+		this.consecLowMapQ = consecLowMapQ;
+		this.consecInc = consecInc;
+		this.lowDepthRegion = lowDepthRegion;
+		this.lowMapQRegion = lowMapQRegion;
+		this.incRuns = incRuns;
+	}
+
+	/**
+	 * Save the boundary (e.g., for the next run with a run manifest; see
+	 * DarkRegionShardRunner.setRunManifest()), to be read back with
+	 * load().
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(mapQThreshold);
+		out.writeInt(minMapQMass);
+		out.writeInt(minRegionSize);
+		out.writeInt(minDepth);
+		out.writeBoolean(mergedOutput);
+
+		out.writeInt(nRuns);
+		for(int i = 0; i < nRuns; i++) {
+			out.writeUTF(contigs[i]);
+			out.writeInt(starts[i]);
+			out.writeInt(ends[i]);
+			out.writeDouble(depths[i]);
+			out.writeDouble(nDeleted[i]);
+			out.writeInt(nMapQBelow[i]);
+			out.writeBoolean(incomplete[i]);
+		}
+
+		for(boolean categoryEnded : ended) {
+			out.writeBoolean(categoryEnded);
+		}
+		out.writeDouble(consecLowDepth);
+		out.writeDouble(consecLowMapQ);
+		out.writeDouble(consecInc);
+		lowDepthRegion.save(out);
+		lowMapQRegion.save(out);
+		out.writeInt(incRuns.size());
+		for(Interval run : incRuns) {
+			out.writeUTF(run.getContig());
+			out.writeInt(run.getStart());
+			out.writeInt(run.getEnd());
+		}
+	}
+
+	/**
+	 * Read back a boundary written by save().
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static ShardBoundary load(DataInputStream in) throws IOException {
+		ShardBoundary boundary = new ShardBoundary(in.readInt(), in.readInt(), in.readInt(),
+				in.readInt(), in.readBoolean());
+
+		int nRuns = in.readInt();
+		for(int i = 0; i < nRuns; i++) {
+			boundary.addRun(in.readUTF(), in.readInt(), in.readInt(), in.readDouble(),
+					in.readDouble(), in.readInt(), in.readBoolean());
+		}
+
+		for(int category = 0; category < boundary.ended.length; category++) {
+			boundary.ended[category] = in.readBoolean();
+		}
+		boundary.consecLowDepth = in.readDouble();
+		boundary.consecLowMapQ = in.readDouble();
+		boundary.consecInc = in.readDouble();
+		boundary.lowDepthRegion = DarkRegionBuffer.load(in, DarkRegionBuffer.RegionType.LOW_DEPTH,
+				boundary.mergedOutput);
+		boundary.lowMapQRegion = DarkRegionBuffer.load(in, DarkRegionBuffer.RegionType.LOW_MAPQ,
+				boundary.mergedOutput);
+		int nIncRuns = in.readInt();
+		for(int i = 0; i < nIncRuns; i++) {
+			boundary.incRuns.add(new Interval(in.readUTF(), in.readInt(), in.readInt()));
+		}
+		return boundary;
+	}
+
+	/**
+	 * @param category LOW_DEPTH, LOW_MAPQ, or INCOMPLETE
+	 * @return whether the category's first region ended within the shard.
+	 * If not, every run in the shard was recorded.
+	 */
+	boolean isEnded(int category) {
+		return ended[category];
+	}
+
+	int getRunCount() {
+		return nRuns;
+	}
+
+	String getContig(int run) {
+		return contigs[run];
+	}
+
+	int getStart(int run) {
+		return starts[run];
+	}
+
+	int getEnd(int run) {
+		return ends[run];
+	}
+
+	double getDepth(int run) {
+		return depths[run];
+	}
+
+	double getDeleted(int run) {
+		return nDeleted[run];
+	}
+
+	int getMapQBelow(int run) {
+		return nMapQBelow[run];
+	}
+
+	boolean isIncomplete(int run) {
+		return incomplete[run];
+	}
+
+	double getConsecLowDepth() {
+		return consecLowDepth;
+	}
+
+	double getConsecLowMapQ() {
+		return consecLowMapQ;
+	}
+
+	double getConsecInc() {
+		return consecInc;
+	}
+
+	DarkRegionBuffer getLowDepthRegion() {
+		return lowDepthRegion;
+	}
+
+	DarkRegionBuffer getLowMapQRegion() {
+		return lowMapQRegion;
+	}
+
+	ArrayList<Interval> getIncRuns() {
+		return incRuns;
+	}
+}
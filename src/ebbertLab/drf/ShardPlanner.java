@@ -0,0 +1,342 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * Split the genome (or the user's intervals) into shards of roughly equal
+ * work, rather than equal length. The work for each tile of the genome is
+ * estimated from the SAM/BAM/CRAM index as the number of compressed bytes
+ * of alignments overlapping it (for CRAM, the index's container offsets
+ * serve the same purpose). Tiles are then grouped, in coordinate order,
+ * into shards with about the same total. A shard can therefore be part of
+ * a deep chromosome or several shallow ones.
+ *
+ * @author markebbert
+ *
+ */
+public class ShardPlanner {
+
+	private static Logger logger = Logger.getLogger(ShardPlanner.class);
+
+	/*
+	 * The genome is cut into tiles of this size, and shards are made of
+	 * whole tiles, so no shard is smaller than a tile (unless the sequence
+	 * or interval is).
+	 */
+	static final int TILE_SIZE = 1000000;
+
+	/*
+	 * Walking bases costs something even where there are no reads, so
+	 * each tile also counts one unit of work per this many bases.
+	 */
+	private static final int BASES_PER_WORK_UNIT = 64;
+
+	/*
+	 * Chunks that start and end in the same BGZF block are estimated from
+	 * their uncompressed size, assuming this compression ratio.
+	 */
+	private static final int COMPRESSION_RATIO = 3;
+
+	/**
+	 * A shard: one or more intervals in coordinate order, and the estimated
+	 * work to walk them.
+	 */
+	public static class Shard {
+
+		private final List<Interval> intervals = new ArrayList<Interval>();
+		private long work = 0;
+		private final String tile;
+
+		private Shard() {
+			this(null);
+		}
+
+		/**
+		 * @param tile The shard's cell on the fixed grid (see planTiles())
+		 */
+		private Shard(String tile) {
+			this.tile = tile;
+		}
+
+		/**
+		 * Add a tile, merging it with the last interval if they're
+		 * contiguous.
+		 *
+		 * @param tile
+		 * @param tileWork
+		 */
+		private void add(Interval tile, long tileWork) {
+			Interval last = intervals.isEmpty() ? null : intervals.get(intervals.size() - 1);
+			if(null != last && last.getContig().equals(tile.getContig())
+					&& last.getEnd() + 1 == tile.getStart()) {
+				intervals.set(intervals.size() - 1,
+						new Interval(tile.getContig(), last.getStart(), tile.getEnd()));
+			}
+			else {
+				intervals.add(tile);
+			}
+			work += tileWork;
+		}
+
+		/**
+		 * @return the estimated work (roughly, compressed bytes of
+		 * alignments)
+		 */
+		public long getWork() {
+			return work;
+		}
+
+		/**
+		 * @return the shard's cell on the fixed grid, as <contig>:<tile
+		 * number>, for shards from planTiles() (null otherwise)
+		 */
+		public String getTile() {
+			return tile;
+		}
+
+		/**
+		 * @return the intervals, formatted as <contig>:<start>-<end>
+		 * (1-based, inclusive), as --interval-list takes them
+		 */
+		public List<String> getIntervalStrings() {
+			List<String> strings = new ArrayList<String>();
+			for(Interval interval : intervals) {
+				strings.add(interval.getContig() + ":" + interval.getStart() + "-" + interval.getEnd());
+			}
+			return strings;
+		}
+	}
+
+	private final File samFile, hgRef;
+	private final List<String> intervalStringList;
+
+	/**
+	 *
+	 * @param samFile Must be indexed
+	 * @param hgRef
+	 * @param intervalStringList null to shard every sequence in the
+	 * SAM/BAM header that is also in the reference
+	 */
+	public ShardPlanner(File samFile, File hgRef, List<String> intervalStringList) {
+		this.samFile = samFile;
+		this.hgRef = hgRef;
+		this.intervalStringList = intervalStringList;
+	}
+
+	/**
+	 * Cut the genome into (at most) nShards shards of roughly equal work.
+	 * Shards are returned in coordinate order.
+	 *
+	 * @param nShards
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Shard> plan(int nShards) throws IOException {
+
+		SamReader reader = DarkRegionFinder.openSam(samFile, hgRef);
+		try {
+			if(!reader.hasIndex()) {
+				throw new IOException("Sharding requires an indexed SAM/BAM/CRAM"
+						+ " file. Index the file before proceeding.");
+			}
+			SAMFileHeader header = reader.getFileHeader();
+
+			/* Cut the ranges into tiles and estimate the work for each */
+			List<Interval> tiles = new ArrayList<Interval>();
+			List<Long> tileWork = new ArrayList<Long>();
+			BAMIndex index = reader.indexing().getIndex();
+			long totalWork = 0, work;
+			int start, end;
+			for(Interval range : getRanges(header)) {
+				start = range.getStart();
+				while(start <= range.getEnd()) {
+					end = (int) Math.min(range.getEnd(), (long) start + TILE_SIZE - 1);
+					work = estimateWork(index, header.getSequenceIndex(range.getContig()), start, end);
+					tiles.add(new Interval(range.getContig(), start, end));
+					tileWork.add(work);
+					totalWork += work;
+					start = end + 1;
+				}
+			}
+
+			/*
+			 * Close a shard once the work so far reaches the next multiple of
+			 * the average, so rounding doesn't accumulate from shard to shard.
+			 */
+			List<Shard> shards = new ArrayList<Shard>();
+			Shard shard = new Shard();
+			long cumulativeWork = 0;
+			for(int i = 0; i < tiles.size(); i++) {
+				shard.add(tiles.get(i), tileWork.get(i));
+				cumulativeWork += tileWork.get(i);
+				if(cumulativeWork * nShards >= (shards.size() + 1) * totalWork
+						&& i < tiles.size() - 1) {
+					shards.add(shard);
+					shard = new Shard();
+				}
+			}
+			if(!shard.intervals.isEmpty()) {
+				shards.add(shard);
+			}
+
+			logger.info("Planned " + shards.size() + " shards from " + tiles.size()
+					+ " tiles (estimated work " + totalWork + ")");
+			return shards;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Cut the genome (or the user's intervals) on a fixed grid of tiles,
+	 * one shard per tile. Unlike plan(), where a shard's boundaries depend
+	 * on the work estimated for the whole file, these shards stay put when
+	 * the alignments change, so a shard can be matched with the same shard
+	 * of an earlier run (see RunManifest). Shards are returned in
+	 * coordinate order.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Shard> planTiles() throws IOException {
+
+		SamReader reader = DarkRegionFinder.openSam(samFile, hgRef);
+		try {
+			if(!reader.hasIndex()) {
+				throw new IOException("Sharding requires an indexed SAM/BAM/CRAM"
+						+ " file. Index the file before proceeding.");
+			}
+			SAMFileHeader header = reader.getFileHeader();
+			BAMIndex index = reader.indexing().getIndex();
+
+			List<Shard> shards = new ArrayList<Shard>();
+			Shard shard = null;
+			String tile;
+			long tileIndex;
+			int start, end, sequenceIndex;
+			for(Interval range : getRanges(header)) {
+				sequenceIndex = header.getSequenceIndex(range.getContig());
+				start = range.getStart();
+				while(start <= range.getEnd()) {
+					tileIndex = (start - 1) / TILE_SIZE;
+					end = (int) Math.min(range.getEnd(), (tileIndex + 1) * TILE_SIZE);
+					tile = range.getContig() + ":" + tileIndex;
+					if(null == shard || !tile.equals(shard.tile)) {
+						shard = new Shard(tile);
+						shards.add(shard);
+					}
+					shard.add(new Interval(range.getContig(), start, end),
+							estimateWork(index, sequenceIndex, start, end));
+					start = end + 1;
+				}
+			}
+
+			logger.info("Planned " + shards.size() + " shards on a " + TILE_SIZE + " bp grid");
+			return shards;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * The user's intervals (merged, as DarkRegionFinder walks them, so
+	 * overlapping intervals aren't walked twice), or every sequence in the
+	 * header that is also in the reference.
+	 *
+	 * @param header
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Interval> getRanges(SAMFileHeader header) throws IOException {
+		if(null != intervalStringList) {
+			return DarkRegionFinder.generateIntervalList(intervalStringList, header).uniqued().getIntervals();
+		}
+
+		IndexedFastaSequenceFile refReader = new IndexedFastaSequenceFile(hgRef);
+		SAMSequenceDictionary hgRefDictionary = refReader.getSequenceDictionary();
+		refReader.close();
+		if(null == hgRefDictionary) {
+			throw new IOException("The reference provided does not have a dictionary (.dict) file. Generate"
+					+ " the dictionary before proceeding.");
+		}
+		return DarkRegionFinder.generateReferenceIntervalList(header, hgRefDictionary).getIntervals();
+	}
+
+	/**
+	 * Estimate the work to walk [start, end] from the size of the file
+	 * span the index gives for it.
+	 *
+	 * @param index
+	 * @param sequenceIndex
+	 * @param start 1-based
+	 * @param end 1-based, inclusive
+	 * @return
+	 */
+	private static long estimateWork(BAMIndex index, int sequenceIndex, int start, int end) {
+		long work = (end - start + 1) / BASES_PER_WORK_UNIT;
+		if(sequenceIndex < 0) {
+			return work;
+		}
+
+		BAMFileSpan span = index.getSpanOverlapping(sequenceIndex, start, end);
+		if(null == span) {
+			return work;
+		}
+		long startBlock, endBlock;
+		for(Chunk chunk : span.getChunks()) {
+			startBlock = BlockCompressedFilePointerUtil.getBlockAddress(chunk.getChunkStart());
+			endBlock = BlockCompressedFilePointerUtil.getBlockAddress(chunk.getChunkEnd());
+			if(endBlock > startBlock) {
+				work += endBlock - startBlock;
+			}
+			else {
+				work += (BlockCompressedFilePointerUtil.getBlockOffset(chunk.getChunkEnd())
+						- BlockCompressedFilePointerUtil.getBlockOffset(chunk.getChunkStart()))
+						/ COMPRESSION_RATIO;
+			}
+		}
+		return work;
+	}
+
+	/**
+	 * Write the shards for cluster submission, one per line: the shard
+	 * number, its estimated work, and its intervals separated by spaces
+	 * (to pass to --interval-list).
+	 *
+	 * @param shards
+	 * @param manifest
+	 * @throws IOException
+	 */
+	public static void writeManifest(List<Shard> shards, File manifest) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(manifest));
+		try {
+			writer.write("#shard\testimated_work\tintervals\n");
+			for(int i = 0; i < shards.size(); i++) {
+				writer.write(i + "\t" + shards.get(i).getWork() + "\t"
+						+ String.join(" ", shards.get(i).getIntervalStrings()) + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
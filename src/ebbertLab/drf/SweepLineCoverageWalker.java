@@ -0,0 +1,784 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+
+/**
+ * A read-centric alternative to SamLocusIterator. Each SAMRecord is visited
+ * once and its CIGAR is turned into start/end events in primitive difference
+ * arrays over a sliding window. Because reads arrive sorted by alignment
+ * start, every position before the current read's start is final and can be
+ * emitted with a running sum. Nothing is allocated per read or per locus.
+ *
+ * The window has a fixed size. Events further ahead (e.g., the ends of
+ * long reads) wait in a heap until the window reaches them, so memory is
+ * bounded by the number of pending events rather than by read length. A
+ * read's CIGAR is first collapsed into intervals (aligned bases across
+ * insertions and clips, deletions, and the whole span between 'N' skips),
+ * so a long read with thousands of small indels adds only a few events
+ * per deletion.
+ *
+ * The counts emitted match what DarkRegionFinder derives from a
+ * SamLocusIterator with indels included and a base quality cutoff of 0:
+ * depth excluding indels (M/=/X bases), reads with a deletion at the
+ * position, and reads (aligned or deleted) with MAPQ ≤ the threshold.
+ * Every locus is emitted, including uncovered ones, in the same order as
+ * SamLocusIterator. Stretches with no coverage at all (i.e., between reads)
+ * are emitted as a single run, so time spent on sparse data scales with
+ * the number of reads rather than the length of the genome.
+ *
+ * @author markebbert
+ *
+ */
+public class SweepLineCoverageWalker {
+
+	/**
+	 * Receives the counts for each locus, in coordinate order.
+	 */
+	interface LocusCountHandler {
+
+		/**
+		 * @param contig
+		 * @param position 1-based
+		 * @param depthExcludingIndels
+		 * @param nDeletedInRecord
+		 * @param nMapQBelowThreshold
+		 * @throws IOException
+		 */
+		void handleLocus(String contig, int position, int depthExcludingIndels,
+				int nDeletedInRecord, int nMapQBelowThreshold) throws IOException;
+
+		/**
+		 * Called instead of handleLocus for a run of incomplete loci when an
+		 * incomplete-region index is in use. A single run may be passed in
+		 * several contiguous pieces.
+		 * 
+		 * @param contig
+		 * @param start 1-based
+		 * @param end 1-based, inclusive
+		 * @throws IOException
+		 */
+		void handleIncompleteRun(String contig, int start, int end) throws IOException;
+
+		/**
+		 * Called instead of handleLocus for a run of loci with no reads at
+		 * all (i.e., every count is 0). A single gap may be passed in
+		 * several contiguous pieces.
+		 *
+		 * @param contig
+		 * @param start 1-based
+		 * @param end 1-based, inclusive
+		 * @throws IOException
+		 */
+		void handleUncoveredRun(String contig, int start, int end) throws IOException;
+	}
+
+	private static final int DEFAULT_WINDOW_SIZE = 1 << 16;
+	private static final CigarOperator[] OPERATORS = CigarOperator.values();
+
+	/* The counts events apply to; MAPQ bin b is MAPQ_BIN + b */
+	private static final int DEPTH = 0, DELETED = 1, LOW_MAPQ = 2, MAPQ_BIN = 3;
+
+	private final SamReader samReader;
+	private final SAMSequenceDictionary dictionary;
+	private final IntervalList intervalList;
+	private final SamRecordFilter filter;
+	private final int mapQThreshold;
+	private int maxReadsPerLocus;
+
+	/*
+	 * Difference arrays, indexed by (position & mask). An entry holds the
+	 * change in count when moving from position - 1 to position.
+	 */
+	private int[] depthDiff, deletedDiff, lowMapQDiff;
+	private int mask;
+
+	/* Running counts at position (cursor - 1) */
+	private int depth, deleted, lowMapQ;
+
+	/*
+	 * Events beyond the window, as a binary min-heap of
+	 * (position << 8 | count << 1 | 1 if a decrement), moved into the
+	 * window as the cursor comes within a window of them.
+	 */
+	private long[] farEvents = new long[256];
+	private int nFarEvents;
+
+	/*
+	 * Optionally, difference arrays and running counts for each MAPQ bin
+	 * (see CoverageTrackWriter), indexed by [bin][position & mask].
+	 */
+	private int[][] mapQBinDiffs;
+	private int[] mapQBins;
+
+	/* The next position to emit and the last position to emit */
+	private int cursor, limit;
+
+	/*
+	 * The last position holding a pending event. Past it, every count is 0
+	 * until the next read is added.
+	 */
+	private int lastEvent;
+
+	/*
+	 * Incomplete runs to skip over, and the next run at or after the cursor
+	 * on the current contig (Integer.MAX_VALUE if none).
+	 */
+	private ReferenceNRunIndex nRunIndex;
+	private int nextRunStart = Integer.MAX_VALUE, nextRunEnd = Integer.MAX_VALUE;
+
+	/* A record's CIGAR, packed as in ReadDecoder */
+	private int[] cigarScratch = new int[16];
+
+	/* Decode reads on a separate thread (see setPipelined()) */
+	private boolean pipelined = false;
+
+	/**
+	 *
+	 * @param samReader
+	 * @param intervalList The intervals to walk, or null to walk every
+	 * sequence in the header
+	 * @param samFilters Records matching any of these filters are skipped
+	 * @param mapQThreshold
+	 * @param maxReadsPerLocus Mimics SamLocusIterator's
+	 * setMaxReadsToAccumulatePerLocus; a read is skipped if this many reads
+	 * already have a base at its alignment start. Use Integer.MAX_VALUE for
+	 * no cap.
+	 */
+	public SweepLineCoverageWalker(SamReader samReader, IntervalList intervalList,
+			List<SamRecordFilter> samFilters, int mapQThreshold, int maxReadsPerLocus) {
+		this(samReader, intervalList, samFilters, mapQThreshold, maxReadsPerLocus,
+				DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param samReader
+	 * @param intervalList
+	 * @param samFilters
+	 * @param mapQThreshold
+	 * @param maxReadsPerLocus
+	 * @param windowSize The window size (a power of 2). Events further
+	 * ahead are held in a heap until the window reaches them.
+	 */
+	SweepLineCoverageWalker(SamReader samReader, IntervalList intervalList,
+			List<SamRecordFilter> samFilters, int mapQThreshold, int maxReadsPerLocus,
+			int windowSize) {
+		this.samReader = samReader;
+		this.dictionary = samReader.getFileHeader().getSequenceDictionary();
+		this.intervalList = intervalList;
+		this.filter = new AggregateFilter(samFilters);
+		this.mapQThreshold = mapQThreshold;
+		this.maxReadsPerLocus = maxReadsPerLocus;
+
+		this.depthDiff = new int[windowSize];
+		this.deletedDiff = new int[windowSize];
+		this.lowMapQDiff = new int[windowSize];
+		this.mask = windowSize - 1;
+	}
+
+	/**
+	 * Skip the runs in this index, passing them to
+	 * LocusCountHandler.handleIncompleteRun rather than computing coverage
+	 * for each locus.
+	 * 
+	 * @param nRunIndex
+	 */
+	public void setNRunIndex(ReferenceNRunIndex nRunIndex) {
+		this.nRunIndex = nRunIndex;
+	}
+
+	/**
+	 * Change the cap on reads per locus (see the constructor). Use
+	 * Integer.MAX_VALUE to count every read at every locus; the walker only
+	 * keeps per-position counters, so memory doesn't grow with depth.
+	 * 
+	 * @param maxReadsPerLocus
+	 */
+	public void setMaxReadsPerLocus(int maxReadsPerLocus) {
+		this.maxReadsPerLocus = maxReadsPerLocus;
+	}
+
+	/**
+	 * Read and decode records on a separate thread (see ReadDecoder), so
+	 * inflating and decoding overlap with counting. The counts are the
+	 * same either way.
+	 * 
+	 * @param pipelined
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * Also count reads (aligned or deleted) in each of CoverageTrackWriter's
+	 * MAPQ bins. The counts for a locus are available from getMapQBins()
+	 * while it is passed to LocusCountHandler.handleLocus().
+	 */
+	public void setCountMapQBins() {
+		this.mapQBinDiffs = new int[CoverageTrackWriter.N_MAPQ_BINS][depthDiff.length];
+		this.mapQBins = new int[CoverageTrackWriter.N_MAPQ_BINS];
+	}
+
+	/**
+	 * @return the number of reads in each MAPQ bin at the current locus (see
+	 * setCountMapQBins()), or null if they're not being counted
+	 */
+	public int[] getMapQBins() {
+		return mapQBins;
+	}
+
+	/**
+	 * Walk every locus and pass its counts to the handler.
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void walk(LocusCountHandler handler) throws IOException {
+		if(pipelined) {
+			walkPipelined(handler);
+		}
+		else if(null != intervalList && intervalList.size() > 0) {
+			walkIntervals(handler);
+		}
+		else {
+			walkGenome(handler);
+		}
+	}
+
+	/**
+	 * Walk the whole file sequentially, emitting every position of every
+	 * sequence in the header.
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	private void walkGenome(LocusCountHandler handler) throws IOException {
+
+		int currentIndex = -1, refIndex;
+		SAMRecord rec;
+		SAMRecordIterator it = samReader.iterator();
+		try {
+			while(it.hasNext()) {
+				rec = it.next();
+
+				/* Unplaced reads are sorted last, so we're done */
+				refIndex = rec.getReferenceIndex();
+				if(refIndex < 0) {
+					break;
+				}
+				if(rec.getReadUnmappedFlag() || filter.filterOut(rec)) {
+					continue;
+				}
+
+				/* Finish the current sequence and any with no reads */
+				while(currentIndex < refIndex) {
+					if(currentIndex >= 0) {
+						emitThrough(handler, dictionary.getSequence(currentIndex).getSequenceName(), limit);
+					}
+					currentIndex++;
+					startRange(dictionary.getSequence(currentIndex).getSequenceName(), 1,
+							dictionary.getSequence(currentIndex).getSequenceLength());
+				}
+
+				addRecord(handler, dictionary.getSequence(refIndex).getSequenceName(), rec);
+			}
+		} finally {
+			it.close();
+		}
+
+		/* Finish the current sequence and every sequence after it */
+		if(currentIndex >= 0) {
+			emitThrough(handler, dictionary.getSequence(currentIndex).getSequenceName(), limit);
+		}
+		for(int i = currentIndex + 1; i < dictionary.size(); i++) {
+			startRange(dictionary.getSequence(i).getSequenceName(), 1,
+					dictionary.getSequence(i).getSequenceLength());
+			emitThrough(handler, dictionary.getSequence(i).getSequenceName(), limit);
+		}
+	}
+
+	/**
+	 * Walk each interval (sorted and merged, as SamLocusIterator does)
+	 * using the index, emitting every position in the interval.
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	private void walkIntervals(LocusCountHandler handler) throws IOException {
+
+		SAMRecord rec;
+		SAMRecordIterator it;
+		SAMSequenceRecord seq;
+		String contig;
+		for(Interval interval : intervalList.uniqued().getIntervals()) {
+			contig = interval.getContig();
+			seq = dictionary.getSequence(contig);
+			startRange(contig, interval.getStart(), null == seq ? interval.getEnd()
+					: Math.min(interval.getEnd(), seq.getSequenceLength()));
+
+			it = samReader.queryOverlapping(contig, interval.getStart(), interval.getEnd());
+			try {
+				while(it.hasNext()) {
+					rec = it.next();
+					if(rec.getReadUnmappedFlag() || filter.filterOut(rec)) {
+						continue;
+					}
+					addRecord(handler, contig, rec);
+				}
+			} finally {
+				it.close();
+			}
+
+			emitThrough(handler, contig, limit);
+		}
+	}
+
+	/**
+	 * Walk with a ReadDecoder feeding decoded reads from another thread.
+	 * Each segment (an interval, or a whole sequence) is walked as
+	 * walkIntervals() or walkGenome() would walk it.
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	private void walkPipelined(LocusCountHandler handler) throws IOException {
+
+		/* The segments the decoder tags reads with */
+		List<Interval> segments = new ArrayList<Interval>();
+		boolean byInterval = null != intervalList && intervalList.size() > 0;
+		if(byInterval) {
+			SAMSequenceRecord seq;
+			for(Interval interval : intervalList.uniqued().getIntervals()) {
+				seq = dictionary.getSequence(interval.getContig());
+				segments.add(new Interval(interval.getContig(), interval.getStart(), null == seq
+						? interval.getEnd() : Math.min(interval.getEnd(), seq.getSequenceLength())));
+			}
+		}
+		else {
+			for(SAMSequenceRecord seq : dictionary.getSequences()) {
+				segments.add(new Interval(seq.getSequenceName(), 1, seq.getSequenceLength()));
+			}
+		}
+
+		ReadDecoder decoder = new ReadDecoder(samReader,
+				byInterval ? intervalList.uniqued().getIntervals() : null, filter);
+		decoder.start();
+		try {
+			int current = -1;
+			ReadDecoder.Batch batch;
+			boolean last;
+			do {
+				batch = decoder.take();
+				for(int r = 0; r < batch.size; r++) {
+
+					/* Finish the current segment and any with no reads */
+					while(current < batch.segment[r]) {
+						if(current >= 0) {
+							emitThrough(handler, segments.get(current).getContig(), limit);
+						}
+						current++;
+						startRange(segments.get(current).getContig(), segments.get(current).getStart(),
+								segments.get(current).getEnd());
+					}
+					addRead(handler, segments.get(current).getContig(), batch.start[r], batch.end[r],
+							batch.mapQ[r], batch.cigar, batch.cigarStart(r), batch.cigarEnd[r]);
+				}
+				last = batch.last;
+				decoder.recycle(batch);
+			} while(!last);
+
+			/* Finish the current segment and every segment after it */
+			if(current >= 0) {
+				emitThrough(handler, segments.get(current).getContig(), limit);
+			}
+			for(int i = current + 1; i < segments.size(); i++) {
+				startRange(segments.get(i).getContig(), segments.get(i).getStart(),
+						segments.get(i).getEnd());
+				emitThrough(handler, segments.get(i).getContig(), limit);
+			}
+		} finally {
+			decoder.close();
+		}
+	}
+
+	/**
+	 * Add a record to the current range unless it's unmapped or filtered
+	 * out. For callers that feed records themselves rather than calling
+	 * walk() (see CohortDarkRegionFinder). Records must be added in
+	 * alignment start order after startRange().
+	 *
+	 * @param handler
+	 * @param contig
+	 * @param rec
+	 * @throws IOException
+	 */
+	void addRecordIfPassing(LocusCountHandler handler, String contig,
+			SAMRecord rec) throws IOException {
+		if(rec.getReadUnmappedFlag() || filter.filterOut(rec)) {
+			return;
+		}
+		addRecord(handler, contig, rec);
+	}
+
+	/**
+	 * Reset the window to start emitting at 'start' and stop at 'end'.
+	 *
+	 * @param contig
+	 * @param start
+	 * @param end
+	 */
+	void startRange(String contig, int start, int end) {
+		Arrays.fill(depthDiff, 0);
+		Arrays.fill(deletedDiff, 0);
+		Arrays.fill(lowMapQDiff, 0);
+		depth = deleted = lowMapQ = 0;
+		if(null != mapQBins) {
+			for(int bin = 0; bin < mapQBins.length; bin++) {
+				Arrays.fill(mapQBinDiffs[bin], 0);
+			}
+			Arrays.fill(mapQBins, 0);
+		}
+		nFarEvents = 0;
+		lastEvent = 0;
+		cursor = start;
+		limit = end;
+		findNextRun(contig);
+	}
+
+	/**
+	 * Find the first incomplete run that ends at or after the cursor.
+	 *
+	 * @param contig
+	 */
+	private void findNextRun(String contig) {
+		nextRunStart = nextRunEnd = Integer.MAX_VALUE;
+		if(null == nRunIndex) {
+			return;
+		}
+		int idx = nRunIndex.findRun(contig, cursor);
+		if(idx < 0) {
+			idx = -idx - 1;
+		}
+		if(idx < nRunIndex.getRunCount(contig)) {
+			nextRunStart = nRunIndex.getRunStart(contig, idx);
+			nextRunEnd = nRunIndex.getRunEnd(contig, idx);
+		}
+	}
+
+	/**
+	 * Emit every position before the record's start (they can no longer
+	 * change), then add the record's CIGAR events to the window.
+	 *
+	 * @param handler
+	 * @param contig
+	 * @param rec
+	 * @throws IOException
+	 */
+	private void addRecord(LocusCountHandler handler, String contig,
+			SAMRecord rec) throws IOException {
+		List<CigarElement> elements = rec.getCigar().getCigarElements();
+		if(elements.size() > cigarScratch.length) {
+			cigarScratch = new int[elements.size()];
+		}
+		for(int i = 0; i < elements.size(); i++) {
+			cigarScratch[i] = elements.get(i).getLength() << 4 | elements.get(i).getOperator().ordinal();
+		}
+		addRead(handler, contig, rec.getAlignmentStart(), rec.getAlignmentEnd(),
+				rec.getMappingQuality(), cigarScratch, 0, elements.size());
+	}
+
+	/**
+	 * Add a read given as primitives (see ReadDecoder).
+	 *
+	 * @param handler
+	 * @param contig
+	 * @param start The alignment start
+	 * @param end The alignment end
+	 * @param mapQ
+	 * @param cigar Packed as (length << 4 | operator ordinal)
+	 * @param from The read's first CIGAR element in 'cigar'
+	 * @param to One past the read's last CIGAR element
+	 * @throws IOException
+	 */
+	private void addRead(LocusCountHandler handler, String contig, int start, int end,
+			int mapQ, int[] cigar, int from, int to) throws IOException {
+
+		int refPos = start;
+		emitThrough(handler, contig, Math.min(refPos - 1, limit));
+
+		/* SamLocusIterator stops accumulating once a locus is saturated */
+		if(maxReadsPerLocus != Integer.MAX_VALUE && refPos == cursor
+				&& depth + depthDiff[refPos & mask] >= maxReadsPerLocus) {
+			return;
+		}
+
+		boolean lowMapQRead = mapQ <= mapQThreshold;
+		int bin = null == mapQBins ? -1 : CoverageTrackWriter.getMapQBin(mapQ);
+
+		/*
+		 * Collapse the CIGAR into intervals: aligned bases (joined across
+		 * insertions and clips), deletions, and the span of aligned or
+		 * deleted bases (joined across both, for the MAPQ counts). Each
+		 * interval is open while its start is ≥ 0.
+		 */
+		int alignedStart = -1, deletedStart = -1, spanStart = -1;
+		int len;
+		CigarOperator op;
+		for(int i = from; i < to; i++) {
+			op = OPERATORS[cigar[i] & 0xF];
+			len = cigar[i] >>> 4;
+			if(op == CigarOperator.M || op == CigarOperator.EQ || op == CigarOperator.X) {
+				if(deletedStart >= 0) {
+					addEvent(DELETED, deletedStart, refPos);
+					deletedStart = -1;
+				}
+				if(alignedStart < 0) {
+					alignedStart = refPos;
+				}
+				if(spanStart < 0) {
+					spanStart = refPos;
+				}
+			}
+			else if(op == CigarOperator.D) {
+				if(alignedStart >= 0) {
+					addEvent(DEPTH, alignedStart, refPos);
+					alignedStart = -1;
+				}
+				if(deletedStart < 0) {
+					deletedStart = refPos;
+				}
+				if(spanStart < 0) {
+					spanStart = refPos;
+				}
+			}
+			else if(op.consumesReferenceBases()) {
+
+				/* A skip ('N') ends every interval */
+				alignedStart = endInterval(DEPTH, alignedStart, refPos);
+				deletedStart = endInterval(DELETED, deletedStart, refPos);
+				spanStart = endSpan(spanStart, refPos, lowMapQRead, bin);
+			}
+			if(op.consumesReferenceBases()) {
+				refPos += len;
+			}
+		}
+		endInterval(DEPTH, alignedStart, refPos);
+		endInterval(DELETED, deletedStart, refPos);
+		endSpan(spanStart, refPos, lowMapQRead, bin);
+	}
+
+	/**
+	 * Add an interval if it's open.
+	 *
+	 * @param count
+	 * @param start The interval's start, or < 0 if none is open
+	 * @param end exclusive
+	 * @return -1 (i.e., no interval is open)
+	 */
+	private int endInterval(int count, int start, int end) {
+		if(start >= 0) {
+			addEvent(count, start, end);
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a span of aligned or deleted bases to the MAPQ counts, if one is
+	 * open.
+	 *
+	 * @param start The span's start, or < 0 if none is open
+	 * @param end exclusive
+	 * @param lowMapQRead
+	 * @param bin The read's MAPQ bin, or -1 if they're not counted
+	 * @return -1 (i.e., no span is open)
+	 */
+	private int endSpan(int start, int end, boolean lowMapQRead, int bin) {
+		if(start >= 0) {
+			if(lowMapQRead) {
+				addEvent(LOW_MAPQ, start, end);
+			}
+			if(bin >= 0) {
+				addEvent(MAPQ_BIN + bin, start, end);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add one to the count over [start, end), ignoring anything outside the
+	 * positions still to be emitted.
+	 *
+	 * @param count DEPTH, DELETED, LOW_MAPQ, or MAPQ_BIN + bin
+	 * @param start
+	 * @param end exclusive
+	 */
+	private void addEvent(int count, int start, int end) {
+		start = Math.max(start, cursor);
+		end = Math.min(end, limit + 1);
+		if(start >= end) {
+			return;
+		}
+		addPoint(count, start, false);
+		addPoint(count, end, true);
+		lastEvent = Math.max(lastEvent, end);
+	}
+
+	/**
+	 * Add a change in a count at a position, in the window if it's within a
+	 * window of the cursor, otherwise in the heap.
+	 *
+	 * @param count
+	 * @param position ≥ cursor
+	 * @param decrement
+	 */
+	private void addPoint(int count, int position, boolean decrement) {
+		if(position - cursor <= mask) {
+			getDiff(count)[position & mask] += decrement ? -1 : 1;
+			return;
+		}
+		pushFarEvent((long) position << 8 | count << 1 | (decrement ? 1 : 0));
+	}
+
+	/**
+	 * @param count
+	 * @return the difference array for the count
+	 */
+	private int[] getDiff(int count) {
+		switch(count) {
+		case DEPTH:
+			return depthDiff;
+		case DELETED:
+			return deletedDiff;
+		case LOW_MAPQ:
+			return lowMapQDiff;
+		default:
+			return mapQBinDiffs[count - MAPQ_BIN];
+		}
+	}
+
+	/**
+	 * Emit positions from the cursor through 'end' (inclusive).
+	 *
+	 * @param handler
+	 * @param contig
+	 * @param end
+	 * @throws IOException
+	 */
+	void emitThrough(LocusCountHandler handler, String contig,
+			int end) throws IOException {
+		int runEnd;
+		boolean uncovered;
+		while(cursor <= end) {
+
+			/* Every event has been applied, so the counts are all 0 */
+			uncovered = cursor > lastEvent;
+
+			/* Skip over an incomplete run, only keeping the sums current */
+			if(cursor >= nextRunStart) {
+				runEnd = Math.min(end, nextRunEnd);
+				handler.handleIncompleteRun(contig, cursor, runEnd);
+				if(uncovered) {
+					cursor = runEnd + 1;
+				}
+				for(; cursor <= runEnd; cursor++) {
+					applyEvents();
+				}
+				if(cursor > nextRunEnd) {
+					findNextRun(contig);
+				}
+				continue;
+			}
+
+			/* Fast-forward to the next read (or incomplete run) */
+			if(uncovered) {
+				runEnd = (int) Math.min(end, nextRunStart - 1L);
+				handler.handleUncoveredRun(contig, cursor, runEnd);
+				cursor = runEnd + 1;
+				continue;
+			}
+
+			applyEvents();
+			handler.handleLocus(contig, cursor, depth, deleted, lowMapQ);
+			cursor++;
+		}
+	}
+
+	/**
+	 * Apply the events at the cursor to the running counts, and clear its
+	 * slot in the window for the position a window ahead (moving in any
+	 * events from the heap that are now within the window).
+	 */
+	private void applyEvents() {
+		int idx = cursor & mask;
+		depth += depthDiff[idx];
+		deleted += deletedDiff[idx];
+		lowMapQ += lowMapQDiff[idx];
+		depthDiff[idx] = deletedDiff[idx] = lowMapQDiff[idx] = 0;
+		if(null != mapQBins) {
+			for(int bin = 0; bin < mapQBins.length; bin++) {
+				mapQBins[bin] += mapQBinDiffs[bin][idx];
+				mapQBinDiffs[bin][idx] = 0;
+			}
+		}
+
+		long event;
+		while(nFarEvents > 0 && (farEvents[0] >>> 8) <= (long) cursor + mask + 1) {
+			event = popFarEvent();
+			getDiff((int) (event >>> 1) & 0x7F)[(int) (event >>> 8) & mask] += (event & 1) == 0 ? 1 : -1;
+		}
+	}
+
+	/**
+	 * @param event
+	 */
+	private void pushFarEvent(long event) {
+		if(nFarEvents == farEvents.length) {
+			farEvents = Arrays.copyOf(farEvents, nFarEvents * 2);
+		}
+		int i = nFarEvents++, parent;
+		while(i > 0 && farEvents[parent = (i - 1) >>> 1] > event) {
+			farEvents[i] = farEvents[parent];
+			i = parent;
+		}
+		farEvents[i] = event;
+	}
+
+	/**
+	 * @return the earliest event in the heap, removing it
+	 */
+	private long popFarEvent() {
+		long first = farEvents[0];
+		long last = farEvents[--nFarEvents];
+		int i = 0, child;
+		while((child = 2 * i + 1) < nFarEvents) {
+			if(child + 1 < nFarEvents && farEvents[child + 1] < farEvents[child]) {
+				child++;
+			}
+			if(farEvents[child] >= last) {
+				break;
+			}
+			farEvents[i] = farEvents[child];
+			i = child;
+		}
+		farEvents[i] = last;
+		return first;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package ebbertLab.drf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One combination of dark-region thresholds for --config-grid. Every
+ * combination is evaluated against the same traversal, each with its own
+ * regions and output files (see DarkRegionFinder.addThresholdConfig()).
+ *
+ * @author markebbert
+ *
+ */
+public class ThresholdConfig {
+
+	private static final String DEV_NULL = "/dev/null";
+
+	final int mapQThreshold, minMapQMass, minRegionSize, minDepth;
+
+	/**
+	 *
+	 * @param mapQThreshold Must be one of CoverageTrackWriter's MAPQ bin edges
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 */
+	public ThresholdConfig(int mapQThreshold, int minMapQMass, int minRegionSize, int minDepth) {
+		this.mapQThreshold = mapQThreshold;
+		this.minMapQMass = minMapQMass;
+		this.minRegionSize = minRegionSize;
+		this.minDepth = minDepth;
+	}
+
+	/**
+	 * @return a name for this combination that is safe to use in a file
+	 * name (e.g., 't9_m90_s1_d5')
+	 */
+	public String getName() {
+		return "t" + mapQThreshold + "_m" + minMapQMass + "_s" + minRegionSize + "_d" + minDepth;
+	}
+
+	/**
+	 * Get the output file for this combination by adding its name before
+	 * the BED file's extension (e.g., low_coverage.dark.bed.gz becomes
+	 * low_coverage.dark.t9_m90_s1_d5.bed.gz). /dev/null stays /dev/null.
+	 *
+	 * @param bed
+	 * @return
+	 */
+	public File getOutputFile(File bed) {
+		String path = bed.getPath();
+		if(path.startsWith(DEV_NULL)) {
+			return bed;
+		}
+
+		String gz = path.endsWith(".gz") ? ".gz" : "";
+		path = path.substring(0, path.length() - gz.length());
+		int extensionIndex = path.lastIndexOf('.');
+		if(extensionIndex <= path.lastIndexOf(File.separatorChar) + 1) {
+			return new File(path + "." + getName() + gz);
+		}
+		return new File(path.substring(0, extensionIndex) + "." + getName()
+				+ path.substring(extensionIndex) + gz);
+	}
+
+	/**
+	 * Expand a grid of thresholds into every combination. Each spec is
+	 * KEY=VALUE[,VALUE...] where KEY is the short option of the threshold:
+	 * 't' (--mapq-threshold), 'm' (--min-mapq-mass), 's'
+	 * (--min-region-size), or 'd' (--min-depth). Thresholds without a spec
+	 * take the given default.
+	 *
+	 * @param specs
+	 * @param mapQThreshold
+	 * @param minMapQMass
+	 * @param minRegionSize
+	 * @param minDepth
+	 * @return
+	 * @throws IOException if a spec can't be parsed, or a MAPQ threshold
+	 * isn't one of CoverageTrackWriter's MAPQ bin edges
+	 */
+	public static List<ThresholdConfig> parseGrid(List<String> specs, int mapQThreshold,
+			int minMapQMass, int minRegionSize, int minDepth) throws IOException {
+
+		int[] mapQThresholds = {mapQThreshold}, minMapQMasses = {minMapQMass},
+				minRegionSizes = {minRegionSize}, minDepths = {minDepth};
+		String key;
+		int[] values;
+		for(String spec : specs) {
+			int eq = spec.indexOf('=');
+			if(eq < 0) {
+				throw new IOException("Could not parse --config-grid '" + spec
+						+ "'. Expected KEY=VALUE[,VALUE...].");
+			}
+			key = spec.substring(0, eq);
+			values = parseValues(spec, spec.substring(eq + 1));
+			if("t".equals(key)) {
+				mapQThresholds = values;
+			}
+			else if("m".equals(key)) {
+				minMapQMasses = values;
+			}
+			else if("s".equals(key)) {
+				minRegionSizes = values;
+			}
+			else if("d".equals(key)) {
+				minDepths = values;
+			}
+			else {
+				throw new IOException("Unknown --config-grid threshold '" + key
+						+ "'. Use 't', 'm', 's', or 'd'.");
+			}
+		}
+
+		/*
+		 * The grid shares one histogram of MAPQs per locus, so each MAPQ
+		 * threshold has to fall on one of its bin edges.
+		 */
+		for(int t : mapQThresholds) {
+			if(CoverageTrackWriter.getThresholdBin(t) < 0) {
+				throw new IOException("--config-grid MAPQ thresholds must be one of "
+						+ CoverageTrackWriter.getMapQBinEdges() + " (got " + t + ").");
+			}
+		}
+
+		List<ThresholdConfig> configs = new ArrayList<ThresholdConfig>();
+		for(int t : mapQThresholds) {
+			for(int m : minMapQMasses) {
+				for(int s : minRegionSizes) {
+					for(int d : minDepths) {
+						configs.add(new ThresholdConfig(t, m, s, d));
+					}
+				}
+			}
+		}
+		return configs;
+	}
+
+	/**
+	 * @param spec
+	 * @param values
+	 * @return
+	 * @throws IOException
+	 */
+	private static int[] parseValues(String spec, String values) throws IOException {
+		String[] toks = values.split(",");
+		int[] parsed = new int[toks.length];
+		try {
+			for(int i = 0; i < toks.length; i++) {
+				parsed[i] = Integer.parseInt(toks[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Could not parse --config-grid '" + spec
+					+ "'. Values must be integers.");
+		}
+		return parsed;
+	}
+}